@@ -0,0 +1,127 @@
+package org.johan.groupcall.benchmark;
+
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.johan.groupcall.BandwidthPolicy;
+import org.johan.groupcall.MediaPipelinePool;
+import org.johan.groupcall.MediaServer;
+import org.johan.groupcall.MediaServerPool;
+import org.johan.groupcall.OutboundWriter;
+import org.johan.groupcall.OutboundWriter.OverflowPolicy;
+import org.johan.groupcall.Room;
+import org.johan.groupcall.RoomJournal;
+import org.johan.groupcall.RoomLeg;
+import org.johan.groupcall.RoomMode;
+import org.johan.groupcall.RoomSettings;
+import org.johan.groupcall.UserSession;
+
+/**
+ * Wires the application classes the way {@code GroupCallApp} does, but on
+ * top of {@link FakeMediaServerClient} and {@link FakeWebSocketSession}s.
+ */
+public class BenchmarkFixture {
+
+	private final AtomicLong sessionIds = new AtomicLong();
+
+	private final FakeMediaServerClient client;
+	private final MediaServer server;
+	private final MediaServerPool mediaServers;
+	private final OutboundWriter outboundWriter;
+	private final RoomSettings settings = new RoomSettings();
+	private final BandwidthPolicy bandwidth = new BandwidthPolicy();
+
+	public BenchmarkFixture() {
+		this(new FakeMediaServerClient());
+	}
+
+	public BenchmarkFixture(FakeMediaServerClient client) {
+		this.client = client;
+		this.server = new MediaServer("fake", client, new MediaPipelinePool(
+				"fake", client, 0, 0), 1, false);
+		this.mediaServers = new MediaServerPool(
+				Collections.singletonList(server));
+		this.outboundWriter = new OutboundWriter(256, 16, 2,
+				OverflowPolicy.DROP_STALE_CHAT, 5000);
+		// Built without Spring, so the @Value defaults are set by hand
+		settings.setDefaultMode(RoomMode.MESH);
+		settings.setMaxParticipantsPerLeg(0);
+		settings.setCompositeThreshold(0);
+		settings.setLastN(0);
+		settings.setChatHistorySize(200);
+		settings.setChatHistoryBytes(262144);
+		settings.setChatPageSize(50);
+		settings.setChatRatePerSecond(2);
+		settings.setChatBurst(5);
+		settings.setChatMaxLength(2000);
+		bandwidth.setSubscriberKbps(0);
+		bandwidth.setRoomKbps(0);
+		bandwidth.setMinKbps(100);
+		bandwidth.setMaxKbps(1500);
+		bandwidth.setPresenterWeight(3);
+	}
+
+	public FakeWebSocketSession newSession() {
+		return new FakeWebSocketSession("session-"
+				+ sessionIds.incrementAndGet());
+	}
+
+	/**
+	 * Creates a room and lets {@code participants} users join it. As in a
+	 * real room only the first one is visible.
+	 */
+	public Room newRoom(String name, RoomMode mode, int participants) {
+		final Room room = new Room(name, mode, new RoomLeg(server,
+				server.acquirePipeline()), mediaServers, outboundWriter,
+				settings, bandwidth, new RoomJournal());
+		for (int i = 0; i < participants; i++) {
+			join(room, "user" + i);
+		}
+		return room;
+	}
+
+	/**
+	 * Joins a room and, like the browser does, asks for the video of every
+	 * visible participant.
+	 */
+	public UserSession join(Room room, String userName) {
+		final UserSession user = room.join(userName, newSession()
+				.getSession());
+		for (final UserSession sender : room.getParticipants()) {
+			if (sender.isVisible()) {
+				user.receiveVideoFrom(sender, FakeMediaServerClient.SDP_OFFER);
+			}
+		}
+		return user;
+	}
+
+	public FakeMediaServerClient getClient() {
+		return client;
+	}
+
+	public MediaServer getServer() {
+		return server;
+	}
+
+	public OutboundWriter getOutboundWriter() {
+		return outboundWriter;
+	}
+
+	public RoomSettings getSettings() {
+		return settings;
+	}
+
+	/**
+	 * @return the bandwidth policy of new rooms, disabled unless a budget is
+	 *         set
+	 */
+	public BandwidthPolicy getBandwidthPolicy() {
+		return bandwidth;
+	}
+
+	public void shutdown() {
+		outboundWriter.shutdown();
+		server.getPipelinePool().shutdown();
+	}
+
+}
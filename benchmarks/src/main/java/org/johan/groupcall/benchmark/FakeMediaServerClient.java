@@ -0,0 +1,345 @@
+package org.johan.groupcall.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.johan.groupcall.MediaServerClient;
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A media server that lives in memory. Pipelines and elements are dynamic
+ * proxies that answer SDP offers with a canned answer.
+ * 
+ * Without latency every asynchronous call completes on the calling thread,
+ * so a benchmark measures the signaling code and nothing else. With latency
+ * each call takes that long plus a random share of the jitter, like a round
+ * trip to a real media server: asynchronous calls complete on a timer
+ * thread, synchronous ones block.
+ */
+public class FakeMediaServerClient implements MediaServerClient {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(FakeMediaServerClient.class);
+
+	static final String SDP_OFFER = sdp("offer");
+	static final String SDP_ANSWER = sdp("answer");
+
+	private final AtomicLong ids = new AtomicLong();
+	private final AtomicLong created = new AtomicLong();
+	private final AtomicLong released = new AtomicLong();
+	private final ConcurrentMap<String, MediaObject> byId = new ConcurrentHashMap<>();
+
+	private final long latencyMicros;
+	private final long jitterMicros;
+	private final ScheduledExecutorService timer;
+
+	public FakeMediaServerClient() {
+		this(0, 0);
+	}
+
+	public FakeMediaServerClient(long latencyMicros, long jitterMicros) {
+		this.latencyMicros = latencyMicros;
+		this.jitterMicros = jitterMicros;
+		if (latencyMicros > 0 || jitterMicros > 0) {
+			final AtomicInteger count = new AtomicInteger();
+			this.timer = Executors.newScheduledThreadPool(2,
+					new ThreadFactory() {
+						@Override
+						public Thread newThread(Runnable r) {
+							final Thread t = new Thread(r, "fake-kms-"
+									+ count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		} else {
+			this.timer = null;
+		}
+	}
+
+	@Override
+	public MediaPipeline createMediaPipeline() {
+		roundTrip();
+		return newObject(MediaPipeline.class, null);
+	}
+
+	@Override
+	public void createMediaPipeline(Continuation<MediaPipeline> continuation) {
+		complete(continuation, newObject(MediaPipeline.class, null));
+	}
+
+	@Override
+	public void createWebRtcEndpoint(MediaPipeline pipeline,
+			Continuation<WebRtcEndpoint> continuation) {
+		complete(continuation, newObject(WebRtcEndpoint.class, pipeline));
+	}
+
+	@Override
+	public void createRtpEndpoint(MediaPipeline pipeline,
+			Continuation<RtpEndpoint> continuation) {
+		complete(continuation, newObject(RtpEndpoint.class, pipeline));
+	}
+
+	@Override
+	public void createComposite(MediaPipeline pipeline,
+			Continuation<Composite> continuation) {
+		complete(continuation, newObject(Composite.class, pipeline));
+	}
+
+	@Override
+	public void createHubPort(Hub hub, Continuation<HubPort> continuation) {
+		complete(continuation,
+				newObject(HubPort.class, hub.getMediaPipeline()));
+	}
+
+	/**
+	 * Only finds objects created by this client that are still alive, as if
+	 * the media server had been restarted along with the application.
+	 */
+	@Override
+	public <T extends MediaObject> T getById(String id, Class<T> type) {
+		final MediaObject object = byId.get(id);
+		if (object == null) {
+			throw new IllegalArgumentException("No object " + id);
+		}
+		return type.cast(object);
+	}
+
+	@Override
+	public void destroy() {
+		if (timer != null) {
+			timer.shutdownNow();
+		}
+	}
+
+	public long getCreatedCount() {
+		return created.get();
+	}
+
+	public long getReleasedCount() {
+		return released.get();
+	}
+
+	/**
+	 * Hands a result to a continuation the way the Kurento client does:
+	 * exceptions thrown by the callback are logged, not propagated.
+	 */
+	private <T> void complete(final Continuation<T> continuation,
+			final T result) {
+		final long delay = nextDelay();
+		if (delay == 0) {
+			succeed(continuation, result);
+			return;
+		}
+		timer.schedule(new Runnable() {
+			@Override
+			public void run() {
+				succeed(continuation, result);
+			}
+		}, delay, TimeUnit.MICROSECONDS);
+	}
+
+	private static <T> void succeed(Continuation<T> continuation, T result) {
+		try {
+			continuation.onSuccess(result);
+		} catch (final Exception e) {
+			log.warn("Continuation failed", e);
+		}
+	}
+
+	private void roundTrip() {
+		final long delay = nextDelay();
+		if (delay == 0) {
+			return;
+		}
+		try {
+			TimeUnit.MICROSECONDS.sleep(delay);
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	private long nextDelay() {
+		if (jitterMicros <= 0) {
+			return latencyMicros;
+		}
+		return latencyMicros
+				+ ThreadLocalRandom.current().nextLong(jitterMicros + 1);
+	}
+
+	private <T extends MediaObject> T newObject(Class<T> type,
+			MediaPipeline pipeline) {
+		final FakeObject handler = new FakeObject(type, pipeline);
+		final T object = type.cast(Proxy.newProxyInstance(
+				type.getClassLoader(), new Class<?>[] { type }, handler));
+		handler.self = object;
+		byId.put(handler.id, object);
+		if (pipeline != null) {
+			handlerOf(pipeline).children.add(object);
+		}
+		created.incrementAndGet();
+		return object;
+	}
+
+	private static FakeObject handlerOf(MediaObject object) {
+		return (FakeObject) Proxy.getInvocationHandler(object);
+	}
+
+	private class FakeObject implements InvocationHandler {
+
+		private final String id;
+		private final MediaPipeline pipeline;
+		private final List<MediaObject> children = new CopyOnWriteArrayList<>();
+		private MediaObject self;
+
+		FakeObject(Class<?> type, MediaPipeline pipeline) {
+			this.id = type.getSimpleName() + "-" + ids.incrementAndGet();
+			this.pipeline = pipeline;
+		}
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			final String name = method.getName();
+			switch (name) {
+			case "equals":
+				return proxy == args[0];
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "toString":
+				return id;
+			case "release":
+				release();
+				break;
+			default:
+				break;
+			}
+
+			final Object result = resultOf(name, method.getReturnType());
+			if (args != null && args.length > 0
+					&& args[args.length - 1] instanceof Continuation) {
+				@SuppressWarnings("unchecked")
+				final Continuation<Object> continuation = (Continuation<Object>) args[args.length - 1];
+				complete(continuation, result);
+				return null;
+			}
+			if (isRemote(name)) {
+				roundTrip();
+			}
+			return result;
+		}
+
+		private Object resultOf(String name, Class<?> returnType) {
+			switch (name) {
+			case "getId":
+				return id;
+			case "getChilds":
+				return new ArrayList<>(children);
+			case "getMediaPipeline":
+				return pipeline != null ? pipeline : self;
+			case "getParent":
+				return pipeline;
+			case "processOffer":
+			case "processAnswer":
+				return SDP_ANSWER;
+			case "generateOffer":
+				return SDP_OFFER;
+			default:
+				return defaultValue(returnType);
+			}
+		}
+
+		private boolean isRemote(String name) {
+			return !name.equals("getId") && !name.equals("getMediaPipeline")
+					&& !name.equals("getParent");
+		}
+
+		private void release() {
+			byId.remove(id);
+			if (pipeline != null && handlerOf(pipeline).children.remove(self)) {
+				released.incrementAndGet();
+			}
+		}
+	}
+
+	private static Object defaultValue(Class<?> type) {
+		if (!type.isPrimitive() || type == void.class) {
+			return null;
+		}
+		if (type == boolean.class) {
+			return false;
+		}
+		if (type == char.class) {
+			return '\0';
+		}
+		if (type == long.class) {
+			return 0L;
+		}
+		if (type == float.class) {
+			return 0f;
+		}
+		if (type == double.class) {
+			return 0d;
+		}
+		if (type == byte.class) {
+			return (byte) 0;
+		}
+		if (type == short.class) {
+			return (short) 0;
+		}
+		return 0;
+	}
+
+	/**
+	 * An SDP of the size a browser sends for one audio and one video track.
+	 */
+	private static String sdp(String type) {
+		final StringBuilder sb = new StringBuilder("v=0\r\n")
+				.append("o=- 4611731400430051336 2 IN IP4 127.0.0.1\r\n")
+				.append("s=").append(type).append("\r\nt=0 0\r\n")
+				.append("a=group:BUNDLE audio video\r\n");
+		for (final String media : new String[] { "audio", "video" }) {
+			sb.append("m=").append(media)
+					.append(" 9 UDP/TLS/RTP/SAVPF 111 103 104 9 0 8 106 105\r\n")
+					.append("c=IN IP4 0.0.0.0\r\n")
+					.append("a=rtcp:9 IN IP4 0.0.0.0\r\n")
+					.append("a=ice-ufrag:8hhY\r\n")
+					.append("a=ice-pwd:asd88fgpdd777uzjYhagZg\r\n")
+					.append("a=fingerprint:sha-256 ")
+					.append("7B:8B:F0:65:5F:78:E2:51:3B:AC:6F:F3:3F:46:1B:35:")
+					.append("DC:B8:5F:64:1A:24:C2:43:F0:A1:58:D0:A1:2C:19:08\r\n")
+					.append("a=setup:actpass\r\na=mid:").append(media)
+					.append("\r\na=sendrecv\r\na=rtcp-mux\r\n");
+			for (int pt = 96; pt < 112; pt++) {
+				sb.append("a=rtpmap:").append(pt).append(' ').append(media)
+						.append("-codec-").append(pt).append("/90000\r\n")
+						.append("a=rtcp-fb:").append(pt)
+						.append(" nack pli\r\n");
+			}
+		}
+		return sb.toString();
+	}
+
+}
@@ -0,0 +1,34 @@
+package org.johan.groupcall.benchmark;
+
+import org.johan.groupcall.MediaServerClient;
+import org.johan.groupcall.MediaServerPool;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+/**
+ * Replaces the media servers of {@code GroupCallApp} with
+ * {@link FakeMediaServerClient}s. Each entry of {@code kms.servers} becomes
+ * one fake server, with the latency given in {@code fake.latencyMicros} and
+ * {@code fake.jitterMicros}.
+ */
+@Configuration
+public class FakeMediaServerConfig {
+
+	@Value("${fake.latencyMicros:2000}")
+	private long latencyMicros;
+
+	@Value("${fake.jitterMicros:1000}")
+	private long jitterMicros;
+
+	@Bean
+	public MediaServerPool mediaServerPool() {
+		return new MediaServerPool() {
+			@Override
+			protected MediaServerClient createClient(String uri) {
+				return new FakeMediaServerClient(latencyMicros, jitterMicros);
+			}
+		};
+	}
+
+}
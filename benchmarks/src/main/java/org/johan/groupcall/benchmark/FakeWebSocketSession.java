@@ -0,0 +1,87 @@
+package org.johan.groupcall.benchmark;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * A WebSocket session that only counts what is written to it. Built as a
+ * dynamic proxy so that it keeps up with whatever methods the Spring version
+ * in use declares.
+ */
+public class FakeWebSocketSession implements InvocationHandler {
+
+	private final String id;
+	private final Map<String, Object> attributes = new ConcurrentHashMap<>();
+	private final AtomicLong messages = new AtomicLong();
+	private final AtomicLong bytes = new AtomicLong();
+	private volatile boolean open = true;
+
+	private final WebSocketSession session;
+
+	public FakeWebSocketSession(String id) {
+		this.id = id;
+		this.session = (WebSocketSession) Proxy.newProxyInstance(
+				WebSocketSession.class.getClassLoader(),
+				new Class<?>[] { WebSocketSession.class }, this);
+	}
+
+	public WebSocketSession getSession() {
+		return session;
+	}
+
+	public long getMessageCount() {
+		return messages.get();
+	}
+
+	public long getByteCount() {
+		return bytes.get();
+	}
+
+	@Override
+	public Object invoke(Object proxy, Method method, Object[] args)
+			throws Throwable {
+		switch (method.getName()) {
+		case "equals":
+			return proxy == args[0];
+		case "hashCode":
+			return System.identityHashCode(proxy);
+		case "toString":
+			return "FakeWebSocketSession[" + id + "]";
+		case "getId":
+			return id;
+		case "isOpen":
+			return open;
+		case "getAttributes":
+			return attributes;
+		case "getExtensions":
+			return Collections.emptyList();
+		case "sendMessage":
+			messages.incrementAndGet();
+			if (args[0] instanceof TextMessage) {
+				bytes.addAndGet(((TextMessage) args[0]).getPayloadLength());
+			}
+			return null;
+		case "close":
+			open = false;
+			return null;
+		default:
+			final Class<?> type = method.getReturnType();
+			if (type == boolean.class) {
+				return false;
+			}
+			if (type == int.class) {
+				return 0;
+			}
+			return null;
+		}
+	}
+
+}
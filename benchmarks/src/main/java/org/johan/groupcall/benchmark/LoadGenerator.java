@@ -0,0 +1,159 @@
+package org.johan.groupcall.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.johan.groupcall.GroupCallApp;
+import org.springframework.boot.SpringApplication;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.util.concurrent.ListenableFutureCallback;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.client.standard.StandardWebSocketClient;
+
+/**
+ * Headless load test of the signaling server. Opens a number of
+ * {@link SimulatedClient}s against {@code /groupcall} and reports
+ * join-to-answer latency percentiles, message rates and, when the server
+ * runs in this JVM, its heap and thread usage.
+ * 
+ * Unless {@code url} is given, the server is started here on top of
+ * {@link FakeMediaServerConfig}. Options are {@code key=value} pairs:
+ * <ul>
+ * <li>{@code scenario} - joinStorm, smallRooms or hugeRooms (see
+ * {@link LoadScenario})</li>
+ * <li>{@code clients}, {@code roomSize}, {@code joinRate}, {@code duration},
+ * {@code chatInterval}, {@code visibilityInterval}, {@code mode} - override
+ * the scenario</li>
+ * <li>{@code url} - test a running server instead, e.g.
+ * ws://10.0.0.1:8080/groupcall</li>
+ * <li>{@code port} - port of the local server, 8086 by default</li>
+ * <li>{@code servers} - number of fake media servers, 1 by default</li>
+ * <li>{@code latencyMicros}, {@code jitterMicros} - round trip time of the
+ * fake media servers</li>
+ * </ul>
+ */
+public class LoadGenerator {
+
+	public static void main(String[] args) throws Exception {
+		final Map<String, String> options = new HashMap<>();
+		for (final String arg : args) {
+			final int eq = arg.indexOf('=');
+			if (eq <= 0) {
+				throw new IllegalArgumentException("Expected key=value, got "
+						+ arg);
+			}
+			options.put(arg.substring(0, eq), arg.substring(eq + 1));
+		}
+		final LoadScenario scenario = new LoadScenario(options);
+
+		ConfigurableApplicationContext server = null;
+		String url = options.get("url");
+		if (url == null) {
+			final String port = value(options, "port", "8086");
+			server = startServer(port, options);
+			url = "ws://localhost:" + port + "/groupcall";
+		}
+
+		try {
+			System.out.println("Running " + scenario + " against " + url);
+			final LoadStatistics stats = run(scenario, url, server != null);
+			System.out.print(stats.report(server != null));
+		} finally {
+			if (server != null) {
+				server.close();
+			}
+		}
+	}
+
+	private static ConfigurableApplicationContext startServer(String port,
+			Map<String, String> options) {
+		final int servers = Integer.parseInt(value(options, "servers", "1"));
+		final StringBuilder spec = new StringBuilder();
+		for (int i = 0; i < servers; i++) {
+			spec.append(i > 0 ? "," : "").append("fake://kms-").append(i);
+		}
+		return SpringApplication.run(new Object[] { GroupCallApp.class,
+				FakeMediaServerConfig.class }, new String[] {
+				"--server.port=" + port,
+				"--kms.servers=" + spec,
+				"--fake.latencyMicros="
+						+ value(options, "latencyMicros", "2000"),
+				"--fake.jitterMicros=" + value(options, "jitterMicros", "1000") });
+	}
+
+	private static LoadStatistics run(final LoadScenario scenario,
+			final String url, boolean sampleServer) throws InterruptedException {
+		final LoadStatistics stats = new LoadStatistics();
+		final ScheduledExecutorService timer = Executors
+				.newScheduledThreadPool(4);
+		final StandardWebSocketClient webSocketClient = new StandardWebSocketClient();
+		final List<SimulatedClient> clients = new ArrayList<>();
+
+		if (sampleServer) {
+			timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					stats.sampleServer();
+				}
+			}, 0, 1, TimeUnit.SECONDS);
+		}
+
+		final long joinInterval = scenario.getJoinRate() > 0 ? TimeUnit.SECONDS
+				.toMicros(1) / scenario.getJoinRate() : 0;
+		for (int i = 0; i < scenario.getClients(); i++) {
+			final SimulatedClient client = new SimulatedClient("load-" + i,
+					scenario.roomOf(i), scenario.getRoomMode(), scenario,
+					stats, timer);
+			clients.add(client);
+			timer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					connect(webSocketClient, client, url, stats);
+				}
+			}, i * joinInterval, TimeUnit.MICROSECONDS);
+		}
+
+		final long rampMicros = scenario.getClients() * joinInterval;
+		TimeUnit.MICROSECONDS.sleep(rampMicros);
+		TimeUnit.SECONDS.sleep(scenario.getDurationSeconds());
+
+		for (final SimulatedClient client : clients) {
+			client.leave();
+		}
+		final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+		while (stats.getLeftCount() < stats.getJoinedCount()
+				&& System.nanoTime() < deadline) {
+			TimeUnit.MILLISECONDS.sleep(100);
+		}
+		timer.shutdownNow();
+		return stats;
+	}
+
+	private static void connect(StandardWebSocketClient webSocketClient,
+			SimulatedClient client, String url, final LoadStatistics stats) {
+		webSocketClient.doHandshake(client, url).addCallback(
+				new ListenableFutureCallback<WebSocketSession>() {
+
+					@Override
+					public void onSuccess(WebSocketSession session) {
+					}
+
+					@Override
+					public void onFailure(Throwable cause) {
+						stats.failed();
+					}
+				});
+	}
+
+	private static String value(Map<String, String> options, String key,
+			String defaultValue) {
+		final String value = options.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+}
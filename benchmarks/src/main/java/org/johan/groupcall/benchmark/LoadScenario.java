@@ -0,0 +1,138 @@
+package org.johan.groupcall.benchmark;
+
+import java.util.Map;
+
+/**
+ * The shape of a load test: how many clients, how they are spread over
+ * rooms, how fast they arrive and how busy they are once inside.
+ * 
+ * Every value of a preset can be overridden on the command line, e.g.
+ * {@code clients=5000 roomSize=8}.
+ */
+public class LoadScenario {
+
+	/**
+	 * Presets, selected with {@code scenario=<name>}.
+	 */
+	public enum Preset {
+		/** Everybody joins at once */
+		JOIN_STORM("joinStorm", 1000, 10, 0, 60, 10000, 0),
+		/** Many rooms of a few participants */
+		SMALL_ROOMS("smallRooms", 2000, 4, 200, 60, 10000, 30000),
+		/** A few rooms of a lot of participants */
+		HUGE_ROOMS("hugeRooms", 1000, 200, 100, 60, 30000, 0);
+
+		private final String name;
+		private final int clients;
+		private final int roomSize;
+		private final int joinRate;
+		private final int durationSeconds;
+		private final long chatIntervalMillis;
+		private final long visibilityIntervalMillis;
+
+		private Preset(String name, int clients, int roomSize, int joinRate,
+				int durationSeconds, long chatIntervalMillis,
+				long visibilityIntervalMillis) {
+			this.name = name;
+			this.clients = clients;
+			this.roomSize = roomSize;
+			this.joinRate = joinRate;
+			this.durationSeconds = durationSeconds;
+			this.chatIntervalMillis = chatIntervalMillis;
+			this.visibilityIntervalMillis = visibilityIntervalMillis;
+		}
+
+		public static Preset fromName(String name) {
+			for (final Preset preset : values()) {
+				if (preset.name.equals(name)) {
+					return preset;
+				}
+			}
+			throw new IllegalArgumentException("Unknown scenario " + name);
+		}
+	}
+
+	private final String name;
+	private final int clients;
+	private final int roomSize;
+	private final int joinRate;
+	private final int durationSeconds;
+	private final long chatIntervalMillis;
+	private final long visibilityIntervalMillis;
+	private final String roomMode;
+
+	public LoadScenario(Map<String, String> options) {
+		final Preset preset = Preset.fromName(get(options, "scenario",
+				Preset.JOIN_STORM.name));
+		this.name = preset.name;
+		this.clients = Integer.parseInt(get(options, "clients",
+				String.valueOf(preset.clients)));
+		this.roomSize = Integer.parseInt(get(options, "roomSize",
+				String.valueOf(preset.roomSize)));
+		this.joinRate = Integer.parseInt(get(options, "joinRate",
+				String.valueOf(preset.joinRate)));
+		this.durationSeconds = Integer.parseInt(get(options, "duration",
+				String.valueOf(preset.durationSeconds)));
+		this.chatIntervalMillis = Long.parseLong(get(options, "chatInterval",
+				String.valueOf(preset.chatIntervalMillis)));
+		this.visibilityIntervalMillis = Long.parseLong(get(options,
+				"visibilityInterval",
+				String.valueOf(preset.visibilityIntervalMillis)));
+		this.roomMode = get(options, "mode", "mesh");
+	}
+
+	private static String get(Map<String, String> options, String key,
+			String defaultValue) {
+		final String value = options.get(key);
+		return value != null ? value : defaultValue;
+	}
+
+	public String roomOf(int client) {
+		return "load-room-" + client / Math.max(1, roomSize);
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getClients() {
+		return clients;
+	}
+
+	public int getRoomSize() {
+		return roomSize;
+	}
+
+	/**
+	 * @return new clients per second, 0 to connect all at once
+	 */
+	public int getJoinRate() {
+		return joinRate;
+	}
+
+	public int getDurationSeconds() {
+		return durationSeconds;
+	}
+
+	public long getChatIntervalMillis() {
+		return chatIntervalMillis;
+	}
+
+	public long getVisibilityIntervalMillis() {
+		return visibilityIntervalMillis;
+	}
+
+	public String getRoomMode() {
+		return roomMode;
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%s: %d clients, rooms of %d (%s), %s, %d s, "
+				+ "chat every %d ms, visibility every %d ms", name, clients,
+				roomSize, roomMode, joinRate > 0 ? joinRate + " joins/s"
+						: "all at once", durationSeconds, chatIntervalMillis,
+				visibilityIntervalMillis);
+	}
+
+}
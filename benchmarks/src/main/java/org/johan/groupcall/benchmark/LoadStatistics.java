@@ -0,0 +1,134 @@
+package org.johan.groupcall.benchmark;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * What the simulated clients of a load test observed, and how the JVM
+ * hosting the server coped.
+ */
+public class LoadStatistics {
+
+	private final List<Long> joinLatencies = new ArrayList<>();
+
+	private final AtomicLong connected = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final AtomicLong joined = new AtomicLong();
+	private final AtomicLong left = new AtomicLong();
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong received = new AtomicLong();
+	private final AtomicLong answers = new AtomicLong();
+	private final AtomicLong candidates = new AtomicLong();
+
+	private final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+	private final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+	private long peakHeap;
+	private int peakThreads;
+
+	private final long startedAt = System.nanoTime();
+
+	public void joinAnswered(long nanos) {
+		synchronized (joinLatencies) {
+			joinLatencies.add(nanos);
+		}
+	}
+
+	public void connected() {
+		connected.incrementAndGet();
+	}
+
+	public void failed() {
+		failed.incrementAndGet();
+	}
+
+	public void joined() {
+		joined.incrementAndGet();
+	}
+
+	public void left() {
+		left.incrementAndGet();
+	}
+
+	public void sent() {
+		sent.incrementAndGet();
+	}
+
+	public void received() {
+		received.incrementAndGet();
+	}
+
+	public void answered() {
+		answers.incrementAndGet();
+	}
+
+	public void candidateReceived() {
+		candidates.incrementAndGet();
+	}
+
+	/**
+	 * Records heap and thread usage. Only meaningful when the server runs in
+	 * this JVM.
+	 */
+	public synchronized void sampleServer() {
+		peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+		peakThreads = Math.max(peakThreads, threads.getThreadCount());
+	}
+
+	public long getJoinedCount() {
+		return joined.get();
+	}
+
+	public long getLeftCount() {
+		return left.get();
+	}
+
+	/**
+	 * @param fraction
+	 *            e.g. 0.99 for the 99th percentile
+	 * @return the join-to-answer latency in milliseconds, or -1 if no join
+	 *         completed
+	 */
+	public double getJoinLatencyPercentile(double fraction) {
+		final List<Long> sorted;
+		synchronized (joinLatencies) {
+			sorted = new ArrayList<>(joinLatencies);
+		}
+		if (sorted.isEmpty()) {
+			return -1;
+		}
+		Collections.sort(sorted);
+		final int index = (int) Math.ceil(fraction * sorted.size()) - 1;
+		return sorted.get(Math.max(0, index)) / 1e6;
+	}
+
+	public String report(boolean withServer) {
+		final double seconds = (System.nanoTime() - startedAt) / 1e9;
+		final StringBuilder sb = new StringBuilder();
+		sb.append(String.format("clients: %d connected, %d failed, %d joined, %d left%n",
+				connected.get(), failed.get(), joined.get(), left.get()));
+		sb.append(String.format(
+				"join to answer (ms): p50 %.1f, p90 %.1f, p99 %.1f, p99.9 %.1f, max %.1f%n",
+				getJoinLatencyPercentile(0.5), getJoinLatencyPercentile(0.9),
+				getJoinLatencyPercentile(0.99), getJoinLatencyPercentile(0.999),
+				getJoinLatencyPercentile(1)));
+		sb.append(String.format(
+				"messages/s: %.0f sent, %.0f received (%d SDP answers, %d ICE candidates) over %.1f s%n",
+				sent.get() / seconds, received.get() / seconds, answers.get(),
+				candidates.get(), seconds));
+		if (withServer) {
+			sampleServer();
+			synchronized (this) {
+				sb.append(String.format(
+						"server: peak heap %d MB, peak threads %d%n",
+						peakHeap / (1024 * 1024), peakThreads));
+			}
+		}
+		return sb.toString();
+	}
+
+}
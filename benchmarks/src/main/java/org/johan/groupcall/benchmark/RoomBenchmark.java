@@ -0,0 +1,82 @@
+package org.johan.groupcall.benchmark;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.johan.groupcall.Room;
+import org.johan.groupcall.RoomMode;
+import org.johan.groupcall.UserSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * The room operations triggered by signaling messages, in rooms of
+ * different sizes. Every operation leaves the room as it found it, so the
+ * room size stays what the parameter says.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class RoomBenchmark {
+
+	@Param({ "2", "20", "50", "200" })
+	public int roomSize;
+
+	private BenchmarkFixture fixture;
+	private Room room;
+	private UserSession admin;
+	private UserSession viewer;
+
+	@Setup
+	public void setUp() {
+		fixture = new BenchmarkFixture();
+		// Otherwise chatFanOut measures the rate limiter turning it away
+		fixture.getSettings().setChatRatePerSecond(0);
+		room = fixture.newRoom("bench", RoomMode.MESH, roomSize - 1);
+		admin = room.getParticipant("user0");
+		viewer = fixture.join(room, "viewer");
+	}
+
+	@TearDown
+	public void tearDown() {
+		room.close();
+		fixture.shutdown();
+	}
+
+	/**
+	 * A participant joins, receives the visible publisher and leaves again.
+	 */
+	@Benchmark
+	public void joinAndLeave() throws IOException {
+		room.leave(fixture.join(room, "joiner"));
+	}
+
+	@Benchmark
+	public void chatFanOut() {
+		room.distributeChatMessage(admin, "Hej allihopa!");
+	}
+
+	/**
+	 * A participant becomes visible and hidden again, which recreates its
+	 * endpoint and makes everybody else update their view twice.
+	 */
+	@Benchmark
+	public void visibilityToggle() {
+		room.updateVisibilityFor(viewer);
+		room.updateVisibilityFor(viewer);
+	}
+
+}
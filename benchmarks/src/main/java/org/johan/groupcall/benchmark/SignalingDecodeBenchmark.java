@@ -0,0 +1,78 @@
+package org.johan.groupcall.benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.johan.groupcall.SignalingCommand;
+import org.johan.groupcall.SignalingDecoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * Decoding of incoming signaling frames, next to a plain Gson tree parse
+ * for comparison.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class SignalingDecodeBenchmark {
+
+	private final String joinRoom;
+	private final String receiveVideoFrom;
+	private final String chat;
+
+	private final JsonParser parser = new JsonParser();
+
+	public SignalingDecodeBenchmark() {
+		final JsonObject join = new JsonObject();
+		join.addProperty("id", "joinRoom");
+		join.addProperty("name", "anna");
+		join.addProperty("room", "lektion 3");
+		joinRoom = join.toString();
+
+		final JsonObject receive = new JsonObject();
+		receive.addProperty("id", "receiveVideoFrom");
+		receive.addProperty("sender", "bertil");
+		receive.addProperty("sdpOffer", FakeMediaServerClient.SDP_OFFER);
+		receiveVideoFrom = receive.toString();
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "chat");
+		message.addProperty("room", "lektion 3");
+		message.addProperty("text", "Hej allihopa!");
+		chat = message.toString();
+	}
+
+	@Benchmark
+	public SignalingCommand decodeJoinRoom() {
+		return SignalingDecoder.decode(joinRoom);
+	}
+
+	@Benchmark
+	public SignalingCommand decodeReceiveVideoFrom() {
+		return SignalingDecoder.decode(receiveVideoFrom);
+	}
+
+	@Benchmark
+	public SignalingCommand decodeChat() {
+		return SignalingDecoder.decode(chat);
+	}
+
+	@Benchmark
+	public JsonObject treeParseReceiveVideoFrom() {
+		return parser.parse(receiveVideoFrom).getAsJsonObject();
+	}
+
+}
@@ -0,0 +1,314 @@
+package org.johan.groupcall.benchmark;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+import org.springframework.web.socket.handler.TextWebSocketHandler;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+/**
+ * One browser as far as signaling goes: it follows the protocol of
+ * {@code conferenceroom.js}, with a canned SDP offer and canned ICE
+ * candidates in place of a real peer connection.
+ */
+public class SimulatedClient extends TextWebSocketHandler {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SimulatedClient.class);
+
+	/** What a browser trickles after each offer, one host and one reflexive */
+	private static final String[] CANDIDATES = {
+			"candidate:1 1 udp 2122260223 192.0.2.10 54400 typ host generation 0",
+			"candidate:2 1 udp 1686052607 198.51.100.7 54400 typ srflx raddr 192.0.2.10 rport 54400 generation 0" };
+
+	private final String name;
+	private final String room;
+	private final String mode;
+	private final LoadScenario scenario;
+	private final LoadStatistics stats;
+	private final ScheduledExecutorService timer;
+
+	private final JsonParser parser = new JsonParser();
+
+	private WebSocketSession session;
+	private String roomMode = "mesh";
+	private boolean receivingMix = false;
+
+	/** Answers still missing for the offers sent right after joining */
+	private final Set<String> joinOffers = new HashSet<>();
+	private long joinSentAt;
+	private boolean joinAnswered = false;
+
+	private ScheduledFuture<?> chatTask;
+	private ScheduledFuture<?> visibilityTask;
+
+	public SimulatedClient(String name, String room, String mode,
+			LoadScenario scenario, LoadStatistics stats,
+			ScheduledExecutorService timer) {
+		this.name = name;
+		this.room = room;
+		this.mode = mode;
+		this.scenario = scenario;
+		this.stats = stats;
+		this.timer = timer;
+	}
+
+	@Override
+	public void afterConnectionEstablished(WebSocketSession session)
+			throws Exception {
+		this.session = session;
+		stats.connected();
+		final JsonObject join = new JsonObject();
+		join.addProperty("id", "joinRoom");
+		join.addProperty("name", name);
+		join.addProperty("room", room);
+		join.addProperty("mode", mode);
+		synchronized (this) {
+			joinSentAt = System.nanoTime();
+		}
+		send(join);
+	}
+
+	@Override
+	protected void handleTextMessage(WebSocketSession session,
+			TextMessage message) throws Exception {
+		final JsonElement frame = parser.parse(message.getPayload());
+		// The server flushes several queued messages at once as an array
+		if (frame.isJsonArray()) {
+			for (final JsonElement element : frame.getAsJsonArray()) {
+				handle(element.getAsJsonObject());
+			}
+		} else {
+			handle(frame.getAsJsonObject());
+		}
+	}
+
+	private synchronized void handle(JsonObject msg) {
+		stats.received();
+		switch (msg.get("id").getAsString()) {
+		case "existingParticipants":
+			onExistingParticipants(msg);
+			break;
+		case "newParticipantArrived":
+			if (msg.get("isVisible").getAsBoolean() && isMesh()) {
+				offerToReceiveVideo(msg.get("name").getAsString());
+			}
+			break;
+		case "receiveVideoAnswer":
+			onAnswer(msg.get("name").getAsString());
+			break;
+		case "receiveMixAnswer":
+			onAnswer("mix");
+			break;
+		case "iceCandidate":
+			// A browser hands it to the peer connection of the endpoint
+			stats.candidateReceived();
+			break;
+		case "updateVisibility":
+			if (msg.get("visibility").getAsBoolean()
+					&& (isMesh() || msg.get("user").getAsString().equals(name))) {
+				offerToReceiveVideo(msg.get("user").getAsString());
+			}
+			break;
+		case "roomModeChanged":
+			roomMode = msg.get("mode").getAsString();
+			if (!isMesh()) {
+				offerToReceiveMix();
+			}
+			break;
+		case "participantLeft":
+			if (msg.has("isyou") && msg.get("isyou").getAsBoolean()) {
+				stats.left();
+				close();
+			}
+			break;
+		default:
+			break;
+		}
+	}
+
+	private void onExistingParticipants(JsonObject msg) {
+		stats.joined();
+		roomMode = msg.has("mode") ? msg.get("mode").getAsString() : "mesh";
+		if (msg.get("isNewUserVisible").getAsBoolean()) {
+			offerToReceiveVideo(name);
+			joinOffers.add(name);
+		}
+		final JsonArray others = msg.getAsJsonArray("data");
+		for (final JsonElement element : others) {
+			final JsonObject other = element.getAsJsonObject();
+			if (other.get("isVisible").getAsBoolean() && isMesh()) {
+				final String sender = other.get("name").getAsString();
+				offerToReceiveVideo(sender);
+				joinOffers.add(sender);
+			}
+		}
+		if (!isMesh()) {
+			offerToReceiveMix();
+			joinOffers.add("mix");
+		}
+		if (joinOffers.isEmpty()) {
+			joinCompleted();
+		}
+		scheduleActivity();
+	}
+
+	private void onAnswer(String sender) {
+		stats.answered();
+		if (joinOffers.remove(sender) && joinOffers.isEmpty()) {
+			joinCompleted();
+		}
+	}
+
+	private void joinCompleted() {
+		if (!joinAnswered) {
+			joinAnswered = true;
+			stats.joinAnswered(System.nanoTime() - joinSentAt);
+		}
+	}
+
+	private void scheduleActivity() {
+		final long chatMillis = scenario.getChatIntervalMillis();
+		if (chatMillis > 0) {
+			chatTask = timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					chat();
+				}
+			}, ThreadLocalRandom.current().nextLong(chatMillis), chatMillis,
+					TimeUnit.MILLISECONDS);
+		}
+		final long visibilityMillis = scenario.getVisibilityIntervalMillis();
+		if (visibilityMillis > 0) {
+			visibilityTask = timer.scheduleAtFixedRate(new Runnable() {
+				@Override
+				public void run() {
+					changeVisibility();
+				}
+			}, ThreadLocalRandom.current().nextLong(visibilityMillis),
+					visibilityMillis, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void offerToReceiveVideo(String sender) {
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", "receiveVideoFrom");
+		msg.addProperty("sender", sender);
+		msg.addProperty("sdpOffer", FakeMediaServerClient.SDP_OFFER);
+		send(msg);
+		sendCandidates(sender);
+	}
+
+	private void offerToReceiveMix() {
+		if (receivingMix) {
+			return;
+		}
+		receivingMix = true;
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", "receiveMix");
+		msg.addProperty("sdpOffer", FakeMediaServerClient.SDP_OFFER);
+		send(msg);
+		sendCandidates(null);
+	}
+
+	/**
+	 * Sends the local candidates of a peer connection in one batch, like
+	 * {@code flushIceCandidates} does.
+	 * 
+	 * @param endpoint
+	 *            the sender the peer connection receives, or null for the mix
+	 */
+	private void sendCandidates(String endpoint) {
+		final JsonArray candidates = new JsonArray();
+		for (final String line : CANDIDATES) {
+			final JsonObject candidate = new JsonObject();
+			if (endpoint != null) {
+				candidate.addProperty("name", endpoint);
+			}
+			candidate.addProperty("candidate", line);
+			candidate.addProperty("sdpMid", "video");
+			candidate.addProperty("sdpMLineIndex", 0);
+			candidates.add(candidate);
+		}
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", "onIceCandidate");
+		msg.add("candidates", candidates);
+		send(msg);
+	}
+
+	private void chat() {
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", "chat");
+		msg.addProperty("name", name);
+		msg.addProperty("text", "Hej från " + name);
+		send(msg);
+	}
+
+	private void changeVisibility() {
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", "changeVisibility");
+		msg.addProperty("name", name);
+		send(msg);
+	}
+
+	public void leave() {
+		final JsonObject msg = new JsonObject();
+		msg.addProperty("id", "leaveRoom");
+		send(msg);
+	}
+
+	private synchronized void send(JsonObject msg) {
+		if (session == null || !session.isOpen()) {
+			return;
+		}
+		try {
+			session.sendMessage(new TextMessage(msg.toString()));
+			stats.sent();
+		} catch (final IOException e) {
+			log.debug("{}: could not send {}", name, msg.get("id"), e);
+		}
+	}
+
+	private void close() {
+		cancelActivity();
+		try {
+			session.close();
+		} catch (final IOException e) {
+			log.debug("{}: could not close session", name, e);
+		}
+	}
+
+	private void cancelActivity() {
+		if (chatTask != null) {
+			chatTask.cancel(false);
+		}
+		if (visibilityTask != null) {
+			visibilityTask.cancel(false);
+		}
+	}
+
+	@Override
+	public synchronized void afterConnectionClosed(WebSocketSession session,
+			CloseStatus status) throws Exception {
+		cancelActivity();
+	}
+
+	private boolean isMesh() {
+		return "mesh".equals(roomMode);
+	}
+
+}
@@ -0,0 +1,71 @@
+package org.johan.groupcall.benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.johan.groupcall.Room;
+import org.johan.groupcall.RoomMode;
+import org.johan.groupcall.UserRegistry;
+import org.johan.groupcall.UserSession;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Lookups in the user registry from several threads at once, the way the
+ * WebSocket threads do it for every incoming message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+@Threads(4)
+public class UserRegistryBenchmark {
+
+	@Param({ "1000" })
+	public int users;
+
+	private BenchmarkFixture fixture;
+	private Room room;
+	private final UserRegistry registry = new UserRegistry();
+	private WebSocketSession[] sessions;
+
+	@Setup
+	public void setUp() {
+		fixture = new BenchmarkFixture();
+		room = fixture.newRoom("bench", RoomMode.MESH, users);
+		sessions = new WebSocketSession[users];
+		int i = 0;
+		for (final UserSession user : room.getParticipants()) {
+			registry.register(user);
+			sessions[i] = user.getSession();
+			i++;
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		room.close();
+		fixture.shutdown();
+	}
+
+	@Benchmark
+	public UserSession getBySession() {
+		return registry.getBySession(sessions[ThreadLocalRandom.current()
+				.nextInt(sessions.length)]);
+	}
+
+}
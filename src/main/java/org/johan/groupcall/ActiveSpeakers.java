@@ -0,0 +1,95 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * The visible publishers of a last-N room, most recently active first. The
+ * first N are forwarded to every subscriber; the next N are parked: their
+ * endpoints are kept but carry no media, so that they can come back without
+ * a new negotiation.
+ */
+public class ActiveSpeakers {
+
+	private final int n;
+	private final LinkedList<String> recency = new LinkedList<>();
+
+	public ActiveSpeakers(int n) {
+		this.n = n;
+	}
+
+	/**
+	 * Moves a publisher to the front.
+	 *
+	 * @return true if this changed which publishers are active
+	 */
+	public synchronized boolean touch(String name) {
+		final int index = recency.indexOf(name);
+		if (index == 0) {
+			return false;
+		}
+		if (index > 0) {
+			recency.remove(index);
+		}
+		recency.addFirst(name);
+		return index < 0 || index >= n;
+	}
+
+	/**
+	 * Forgets a publisher that left or stopped publishing.
+	 *
+	 * @return true if this changed which publishers are active or parked
+	 */
+	public synchronized boolean remove(String name) {
+		final int index = recency.indexOf(name);
+		if (index < 0) {
+			return false;
+		}
+		recency.remove(index);
+		return index < 2 * n;
+	}
+
+	public synchronized Snapshot snapshot() {
+		final int active = Math.min(n, recency.size());
+		final int parked = Math.min(2 * n, recency.size());
+		return new Snapshot(new ArrayList<>(recency.subList(0, active)),
+				new ArrayList<>(recency.subList(active, parked)));
+	}
+
+	public static final class Snapshot {
+
+		public static final Snapshot EMPTY = new Snapshot(
+				Collections.<String> emptyList(),
+				Collections.<String> emptyList());
+
+		private final List<String> active;
+		private final List<String> parked;
+
+		Snapshot(List<String> active, List<String> parked) {
+			this.active = active;
+			this.parked = parked;
+		}
+
+		public List<String> getActive() {
+			return active;
+		}
+
+		public List<String> getParked() {
+			return parked;
+		}
+
+		public boolean isActive(String name) {
+			return active.contains(name);
+		}
+
+		/**
+		 * @return true if subscribers keep an endpoint for the publisher
+		 */
+		public boolean isKept(String name) {
+			return active.contains(name) || parked.contains(name);
+		}
+	}
+
+}
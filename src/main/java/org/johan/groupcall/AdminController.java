@@ -0,0 +1,32 @@
+package org.johan.groupcall;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Diagnostics for operators, served as JSON under {@code /admin}.
+ */
+@Controller
+public class AdminController {
+
+	@Autowired
+	private JoinTracer tracer;
+
+	/**
+	 * @return the last joins and video negotiations that took longer than
+	 *         {@code trace.slowJoinMillis}, with the time of each step
+	 */
+	@RequestMapping(value = "/admin/slowJoins", produces = "application/json")
+	@ResponseBody
+	public String slowJoins() {
+		final JsonObject json = new JsonObject();
+		json.addProperty("total", tracer.getSlowCount());
+		json.add("traces", tracer.getSlowTraces());
+		return json.toString();
+	}
+
+}
@@ -0,0 +1,447 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Keeps joins and publishers off media servers that are already full. Each
+ * pipeline and each media server has a budget of endpoints; a request whose
+ * estimated endpoints do not fit waits in line for up to
+ * {@code admission.queueMillis}, admins first, and is rejected if the line
+ * is full or the wait runs out.
+ *
+ * Endpoints are counted by the {@link EndpointLedger} once built. Those of an
+ * admitted request are built later, some only when the client negotiates,
+ * so its estimate is reserved until they are: each endpoint built uses up
+ * one reserved endpoint of its pipeline or server. What is still reserved
+ * after {@code admission.reserveMillis}, e.g. because the client never
+ * negotiated, is given back.
+ */
+public class AdmissionControl {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(AdmissionControl.class);
+
+	/**
+	 * What a request would add: endpoints in a pipeline of a media server.
+	 */
+	public static final class Demand {
+		private final String what;
+		private final MediaServer server;
+		private final RoomLeg leg;
+		private final int endpoints;
+		private final boolean priority;
+
+		/**
+		 * @param what
+		 *            a description for the logs
+		 * @param server
+		 *            where the endpoints are built
+		 * @param leg
+		 *            whose pipeline they go in, or null for a pipeline that
+		 *            does not exist yet
+		 * @param priority
+		 *            true for admins, who go ahead of the others
+		 */
+		public Demand(String what, MediaServer server, RoomLeg leg,
+				int endpoints, boolean priority) {
+			this.what = what;
+			this.server = server;
+			this.leg = leg;
+			this.endpoints = endpoints;
+			this.priority = priority;
+		}
+
+		public MediaServer getServer() {
+			return server;
+		}
+
+		public RoomLeg getLeg() {
+			return leg;
+		}
+
+		public int getEndpoints() {
+			return endpoints;
+		}
+
+		public boolean isPriority() {
+			return priority;
+		}
+
+		@Override
+		public String toString() {
+			return what + " (" + endpoints + " endpoints on "
+					+ server.getName() + ")";
+		}
+	}
+
+	/**
+	 * Told once whether a request may go ahead. {@link #admitted()} runs on
+	 * one of the {@code admission.workerThreads}, so that a request blocking
+	 * on a slow media server holds up neither the line nor the signaling
+	 * thread that asked. A rejection is told on the thread asking for
+	 * admission, or on the admission thread if the request waited.
+	 */
+	public interface Callback {
+		/**
+		 * Carries out the request. If it throws, the request is rejected
+		 * with the reason "failed".
+		 */
+		void admitted();
+
+		/**
+		 * @param reason
+		 *            "busy" if the media server stayed full, "queueFull" if
+		 *            the line was full, "failed" if the request failed once
+		 *            admitted
+		 */
+		void rejected(String reason);
+	}
+
+	private static final class Waiting {
+		private final Demand demand;
+		private final Callback callback;
+		private final long seq;
+		private final long since = System.nanoTime();
+
+		private Waiting(Demand demand, Callback callback, long seq) {
+			this.demand = demand;
+			this.callback = callback;
+			this.seq = seq;
+		}
+	}
+
+	/** Admins first, then in order of arrival */
+	private static final Comparator<Waiting> ORDER = new Comparator<Waiting>() {
+		@Override
+		public int compare(Waiting a, Waiting b) {
+			if (a.demand.priority != b.demand.priority) {
+				return a.demand.priority ? -1 : 1;
+			}
+			return Long.compare(a.seq, b.seq);
+		}
+	};
+
+	/** Endpoints in one pipeline, 0 for no limit */
+	@Value("${admission.maxEndpointsPerPipeline:0}")
+	private int maxEndpointsPerPipeline;
+
+	/** Endpoints on one media server, 0 for no limit */
+	@Value("${admission.maxEndpointsPerServer:0}")
+	private int maxEndpointsPerServer;
+
+	/** How long a request waits for room, 0 to reject it right away */
+	@Value("${admission.queueMillis:5000}")
+	private long queueMillis;
+
+	@Value("${admission.maxQueued:100}")
+	private int maxQueued;
+
+	@Value("${admission.reserveMillis:10000}")
+	private long reserveMillis;
+
+	/** How often waiting requests are looked at again */
+	@Value("${admission.retryMillis:250}")
+	private long retryMillis;
+
+	/** Threads carrying out admitted requests */
+	@Value("${admission.workerThreads:4}")
+	private int workerThreads;
+
+	/** Guarded by itself */
+	private final TreeSet<Waiting> queue = new TreeSet<>(ORDER);
+	private long seq = 0;
+
+	private final AtomicLong admitted = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+	private final AtomicLong rejected = new AtomicLong();
+	private final AtomicLong timedOut = new AtomicLong();
+	private final AtomicLong failed = new AtomicLong();
+	private final LatencyHistogram waits = new LatencyHistogram();
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "admission");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	private ExecutorService workers;
+
+	public AdmissionControl() {
+	}
+
+	/**
+	 * For use outside a Spring context, e.g. by the tests. The admission and
+	 * worker threads are started right away.
+	 */
+	public AdmissionControl(int maxEndpointsPerPipeline,
+			int maxEndpointsPerServer, long queueMillis, int maxQueued,
+			long reserveMillis, long retryMillis, int workerThreads) {
+		this.maxEndpointsPerPipeline = maxEndpointsPerPipeline;
+		this.maxEndpointsPerServer = maxEndpointsPerServer;
+		this.queueMillis = queueMillis;
+		this.maxQueued = maxQueued;
+		this.reserveMillis = reserveMillis;
+		this.retryMillis = retryMillis;
+		this.workerThreads = workerThreads;
+		start();
+	}
+
+	@PostConstruct
+	private void start() {
+		final AtomicInteger count = new AtomicInteger();
+		workers = Executors.newFixedThreadPool(Math.max(1, workerThreads),
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread t = new Thread(r, "admission-worker-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		if (!isEnabled()) {
+			return;
+		}
+		log.info("Admitting up to {} endpoints per pipeline, {} per media server",
+				maxEndpointsPerPipeline, maxEndpointsPerServer);
+		scheduler.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					admitWaiting();
+				} catch (final RuntimeException e) {
+					log.warn("Could not admit waiting requests", e);
+				}
+			}
+		}, retryMillis, Math.max(1, retryMillis), TimeUnit.MILLISECONDS);
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		scheduler.shutdownNow();
+		workers.shutdown();
+	}
+
+	public boolean isEnabled() {
+		return maxEndpointsPerPipeline > 0 || maxEndpointsPerServer > 0;
+	}
+
+	/**
+	 * Lets a request go ahead if its endpoints fit and nobody is waiting
+	 * before it, otherwise puts it in line.
+	 */
+	public void admit(Demand demand, Callback callback) {
+		if (!isEnabled()) {
+			admitted.incrementAndGet();
+			carryOut(demand, callback);
+			return;
+		}
+		final Waiting request;
+		final List<Waiting> ready;
+		boolean turnedAway = false;
+		boolean waiting = false;
+		synchronized (queue) {
+			if (queue.size() >= maxQueued && !demand.priority) {
+				request = null;
+				ready = new ArrayList<>();
+			} else {
+				request = new Waiting(demand, callback, seq++);
+				queue.add(request);
+				ready = takeFitting();
+				if (queueMillis <= 0) {
+					turnedAway = queue.remove(request);
+				}
+				waiting = queue.contains(request);
+			}
+		}
+		if (request == null || turnedAway) {
+			rejected.incrementAndGet();
+			log.info("Rejected {}: {}", demand, request == null ? maxQueued
+					+ " requests already waiting" : "media server full");
+			callback.rejected(request == null ? "queueFull" : "busy");
+		} else if (waiting) {
+			queued.incrementAndGet();
+			log.info("Queued {}: media server full", demand);
+		}
+		run(ready);
+	}
+
+	/**
+	 * Admits the waiting requests that fit by now and rejects those that
+	 * waited too long.
+	 */
+	private void admitWaiting() {
+		final long now = System.nanoTime();
+		final List<Waiting> expired = new ArrayList<>();
+		final List<Waiting> ready;
+		synchronized (queue) {
+			if (queue.isEmpty()) {
+				return;
+			}
+			final long maxWait = TimeUnit.MILLISECONDS.toNanos(queueMillis);
+			final Iterator<Waiting> it = queue.iterator();
+			while (it.hasNext()) {
+				final Waiting request = it.next();
+				if (now - request.since >= maxWait) {
+					it.remove();
+					expired.add(request);
+				}
+			}
+			ready = takeFitting();
+		}
+		for (final Waiting request : expired) {
+			timedOut.incrementAndGet();
+			rejected.incrementAndGet();
+			waits.recordSince(request.since);
+			log.info("Rejected {}: media server still full after {} ms",
+					request.demand, queueMillis);
+			request.callback.rejected("busy");
+		}
+		run(ready);
+	}
+
+	/**
+	 * Takes the requests that fit, in order, reserving their endpoints. A
+	 * request that does not fit holds back those after it on the same media
+	 * server or pipeline, so that small requests do not starve a large one.
+	 */
+	private List<Waiting> takeFitting() {
+		final List<Waiting> ready = new ArrayList<>();
+		final Set<Object> full = new HashSet<>();
+		final Iterator<Waiting> it = queue.iterator();
+		while (it.hasNext()) {
+			final Waiting request = it.next();
+			final Demand demand = request.demand;
+			if (full.contains(demand.server) || full.contains(demand.leg)) {
+				continue;
+			}
+			if (!fitsServer(demand)) {
+				full.add(demand.server);
+				continue;
+			}
+			if (!fitsPipeline(demand)) {
+				full.add(demand.leg);
+				continue;
+			}
+			it.remove();
+			reserve(demand);
+			ready.add(request);
+		}
+		return ready;
+	}
+
+	private boolean fitsServer(Demand demand) {
+		return demand.endpoints <= 0
+				|| maxEndpointsPerServer <= 0
+				|| demand.server.getEndpointCount()
+						+ demand.server.getReservedCount() + demand.endpoints <= maxEndpointsPerServer;
+	}
+
+	private boolean fitsPipeline(Demand demand) {
+		return demand.endpoints <= 0
+				|| maxEndpointsPerPipeline <= 0
+				|| demand.leg == null
+				|| demand.leg.getEndpointCount()
+						+ demand.leg.getReservedCount() + demand.endpoints <= maxEndpointsPerPipeline;
+	}
+
+	private void reserve(final Demand demand) {
+		if (demand.endpoints <= 0) {
+			return;
+		}
+		final EndpointReservations.Reservation reservation = demand.leg != null ? demand.leg
+				.reserve(demand.endpoints) : demand.server
+				.reserve(demand.endpoints);
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				if (demand.leg != null) {
+					demand.leg.expire(reservation);
+				} else {
+					demand.server.expire(reservation);
+				}
+			}
+		}, reserveMillis, TimeUnit.MILLISECONDS);
+	}
+
+	private void run(List<Waiting> ready) {
+		for (final Waiting request : ready) {
+			admitted.incrementAndGet();
+			waits.recordSince(request.since);
+			carryOut(request.demand, request.callback);
+		}
+	}
+
+	private void carryOut(final Demand demand, final Callback callback) {
+		workers.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					callback.admitted();
+				} catch (final RuntimeException e) {
+					failed.incrementAndGet();
+					log.warn("Admitted {} but it failed", demand, e);
+					callback.rejected("failed");
+				}
+			}
+		});
+	}
+
+	/**
+	 * @return the requests waiting for room
+	 */
+	public int getQueueLength() {
+		synchronized (queue) {
+			return queue.size();
+		}
+	}
+
+	/**
+	 * @return how many requests were admitted, queued, rejected, rejected
+	 *         for waiting too long, and failed once admitted
+	 */
+	public Map<String, Long> getCounts() {
+		final Map<String, Long> counts = new LinkedHashMap<>();
+		counts.put("admitted", admitted.get());
+		counts.put("queued", queued.get());
+		counts.put("rejected", rejected.get());
+		counts.put("timedOut", timedOut.get());
+		counts.put("failed", failed.get());
+		return counts;
+	}
+
+	/**
+	 * @return how long requests waited for admission, including those that
+	 *         did not wait at all
+	 */
+	public LatencyHistogram getWaits() {
+		return waits;
+	}
+
+}
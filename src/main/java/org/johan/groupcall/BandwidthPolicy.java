@@ -0,0 +1,92 @@
+package org.johan.groupcall;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Decides how much video bandwidth each forwarded stream of a mesh room may
+ * use. A subscriber's budget is shared by the streams it receives, and the
+ * room's budget by all the streams the media server forwards in the room, so
+ * the caps go down as the room fills up. The admin's stream weighs more than
+ * the others in both shares.
+ */
+public class BandwidthPolicy {
+
+	/** Video a subscriber may receive in total, 0 for no limit */
+	@Value("${bandwidth.subscriberKbps:0}")
+	private int subscriberKbps;
+
+	/** Video the media servers may send in one room, 0 for no limit */
+	@Value("${bandwidth.roomKbps:0}")
+	private int roomKbps;
+
+	@Value("${bandwidth.minKbps:100}")
+	private int minKbps;
+
+	@Value("${bandwidth.maxKbps:1500}")
+	private int maxKbps;
+
+	@Value("${bandwidth.presenterWeight:3}")
+	private int presenterWeight;
+
+	/**
+	 * @return false if there is no budget to share, in which case endpoints
+	 *         keep the media server's defaults
+	 */
+	public boolean isEnabled() {
+		return subscriberKbps > 0 || roomKbps > 0;
+	}
+
+	/**
+	 * @return the share of the budgets a publisher's stream gets
+	 */
+	public int weightOf(UserSession publisher) {
+		return publisher.isAdmin() ? presenterWeight : 1;
+	}
+
+	/**
+	 * @param weight
+	 *            the weight of the publisher
+	 * @param subscriberWeight
+	 *            the weights of all the streams the subscriber receives
+	 * @param roomWeight
+	 *            the weights of all the streams forwarded in the room, each
+	 *            counted once per subscriber
+	 * @return the cap in kbps of one stream to one subscriber
+	 */
+	public int streamKbps(int weight, int subscriberWeight, int roomWeight) {
+		long kbps = maxKbps;
+		if (subscriberKbps > 0 && subscriberWeight > 0) {
+			kbps = Math.min(kbps, (long) subscriberKbps * weight
+					/ subscriberWeight);
+		}
+		if (roomKbps > 0 && roomWeight > 0) {
+			kbps = Math.min(kbps, (long) roomKbps * weight / roomWeight);
+		}
+		return (int) Math.max(minKbps, kbps);
+	}
+
+	public int getMaxKbps() {
+		return maxKbps;
+	}
+
+	public void setSubscriberKbps(int subscriberKbps) {
+		this.subscriberKbps = subscriberKbps;
+	}
+
+	public void setRoomKbps(int roomKbps) {
+		this.roomKbps = roomKbps;
+	}
+
+	public void setMinKbps(int minKbps) {
+		this.minKbps = minKbps;
+	}
+
+	public void setMaxKbps(int maxKbps) {
+		this.maxKbps = maxKbps;
+	}
+
+	public void setPresenterWeight(int presenterWeight) {
+		this.presenterWeight = presenterWeight;
+	}
+
+}
@@ -1,6 +1,12 @@
 package org.johan.groupcall;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -10,8 +16,6 @@ import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 import org.springframework.web.socket.handler.TextWebSocketHandler;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
 import com.google.gson.JsonObject;
 
 public class CallHandler extends TextWebSocketHandler {
@@ -19,55 +23,98 @@ public class CallHandler extends TextWebSocketHandler {
 	private static final Logger log = LoggerFactory
 			.getLogger(CallHandler.class);
 
-	private static final Gson gson = new GsonBuilder().create();
-
 	@Autowired
 	private RoomManager roomManager;
 
 	@Autowired
 	private UserRegistry registry;
 
-	/* ****************************************************************************************
-	 * FIXME!  In a REALWORLD APP, We have to change name-id to something else, because one can rejoin so fast, 
-	 * that the server is still processing the name-to-session registry and get strange results!
-	 * ****************************************************************************************
-	 */
-	
+	@Autowired
+	private MessageCounters counters;
+
+	@Autowired
+	private JoinTracer tracer;
+
+	@Autowired
+	private SessionResumption resumption;
+
+	@Autowired
+	private AdmissionControl admission;
+
 	@Override
 	public void handleTextMessage(WebSocketSession session, TextMessage message)
 			throws Exception {
-		final JsonObject jsonMessage = gson.fromJson(message.getPayload(),
-				JsonObject.class);
-
 		final UserSession user = registry.getBySession(session);
 
 		if (user != null) {
 			log.debug("Incoming message from user '{}': {}", user.getName(),
-					jsonMessage);
+					message.getPayload());
 		} else {
-			log.debug("Incoming message from new user: {}", jsonMessage);
+			log.debug("Incoming message from new user: {}",
+					message.getPayload());
 		}
 
-		switch (jsonMessage.get("id").getAsString()) {
-		case "joinRoom":
-			joinRoom(jsonMessage, session);
+		final SignalingCommand command = SignalingDecoder.decode(message
+				.getPayload());
+		if (command == null) {
+			counters.countIn(MessageCounters.INVALID);
+			return;
+		}
+		counters.countIn(command.getType().getId());
+		if (user == null
+				&& command.getType() != SignalingCommand.Type.JOIN_ROOM
+				&& command.getType() != SignalingCommand.Type.RESUME_SESSION) {
+			log.debug("Ignoring {} from a session that has not joined",
+					command.getType().getId());
+			return;
+		}
+
+		switch (command.getType()) {
+		case JOIN_ROOM:
+			joinRoom((SignalingCommand.JoinRoom) command, session);
+			break;
+		case RESUME_SESSION:
+			resumeSession(((SignalingCommand.ResumeSession) command).getToken(),
+					session);
 			break;
-		case "receiveVideoFrom":
-			final String senderName = jsonMessage.get("sender").getAsString();
-			final UserSession sender = registry.getByName(senderName);
-			final String sdpOffer = jsonMessage.get("sdpOffer").getAsString();
-			user.receiveVideoFrom(sender, sdpOffer);
+		case RECEIVE_VIDEO_FROM:
+			final SignalingCommand.ReceiveVideoFrom receive = (SignalingCommand.ReceiveVideoFrom) command;
+			// Names are unique within a room only
+			final UserSession sender = roomManager.getRoom(
+					user.getRoomName()).getParticipant(receive.getSender());
+			if (sender == null) {
+				log.debug("USER {}: {} is not in room {}", user.getName(),
+						receive.getSender(), user.getRoomName());
+				break;
+			}
+			user.receiveVideoFrom(sender, receive.getSdpOffer(), tracer.start(
+					JoinTrace.Kind.RECEIVE_VIDEO, user.getName(),
+					receive.getSender()));
 			break;
-		case "leaveRoom":
+		case RECEIVE_MIX:
+			user.receiveMix(((SignalingCommand.ReceiveMix) command)
+					.getSdpOffer());
+			break;
+		case LEAVE_ROOM:
 			leaveRoom(user);
 			break;
-		case "changeVisibility":
+		case CHANGE_VISIBILITY:
 			changeVisibility(user);
 			break;
-		case "chat":
-			final String text = jsonMessage.get("text").getAsString();
-			final String room = jsonMessage.get("room").getAsString();
-			sendChatMessage(user, text, room);
+		case ON_ICE_CANDIDATE:
+			addIceCandidates(user,
+					((SignalingCommand.IceCandidates) command).getCandidates());
+			break;
+		case CHAT_HISTORY:
+			roomManager.getRoom(user.getRoomName()).sendChatHistory(user,
+					((SignalingCommand.ChatHistory) command).getBefore());
+			break;
+		case SPEAKING:
+			roomManager.getRoom(user.getRoomName()).speaking(user);
+			break;
+		case CHAT:
+			final SignalingCommand.Chat chat = (SignalingCommand.Chat) command;
+			sendChatMessage(user, chat.getText(), user.getRoomName());
 			break;
 		default:
 			break;
@@ -77,47 +124,228 @@ public class CallHandler extends TextWebSocketHandler {
 
 	private void sendChatMessage(UserSession chatMsgSender, String text, String roomStr) {
 		Room room = roomManager.getRoom(roomStr);
-		if (text != null && text.equals("testdisable")) {
-			chatMsgSender.getOutgoingWebRtcPeer().getMediaSinks().get(0).release();
-		} else {
-			room.distributeChatMessage(chatMsgSender, text);			
-		}
+		room.distributeChatMessage(chatMsgSender, text);
 	}
 
 
+	/**
+	 * Hands the candidates to the user's endpoints, one call per endpoint.
+	 */
+	private void addIceCandidates(UserSession user,
+			List<SignalingCommand.Candidate> candidates) {
+		final Map<String, List<IceCandidate>> byEndpoint = new HashMap<>();
+		for (final SignalingCommand.Candidate candidate : candidates) {
+			final String endpoint = candidate.getName() != null ? candidate
+					.getName() : IceCandidateExchange.MIX;
+			List<IceCandidate> list = byEndpoint.get(endpoint);
+			if (list == null) {
+				list = new ArrayList<>();
+				byEndpoint.put(endpoint, list);
+			}
+			list.add(candidate.getCandidate());
+		}
+		for (final Map.Entry<String, List<IceCandidate>> entry : byEndpoint
+				.entrySet()) {
+			user.addIceCandidates(entry.getKey(), entry.getValue());
+		}
+	}
+
 	@Override
 	public void afterConnectionClosed(WebSocketSession session,
 			CloseStatus status) throws Exception {
-		UserSession user = registry.removeBySession(session);
-		if (user != null) {
-			roomManager.getRoom(user.getRoomName()).leave(user);
-			
+		final UserSession user = registry.removeBySession(session);
+		if (user == null) {
+			return;
 		}
+		final Room room = roomManager.getRoom(user.getRoomName());
+		// Only a connection that dropped is worth waiting for; a client that
+		// closed it, or was dropped for being too slow, is gone
+		final int code = status.getCode();
+		if (code != CloseStatus.NORMAL.getCode()
+				&& code != CloseStatus.GOING_AWAY.getCode()
+				&& code != CloseStatus.SESSION_NOT_RELIABLE.getCode()
+				&& room.getParticipant(user.getName()) == user
+				&& resumption.hold(user, new Runnable() {
+					@Override
+					public void run() {
+						try {
+							leaveRoom(user);
+						} catch (final IOException e) {
+							log.warn("USER {}: could not leave room {}",
+									user.getName(), user.getRoomName(), e);
+						}
+					}
+				})) {
+			log.info("USER {}: connection lost ({}), waiting for it to resume",
+					user.getName(), status);
+			return;
+		}
+		resumption.revoke(user);
+		room.leave(user);
 	}
 
-	private void joinRoom(JsonObject params, WebSocketSession session)
+	/**
+	 * Moves a user whose connection dropped to the client's new connection.
+	 * Its endpoints and its place in the room are untouched, so neither the
+	 * client nor the others have anything to renegotiate. If the user is
+	 * gone, the client is told to join again.
+	 */
+	private void resumeSession(String token, WebSocketSession session)
 			throws IOException {
-		final String roomName = params.get("room").getAsString();
-		final String name = params.get("name").getAsString();
+		final JsonObject failed = new JsonObject();
+		failed.addProperty("id", "resumeFailed");
+		final UserSession user = resumption.resume(token);
+		final WebSocketSession previous = user != null ? user.getSession()
+				: null;
+		if (user == null
+				|| roomManager.getRoom(user.getRoomName()).getParticipant(
+						user.getName()) != user) {
+			log.info("Session {}: nothing to resume", session.getId());
+			session.sendMessage(CompactFraming.message(session, failed));
+			return;
+		}
+		// Its close, if it comes later, must not find the user any more
+		registry.removeBySession(previous);
+		if (!user.rebind(session)) {
+			log.info("USER {}: messages lost while away, cannot resume",
+					user.getName());
+			leaveRoom(user);
+			session.sendMessage(CompactFraming.message(session, failed));
+			return;
+		}
+		registry.register(user);
+		if (previous.isOpen()) {
+			previous.close(CloseStatus.NORMAL);
+		}
+		log.info("USER {}: session resumed", user.getName());
+		sendResumeToken(user, "sessionResumed");
+	}
+
+	/**
+	 * @param messageId
+	 *            "resumeToken" on join, "sessionResumed" on resume
+	 */
+	private void sendResumeToken(UserSession user, String messageId) {
+		if (!resumption.isEnabled()) {
+			return;
+		}
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", messageId);
+		message.addProperty("token", resumption.issue(user));
+		user.sendMessage(message);
+	}
+
+	private void joinRoom(final SignalingCommand.JoinRoom params,
+			final WebSocketSession session) throws IOException {
+		final String roomName = params.getRoom();
+		final String name = params.getName();
 		log.info("PARTICIPANT {}: trying to join room {}", name, roomName);
 
-		Room room = roomManager.getRoom(roomName);
-		final UserSession user = room.join(name, session);
-		registry.register(user);
+		final String owner = roomManager.redirectFor(roomName);
+		if (owner != null) {
+			log.info("PARTICIPANT {}: room {} is hosted by {}, redirecting",
+					name, roomName, owner);
+			final JsonObject redirect = new JsonObject();
+			redirect.addProperty("id", "redirect");
+			redirect.addProperty("room", roomName);
+			redirect.addProperty("url", owner);
+			session.sendMessage(CompactFraming.message(session, redirect));
+			return;
+		}
+
+		final AdmissionControl.Demand demand = roomManager.estimateJoin(
+				roomName, name, params.isResume());
+		if (demand == null) {
+			sendJoinRejected(session, name, roomName, "noMediaServer");
+			return;
+		}
+		admission.admit(demand, new AdmissionControl.Callback() {
+
+			@Override
+			public void admitted() {
+				if (!session.isOpen()) {
+					log.info("PARTICIPANT {}: gone before admitted to room {}",
+							name, roomName);
+					return;
+				}
+				final JoinTrace trace = tracer.start(
+						JoinTrace.Kind.JOIN, name, roomName);
+				final UserSession user;
+				try {
+					user = roomManager.joinRoom(roomName,
+							params.getMode(), name, session, trace,
+							params.isResume());
+				} catch (final RuntimeException e) {
+					trace.fail();
+					throw e;
+				}
+				registry.register(user);
+				sendResumeToken(user, "resumeToken");
+			}
+
+			@Override
+			public void rejected(String reason) {
+				sendJoinRejected(session, name, roomName, reason);
+			}
+		});
+	}
+
+	/**
+	 * @param reason
+	 *            see {@link AdmissionControl.Callback#rejected(String)}, or
+	 *            "noMediaServer" if no media server takes new rooms
+	 */
+	private void sendJoinRejected(WebSocketSession session, String name,
+			String roomName, String reason) {
+		final JsonObject rejected = new JsonObject();
+		rejected.addProperty("id", "joinRejected");
+		rejected.addProperty("room", roomName);
+		rejected.addProperty("reason", reason);
+		try {
+			session.sendMessage(CompactFraming.message(session, rejected));
+		} catch (final IOException e) {
+			log.debug("PARTICIPANT {}: could not be told the join was rejected",
+					name, e);
+		}
 	}
 
 	private void leaveRoom(UserSession user) throws IOException {
+		resumption.revoke(user);
 		final Room room = roomManager.getRoom(user.getRoomName());
+		// An empty room is kept for a while, see RoomManager.reapIdleRooms
 		room.leave(user);
-		if (room.getParticipants().isEmpty()) {
-			roomManager.removeRoom(room);
-		}
 	}
 	
 
-	private void changeVisibility(UserSession user) {
+	/**
+	 * Toggles whether a user publishes. Starting to publish adds endpoints,
+	 * so it goes through admission; stopping frees them.
+	 */
+	private void changeVisibility(final UserSession user) {
 		final Room room = roomManager.getRoom(user.getRoomName());
-		room.updateVisibilityFor(user);
+		if (user.isVisible()) {
+			room.updateVisibilityFor(user);
+			return;
+		}
+		admission.admit(room.estimatePublish(user),
+				new AdmissionControl.Callback() {
+
+					@Override
+					public void admitted() {
+						// Unless it left or toggled again while waiting
+						if (room.getParticipant(user.getName()) == user
+								&& !user.isVisible()) {
+							room.updateVisibilityFor(user);
+						}
+					}
 
+					@Override
+					public void rejected(String reason) {
+						final JsonObject rejected = new JsonObject();
+						rejected.addProperty("id", "publishRejected");
+						rejected.addProperty("reason", reason);
+						user.sendMessage(rejected);
+					}
+				});
 	}
 }
@@ -0,0 +1,169 @@
+package org.johan.groupcall;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * The latest chat messages of a room in a ring buffer. The oldest messages
+ * are dropped when the buffer is full or the messages in it take more than
+ * the memory budget. Every message has a sequence number, which clients use
+ * as the cursor for paging back.
+ */
+public class ChatLog {
+
+	/** SimpleDateFormat is not thread-safe */
+	private static final ThreadLocal<SimpleDateFormat> TIME_FORMAT = new ThreadLocal<SimpleDateFormat>() {
+		@Override
+		protected SimpleDateFormat initialValue() {
+			return new SimpleDateFormat("HH:mm:ss");
+		}
+	};
+
+	/** Rough size of an entry besides its strings */
+	private static final int ENTRY_OVERHEAD = 64;
+
+	public static final class Entry {
+		private final long seq;
+		private final String sender;
+		private final String time;
+		private final String text;
+		private final int size;
+
+		Entry(long seq, String sender, String time, String text) {
+			this.seq = seq;
+			this.sender = sender;
+			this.time = time;
+			this.text = text;
+			this.size = ENTRY_OVERHEAD
+					+ 2 * (sender.length() + time.length() + text.length());
+		}
+
+		public long getSeq() {
+			return seq;
+		}
+
+		public String getSender() {
+			return sender;
+		}
+
+		public String getTime() {
+			return time;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	private final Entry[] ring;
+	private final long maxBytes;
+	/** Index of the oldest entry */
+	private int head = 0;
+	private int count = 0;
+	private long bytes = 0;
+	private long nextSeq = 1;
+
+	/**
+	 * @param capacity
+	 *            messages kept at most, 0 to keep none
+	 * @param maxBytes
+	 *            memory the kept messages may take, 0 for no limit
+	 */
+	public ChatLog(int capacity, long maxBytes) {
+		this.ring = new Entry[Math.max(0, capacity)];
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * @return the current time the way chat messages show it
+	 */
+	public static String now() {
+		return TIME_FORMAT.get().format(new Date());
+	}
+
+	public synchronized Entry append(String sender, String time, String text) {
+		final Entry entry = new Entry(nextSeq++, sender, time, text);
+		if (ring.length == 0) {
+			return entry;
+		}
+		if (count == ring.length) {
+			dropOldest();
+		}
+		ring[(head + count) % ring.length] = entry;
+		count++;
+		bytes += entry.size;
+		while (maxBytes > 0 && bytes > maxBytes && count > 1) {
+			dropOldest();
+		}
+		return entry;
+	}
+
+	private void dropOldest() {
+		bytes -= ring[head].size;
+		ring[head] = null;
+		head = (head + 1) % ring.length;
+		count--;
+	}
+
+	/**
+	 * @param before
+	 *            the cursor: only messages older than this sequence number,
+	 *            or 0 for the latest ones
+	 * @param limit
+	 *            messages at most
+	 * @return the page, oldest first
+	 */
+	public synchronized List<Entry> page(long before, int limit) {
+		int end = count;
+		if (before > 0) {
+			while (end > 0 && ring[(head + end - 1) % ring.length].seq >= before) {
+				end--;
+			}
+		}
+		final int start = Math.max(0, end - limit);
+		final List<Entry> page = new ArrayList<>(end - start);
+		for (int i = start; i < end; i++) {
+			page.add(ring[(head + i) % ring.length]);
+		}
+		return page;
+	}
+
+	/**
+	 * @return a chatHistory message with a page of {@link #page(long, int)}.
+	 *         Its "before" is the cursor for the page before it, missing if
+	 *         there is none.
+	 */
+	public JsonObject pageMessage(long before, int limit) {
+		final List<Entry> page = page(before, limit);
+		final JsonArray messages = new JsonArray();
+		for (final Entry entry : page) {
+			final JsonObject message = new JsonObject();
+			message.addProperty("seq", entry.seq);
+			message.addProperty("sender", entry.sender);
+			message.addProperty("time", entry.time);
+			message.addProperty("text", entry.text);
+			messages.add(message);
+		}
+		final JsonObject history = new JsonObject();
+		history.addProperty("id", "chatHistory");
+		history.add("messages", messages);
+		if (!page.isEmpty() && page.get(0).seq > oldestSeq()) {
+			history.addProperty("before", page.get(0).seq);
+		}
+		return history;
+	}
+
+	private synchronized long oldestSeq() {
+		return count == 0 ? 0 : ring[head].seq;
+	}
+
+	public synchronized int size() {
+		return count;
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Where this signaling node fits among its peers. Nodes are known by the
+ * URL clients connect to, e.g. {@code ws://10.0.0.1:8086/groupcall}.
+ * Without {@code cluster.nodes} the node runs alone and owns every room.
+ */
+public class ClusterSettings {
+
+	@Value("${cluster.self:local}")
+	private String self;
+
+	/** Comma separated URLs of all signaling nodes, this one included */
+	@Value("${cluster.nodes:}")
+	private String nodesSpec;
+
+	public String getSelf() {
+		return self;
+	}
+
+	public List<String> getNodes() {
+		final List<String> nodes = new ArrayList<>();
+		for (final String node : nodesSpec.split(",")) {
+			if (!node.trim().isEmpty()) {
+				nodes.add(node.trim());
+			}
+		}
+		return nodes;
+	}
+
+}
@@ -0,0 +1,108 @@
+package org.johan.groupcall;
+
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * Short message ids for clients that connect with {@code ?framing=compact}.
+ * Such clients send the codes of {@link SignalingCommand.Type} and get the
+ * server messages with the one letter codes below; an id without a code is
+ * sent in full, so a client must accept both. The rest of a message is
+ * unchanged, its bulk (SDP and candidates) is left to permessage-deflate.
+ *
+ * Messages sent before a user exists, such as {@code redirect}, are written
+ * straight to the session; use {@link #message(WebSocketSession, JsonObject)}
+ * for those so that they are framed like the rest.
+ */
+public final class CompactFraming {
+
+	public static final String QUERY = "framing=compact";
+
+	private static final Map<String, String> CODES;
+
+	static {
+		final Map<String, String> codes = new HashMap<>();
+		codes.put("existingParticipants", "E");
+		codes.put("newParticipantArrived", "N");
+		codes.put("participantLeft", "L");
+		codes.put("receiveVideoAnswer", "A");
+		codes.put("receiveMixAnswer", "X");
+		codes.put("iceCandidate", "I");
+		codes.put("updateVisibility", "V");
+		codes.put("chatMessageReceived", "C");
+		codes.put("chatHistory", "H");
+		codes.put("roomModeChanged", "M");
+		codes.put("activeSet", "S");
+		codes.put("resumeToken", "T");
+		codes.put("sessionResumed", "R");
+		codes.put("resumeFailed", "F");
+		codes.put("redirect", "D");
+		codes.put("joinRejected", "J");
+		codes.put("publishRejected", "P");
+		CODES = Collections.unmodifiableMap(codes);
+	}
+
+	private CompactFraming() {
+	}
+
+	/**
+	 * @return true if the client connected asking for compact framing
+	 */
+	public static boolean isRequestedBy(WebSocketSession session) {
+		final URI uri = session.getUri();
+		final String query = uri != null ? uri.getRawQuery() : null;
+		if (query == null) {
+			return false;
+		}
+		for (final String parameter : query.split("&")) {
+			if (parameter.equals(QUERY)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the message serialized for the session, with its id replaced
+	 *         by its code if the client asked for compact framing
+	 */
+	public static TextMessage message(WebSocketSession session,
+			JsonObject message) {
+		final String payload = message.toString();
+		if (!isRequestedBy(session)) {
+			return new TextMessage(payload);
+		}
+		final JsonElement id = message.get("id");
+		return new TextMessage(compact(id != null ? id.getAsString() : null,
+				payload));
+	}
+
+	/**
+	 * @param payload
+	 *            a serialized message whose id is {@code id}
+	 * @return the payload with the id replaced by its code, or the payload
+	 *         itself if the id has none
+	 */
+	public static String compact(String id, String payload) {
+		final String code = id != null ? CODES.get(id) : null;
+		if (code == null) {
+			return payload;
+		}
+		final String field = "\"id\":\"" + id + "\"";
+		final int at = payload.indexOf(field);
+		if (at < 0) {
+			return payload;
+		}
+		return payload.substring(0, at) + "\"id\":\"" + code + "\""
+				+ payload.substring(at + field.length());
+	}
+
+}
@@ -0,0 +1,204 @@
+package org.johan.groupcall;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaElement;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The {@link Composite} of a room in composite mode, living on the room's
+ * primary leg. Each participant has one {@link HubPort}: its input takes the
+ * participant's outgoing media while visible, its output is the mix the
+ * participant receives.
+ */
+public class CompositeHub {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(CompositeHub.class);
+
+	private final String roomName;
+	private final RoomLeg leg;
+	private final KurentoTaskQueue tasks;
+	private final EndpointLedger ledger;
+
+	// Only touched from tasks
+	private Composite composite;
+	private final Map<String, HubPort> ports = new HashMap<>();
+	private final Map<String, MediaRelay> mixRelays = new HashMap<>();
+
+	public CompositeHub(String roomName, RoomLeg leg, EndpointLedger ledger) {
+		this.roomName = roomName;
+		this.leg = leg;
+		this.ledger = ledger;
+		this.tasks = new KurentoTaskQueue("HUB " + roomName);
+	}
+
+	public RoomLeg getLeg() {
+		return leg;
+	}
+
+	/**
+	 * Calls back with the participant's port, building the hub and the port
+	 * as needed.
+	 */
+	public void port(final String participant,
+			final Continuation<? super HubPort> continuation) {
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(final Runnable done) {
+				if (composite != null) {
+					buildPort(participant, continuation, done);
+					return;
+				}
+				leg.getServer().getClient().createComposite(leg.getPipeline(),
+						new Continuation<Composite>() {
+
+							@Override
+							public void onSuccess(Composite result)
+									throws Exception {
+								log.debug("HUB {}: composite ready", roomName);
+								composite = ledger.register(leg,
+										result, "composite of " + roomName);
+								buildPort(participant, continuation, done);
+							}
+
+							@Override
+							public void onError(Throwable cause)
+									throws Exception {
+								log.warn("HUB {}: Could not build composite",
+										roomName, cause);
+								fail(continuation, cause, done);
+							}
+						});
+			}
+		});
+	}
+
+	private void buildPort(final String participant,
+			final Continuation<? super HubPort> continuation,
+			final Runnable done) {
+		final HubPort existing = ports.get(participant);
+		if (existing != null) {
+			succeed(continuation, existing, done);
+			return;
+		}
+		leg.getServer().getClient().createHubPort(composite,
+				new Continuation<HubPort>() {
+
+					@Override
+					public void onSuccess(HubPort result) throws Exception {
+						ports.put(participant, ledger.register(leg,
+								result, "hub port of " + participant));
+						succeed(continuation, result, done);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						log.warn("HUB {}: Could not build port for {}", roomName,
+								participant, cause);
+						fail(continuation, cause, done);
+					}
+				});
+	}
+
+	/**
+	 * Calls back with the mix for a participant on another leg, relayed to
+	 * that leg.
+	 */
+	public void relayedMix(final UserSession participant,
+			final Continuation<MediaElement> continuation) {
+		port(participant.getName(), new Continuation<HubPort>() {
+
+			@Override
+			public void onSuccess(final HubPort port) throws Exception {
+				tasks.submit(new KurentoTaskQueue.Task() {
+					@Override
+					public void run(Runnable done) {
+						MediaRelay relay = mixRelays.get(participant.getName());
+						if (relay == null) {
+							relay = new MediaRelay("mix of "
+									+ participant.getName(), leg,
+									participant.getLeg(), ledger);
+							mixRelays.put(participant.getName(), relay);
+							relay.start(port);
+						}
+						done.run();
+						relay.whenReady(continuation);
+					}
+				});
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				continuation.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Releases a participant's port, and the relay of its mix if any.
+	 */
+	public void removePort(final String participant) {
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(Runnable done) {
+				ledger.release(ports.remove(participant));
+				final MediaRelay relay = mixRelays.remove(participant);
+				if (relay != null) {
+					relay.release();
+				}
+				done.run();
+			}
+		});
+	}
+
+	/**
+	 * Releases all ports, relays and the composite itself.
+	 */
+	public void release() {
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(Runnable done) {
+				for (final HubPort port : ports.values()) {
+					ledger.release(port);
+				}
+				ports.clear();
+				for (final MediaRelay relay : mixRelays.values()) {
+					relay.release();
+				}
+				mixRelays.clear();
+				ledger.release(composite);
+				composite = null;
+				done.run();
+			}
+		});
+	}
+
+	private <T> void succeed(Continuation<? super T> continuation, T result,
+			Runnable done) {
+		try {
+			continuation.onSuccess(result);
+		} catch (final Exception e) {
+			log.warn("HUB {}: callback failed", roomName, e);
+		} finally {
+			done.run();
+		}
+	}
+
+	private void fail(Continuation<?> continuation, Throwable cause,
+			Runnable done) {
+		try {
+			continuation.onError(cause);
+		} catch (final Exception e) {
+			log.warn("HUB {}: callback failed", roomName, e);
+		} finally {
+			done.run();
+		}
+	}
+
+}
@@ -0,0 +1,110 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
+import org.springframework.web.socket.server.support.DefaultHandshakeHandler;
+
+/**
+ * Accepts permessage-deflate whenever the container supports it. The default
+ * handler only accepts an offer equal to a supported extension, parameters
+ * included, so the {@code client_max_window_bits} browsers add keeps
+ * compression off.
+ *
+ * Of several offers the first that lets the server keep its compression
+ * context across frames is taken: SDP and roster messages repeat the same
+ * text from frame to frame, and that is where deflate pays off.
+ *
+ * The response is not the offer echoed back (RFC 7692 §7.1.2.2 forbids a
+ * {@code client_max_window_bits} without a value there): it only carries the
+ * context takeover parameters of the offer. The window bits are left out, so
+ * both sides use the full window, and an offer that limits the server's
+ * window is declined, since the container always uses the full one.
+ */
+public class DeflateHandshakeHandler extends DefaultHandshakeHandler {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(DeflateHandshakeHandler.class);
+
+	public static final String PERMESSAGE_DEFLATE = "permessage-deflate";
+
+	public static final String SERVER_NO_CONTEXT_TAKEOVER = "server_no_context_takeover";
+
+	public static final String CLIENT_NO_CONTEXT_TAKEOVER = "client_no_context_takeover";
+
+	public static final String SERVER_MAX_WINDOW_BITS = "server_max_window_bits";
+
+	/** The window the container compresses with */
+	private static final String FULL_WINDOW_BITS = "15";
+
+	@Override
+	protected List<WebSocketExtension> filterRequestedExtensions(
+			ServerHttpRequest request, List<WebSocketExtension> requested,
+			List<WebSocketExtension> supported) {
+		final List<WebSocketExtension> accepted = new ArrayList<>();
+		WebSocketExtension deflate = null;
+		for (final WebSocketExtension extension : requested) {
+			if (!PERMESSAGE_DEFLATE.equals(extension.getName())) {
+				if (supported.contains(extension)) {
+					accepted.add(extension);
+				}
+			} else if (isAcceptable(extension)
+					&& (deflate == null || (deflate.getParameters()
+							.containsKey(SERVER_NO_CONTEXT_TAKEOVER) && !extension
+							.getParameters().containsKey(
+									SERVER_NO_CONTEXT_TAKEOVER)))) {
+				deflate = extension;
+			}
+		}
+		if (deflate != null && isSupported(supported)) {
+			final WebSocketExtension response = respond(deflate);
+			accepted.add(response);
+			log.trace("Accepting {} {} as {} from {}", PERMESSAGE_DEFLATE,
+					deflate.getParameters(), response.getParameters(),
+					request.getURI());
+		}
+		return accepted;
+	}
+
+	/**
+	 * Whether the container can compress as an offer asks: it always uses the
+	 * full window, so an offer limiting the server's window is declined.
+	 */
+	private static boolean isAcceptable(WebSocketExtension offer) {
+		final Map<String, String> parameters = offer.getParameters();
+		return !parameters.containsKey(SERVER_MAX_WINDOW_BITS)
+				|| FULL_WINDOW_BITS.equals(parameters
+						.get(SERVER_MAX_WINDOW_BITS));
+	}
+
+	/**
+	 * The extension answering an offer, with only the context takeover
+	 * parameters it asked for.
+	 */
+	private static WebSocketExtension respond(WebSocketExtension offer) {
+		final Map<String, String> parameters = new LinkedHashMap<>();
+		for (final String name : new String[] { SERVER_NO_CONTEXT_TAKEOVER,
+				CLIENT_NO_CONTEXT_TAKEOVER }) {
+			if (offer.getParameters().containsKey(name)) {
+				parameters.put(name, null);
+			}
+		}
+		return new WebSocketExtension(PERMESSAGE_DEFLATE, parameters);
+	}
+
+	private static boolean isSupported(List<WebSocketExtension> supported) {
+		for (final WebSocketExtension extension : supported) {
+			if (PERMESSAGE_DEFLATE.equals(extension.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.johan.groupcall;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Owns every media element a room creates: endpoints, relay ends, the hub
+ * and its ports. Elements are registered when built and released through
+ * the ledger, which keeps the load count of their media server in step.
+ * 
+ * {@link #reconcile(Collection)} compares the ledger with the children of the
+ * room's pipelines and releases whatever nobody owns any more.
+ */
+public class EndpointLedger {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(EndpointLedger.class);
+
+	private static final class Entry {
+		private final RoomLeg leg;
+		private final String what;
+
+		private Entry(RoomLeg leg, String what) {
+			this.leg = leg;
+			this.what = what;
+		}
+	}
+
+	private final String roomName;
+	private final ConcurrentMap<String, Entry> live = new ConcurrentHashMap<>();
+
+	/**
+	 * Unknown children seen by the last reconciliation. They are only
+	 * released when seen twice, so that an element whose build callback has
+	 * not run yet is not mistaken for an orphan.
+	 */
+	private Set<String> suspects = Collections.emptySet();
+
+	private final AtomicLong released = new AtomicLong();
+	private final AtomicLong leaked = new AtomicLong();
+
+	/** Set on shutdown, when the elements are left for the next run */
+	private volatile boolean detached = false;
+
+	public EndpointLedger(String roomName) {
+		this.roomName = roomName;
+	}
+
+	/**
+	 * Records a newly built element. One built after its leg was retired, in
+	 * a pipeline that may already belong to another room, is released
+	 * instead.
+	 * 
+	 * @param leg
+	 *            the part of the room whose pipeline it lives in
+	 * @param object
+	 * @param what
+	 *            a description for the logs
+	 * @return the object
+	 */
+	public <T extends MediaObject> T register(RoomLeg leg, T object,
+			String what) {
+		synchronized (leg) {
+			if (!leg.isRetired()) {
+				leg.endpointCreated();
+				live.put(object.getId(), new Entry(leg, what));
+				log.trace("ROOM {}: registered {}", roomName, what);
+				return object;
+			}
+		}
+		log.debug("ROOM {}: {} built after its pipeline was given back",
+				roomName, what);
+		if (!detached) {
+			release(leg, object, what);
+		}
+		return object;
+	}
+
+	/**
+	 * Releases an element registered in this ledger. Releasing it twice is
+	 * harmless.
+	 * 
+	 * @param object
+	 *            may be null
+	 */
+	public void release(MediaObject object) {
+		if (object == null) {
+			return;
+		}
+		final Entry entry = live.remove(object.getId());
+		if (entry == null) {
+			return;
+		}
+		entry.leg.endpointReleased();
+		if (detached) {
+			log.trace("ROOM {}: left {} behind", roomName, entry.what);
+			return;
+		}
+		released.incrementAndGet();
+		release(entry.leg, object, entry.what);
+	}
+
+	private void release(RoomLeg leg, MediaObject object, final String what) {
+		leg.getServer().getReleases().release(object,
+				new Continuation<Void>() {
+
+					@Override
+					public void onSuccess(Void result) throws Exception {
+						log.trace("ROOM {}: released {}", roomName, what);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						log.warn("ROOM {}: could not release {}", roomName,
+								what);
+					}
+				});
+	}
+
+	/**
+	 * Releases the children of the room's pipelines that are not in the
+	 * ledger, through the release scheduler of their media server. Listing
+	 * the children blocks on the media server, so it must not run on a
+	 * signaling thread.
+	 * 
+	 * @param legs
+	 *            the parts of the room
+	 * @return the number of orphans released
+	 */
+	public int reconcile(Collection<RoomLeg> legs) {
+		final Set<String> unknown = new HashSet<>();
+		int orphans = 0;
+		for (final RoomLeg leg : legs) {
+			final List<MediaObject> children = leg.getPipeline().getChilds();
+			for (final MediaObject child : children) {
+				final String id = child.getId();
+				if (live.containsKey(id)) {
+					continue;
+				}
+				if (suspects.contains(id)) {
+					log.warn("ROOM {}: releasing orphan {} on {}", roomName,
+							id, leg.getServer().getName());
+					release(leg, child, "orphan " + id);
+					leaked.incrementAndGet();
+					orphans++;
+				} else {
+					unknown.add(id);
+				}
+			}
+		}
+		suspects = unknown;
+		return orphans;
+	}
+
+	/**
+	 * @return the elements currently owned
+	 */
+	public int getLiveCount() {
+		return live.size();
+	}
+
+	/**
+	 * @return the orphans found and released by reconciliation
+	 */
+	public long getLeakedCount() {
+		return leaked.get();
+	}
+
+	/**
+	 * @return the elements released through the ledger
+	 */
+	public long getReleasedCount() {
+		return released.get();
+	}
+
+	/**
+	 * Forgets the elements of a leg without releasing them, for when its
+	 * pipeline is released or cleaned as a whole. The leg must be retired
+	 * first, or elements still being built would be registered afterwards.
+	 */
+	public void clear(RoomLeg leg) {
+		final Iterator<Entry> it = live.values().iterator();
+		while (it.hasNext()) {
+			final Entry entry = it.next();
+			if (entry.leg == leg) {
+				entry.leg.endpointReleased();
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * From now on, releasing an element only forgets it, so that it outlives
+	 * this process and can be reattached after a restart.
+	 */
+	public void detach() {
+		detached = true;
+	}
+
+	@Override
+	public String toString() {
+		return "live " + live.size() + ", leaked " + leaked.get()
+				+ ", released " + released.get();
+	}
+
+}
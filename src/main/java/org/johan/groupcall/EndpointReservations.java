@@ -0,0 +1,78 @@
+package org.johan.groupcall;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Endpoints promised to admitted requests but not built yet, see
+ * {@link AdmissionControl}. Each endpoint built uses up the oldest
+ * reservation; whatever a request has left when its reservation expires is
+ * given back.
+ */
+final class EndpointReservations {
+
+	/** One admitted request's endpoints still to be built */
+	static final class Reservation {
+		private int remaining;
+
+		private Reservation(int remaining) {
+			this.remaining = remaining;
+		}
+	}
+
+	/** Guarded by this, oldest first */
+	private final ArrayDeque<Reservation> open = new ArrayDeque<>();
+	private int count = 0;
+
+	synchronized Reservation add(int endpoints) {
+		final Reservation reservation = new Reservation(endpoints);
+		open.addLast(reservation);
+		count += endpoints;
+		return reservation;
+	}
+
+	/**
+	 * Counts a built endpoint against the oldest reservation.
+	 * 
+	 * @return false if nothing was reserved
+	 */
+	synchronized boolean use() {
+		final Reservation oldest = open.peekFirst();
+		if (oldest == null) {
+			return false;
+		}
+		oldest.remaining--;
+		count--;
+		if (oldest.remaining <= 0) {
+			open.pollFirst();
+		}
+		return true;
+	}
+
+	/**
+	 * Gives back what is left of a reservation.
+	 * 
+	 * @return the endpoints given back, 0 if all were built
+	 */
+	synchronized int expire(Reservation reservation) {
+		final int left = reservation.remaining;
+		if (left <= 0) {
+			return 0;
+		}
+		reservation.remaining = 0;
+		count -= left;
+		final Iterator<Reservation> it = open.iterator();
+		while (it.hasNext()) {
+			if (it.next() == reservation) {
+				it.remove();
+				break;
+			}
+		}
+		return left;
+	}
+
+	synchronized int getCount() {
+		return count;
+	}
+
+}
@@ -1,6 +1,7 @@
 package org.johan.groupcall;
 
-import org.kurento.client.factory.KurentoClient;
+import java.util.List;
+
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
 import org.springframework.context.annotation.Bean;
@@ -25,39 +26,124 @@ public class GroupCallApp implements WebSocketConfigurer {
 		return new RoomManager();
 	}
 
+	@Bean
+	public RoomSettings roomSettings() {
+		return new RoomSettings();
+	}
+
+	@Bean
+	public BandwidthPolicy bandwidthPolicy() {
+		return new BandwidthPolicy();
+	}
+
+	/**
+	 * Records the media objects of the rooms in snapshot.file, if set, so
+	 * that a restart can reattach to them.
+	 */
+	@Bean
+	public RoomJournal roomJournal() {
+		return new RoomJournal();
+	}
+
+	@Bean
+	public ClusterSettings clusterSettings() {
+		return new ClusterSettings();
+	}
+
+	/**
+	 * Rooms are spread over the nodes in cluster.nodes if there are any,
+	 * otherwise this node owns them all. The list may only change while no
+	 * rooms are live, see {@link PartitionedRoomDirectory}.
+	 */
+	@Bean
+	public RoomDirectory roomDirectory() {
+		final ClusterSettings cluster = clusterSettings();
+		final List<String> nodes = cluster.getNodes();
+		if (nodes.isEmpty()) {
+			return new LocalRoomDirectory();
+		}
+		if (!nodes.contains(cluster.getSelf())) {
+			throw new IllegalArgumentException("cluster.self "
+					+ cluster.getSelf() + " is not one of cluster.nodes "
+					+ nodes);
+		}
+		return new PartitionedRoomDirectory(nodes);
+	}
+
+	/**
+	 * Holds joins and publishers back while the media servers are full, if
+	 * admission.maxEndpointsPerPipeline or admission.maxEndpointsPerServer
+	 * is set.
+	 */
+	@Bean
+	public AdmissionControl admissionControl() {
+		return new AdmissionControl();
+	}
+
+	@Bean
+	public SessionResumption sessionResumption() {
+		return new SessionResumption();
+	}
+
+	@Bean
+	public OutboundWriter outboundWriter() {
+		return new OutboundWriter();
+	}
+
+	@Bean
+	public MessageCounters messageCounters() {
+		return new MessageCounters();
+	}
+
+	@Bean
+	public GroupCallMetrics groupCallMetrics() {
+		return new GroupCallMetrics();
+	}
+
+	@Bean
+	public MetricsController metricsController() {
+		return new MetricsController();
+	}
+
+	@Bean
+	public JoinTracer joinTracer() {
+		return new JoinTracer();
+	}
+
+	@Bean
+	public AdminController adminController() {
+		return new AdminController();
+	}
+
 	@Bean
 	public CallHandler groupCallHandler() {
 		return new CallHandler();
 	}
 
+	/**
+	 * Negotiates permessage-deflate on /groupcall, so that the SDP and
+	 * roster messages of a join storm go out compressed.
+	 */
 	@Bean
-	public static KurentoClient kurentoClient() {
-		
-		// Bridged solution (IP for Ubuntu64New) also under name: johaniv
-		return KurentoClient.create("ws://130.232.86.113:8888/kurento");
-		
-		// Johans machine, port forwarding via own address
-		//return KurentoClient.create("ws://130.232.86.111:8888/kurento");
-		
-			//ubuntu behind a NAT
-			//return KurentoClient.create("ws://192.168.56.1:8888/kurento");
-
-			// mac (samimacpro)
-			//return KurentoClient.create("ws://130.232.84.66:8888/kurento");
-	}
-	
-// This is just testing
-//	public static KurentoClient kurentoClient() {
-//	//own comp	
-//		if (test <= 0) {
-//			test++;
-//			return KurentoClient.create("ws://192.168.56.1:8888/kurento");
-//			
-//		} else {
-//			return KurentoClient.create("ws://130.232.84.66:8888/kurento");
-//		}
-//		// mac (samimacpro)
-//	}
+	public DeflateHandshakeHandler handshakeHandler() {
+		return new DeflateHandshakeHandler();
+	}
+
+	/**
+	 * Media servers come from the kms.servers property. Addresses we have used:
+	 * <ul>
+	 * <li>ws://130.232.86.113:8888/kurento - Bridged solution (IP for
+	 * Ubuntu64New) also under name: johaniv</li>
+	 * <li>ws://130.232.86.111:8888/kurento - Johans machine, port forwarding
+	 * via own address</li>
+	 * <li>ws://192.168.56.1:8888/kurento - ubuntu behind a NAT</li>
+	 * <li>ws://130.232.84.66:8888/kurento - mac (samimacpro)</li>
+	 * </ul>
+	 */
+	@Bean
+	public MediaServerPool mediaServerPool() {
+		return new MediaServerPool();
+	}
 
 	public static void main(String[] args) throws Exception {
 		SpringApplication.run(GroupCallApp.class, args);
@@ -65,6 +151,7 @@ public class GroupCallApp implements WebSocketConfigurer {
 
 	@Override
 	public void registerWebSocketHandlers(WebSocketHandlerRegistry registry) {
-		registry.addHandler(groupCallHandler(), "/groupcall");
+		registry.addHandler(groupCallHandler(), "/groupcall")
+				.setHandshakeHandler(handshakeHandler());
 	}
 }
@@ -0,0 +1,265 @@
+package org.johan.groupcall;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Collects the live state of rooms, users, endpoints, signaling messages and
+ * media server calls. Registered in the platform MBean server as
+ * {@value #OBJECT_NAME}, and served as JSON by {@link MetricsController}.
+ * 
+ * Everything is read on demand from the objects that own it, so keeping the
+ * metrics on costs nothing between reads.
+ */
+public class GroupCallMetrics implements GroupCallMetricsMXBean {
+
+	public static final String OBJECT_NAME = "org.johan.groupcall:type=Metrics";
+
+	private static final int[] ROOM_SIZE_LIMITS = { 1, 4, 10, 50, 200 };
+
+	private final Logger log = LoggerFactory.getLogger(GroupCallMetrics.class);
+
+	@Autowired
+	private RoomManager roomManager;
+
+	@Autowired
+	private UserRegistry registry;
+
+	@Autowired
+	private MediaServerPool mediaServers;
+
+	@Autowired
+	private MessageCounters counters;
+
+	@Autowired
+	private AdmissionControl admission;
+
+	@PostConstruct
+	private void register() {
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName(OBJECT_NAME));
+		} catch (final JMException e) {
+			log.warn("Could not register metrics over JMX", e);
+		}
+	}
+
+	@PreDestroy
+	private void unregister() {
+		final MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+		try {
+			server.unregisterMBean(new ObjectName(OBJECT_NAME));
+		} catch (final JMException e) {
+			log.debug("Could not unregister metrics", e);
+		}
+	}
+
+	@Override
+	public int getRoomCount() {
+		return roomManager.getRooms().size();
+	}
+
+	@Override
+	public Map<String, Integer> getRoomSizeDistribution() {
+		final Map<String, Integer> distribution = new LinkedHashMap<>();
+		int lower = 1;
+		for (final int limit : ROOM_SIZE_LIMITS) {
+			distribution.put(lower == limit ? String.valueOf(limit) : lower
+					+ "-" + limit, 0);
+			lower = limit + 1;
+		}
+		final String overflow = lower + "+";
+		distribution.put(overflow, 0);
+
+		for (final Room room : roomManager.getRooms()) {
+			final int size = room.getParticipants().size();
+			String range = overflow;
+			lower = 1;
+			for (final int limit : ROOM_SIZE_LIMITS) {
+				if (size <= limit) {
+					range = lower == limit ? String.valueOf(limit) : lower
+							+ "-" + limit;
+					break;
+				}
+				lower = limit + 1;
+			}
+			if (size > 0) {
+				distribution.put(range, distribution.get(range) + 1);
+			}
+		}
+		return distribution;
+	}
+
+	@Override
+	public int getUserCount() {
+		return registry.getUserCount();
+	}
+
+	@Override
+	public int getIncomingEndpointCount() {
+		int count = 0;
+		for (final Room room : roomManager.getRooms()) {
+			for (final UserSession user : room.getParticipants()) {
+				count += user.getIncomingEndpointCount();
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public int getOutgoingEndpointCount() {
+		int count = 0;
+		for (final Room room : roomManager.getRooms()) {
+			for (final UserSession user : room.getParticipants()) {
+				count += user.getOutgoingEndpointCount();
+			}
+		}
+		return count;
+	}
+
+	@Override
+	public Map<String, Integer> getPendingReleases() {
+		final Map<String, Integer> pending = new LinkedHashMap<>();
+		for (final MediaServer server : mediaServers.getServers()) {
+			pending.put(server.getName(), server.getReleases().getPending());
+		}
+		return pending;
+	}
+
+	@Override
+	public Map<String, Long> getMessagesIn() {
+		return counters.getIn();
+	}
+
+	@Override
+	public Map<String, Long> getMessagesOut() {
+		return counters.getOut();
+	}
+
+	@Override
+	public Map<String, Long> getAdmissions() {
+		return admission.getCounts();
+	}
+
+	@Override
+	public int getAdmissionQueueLength() {
+		return admission.getQueueLength();
+	}
+
+	@Override
+	public LatencyHistogram.Snapshot getAdmissionWaits() {
+		return admission.getWaits().snapshot();
+	}
+
+	@Override
+	public Map<String, LatencyHistogram.Snapshot> getKurentoLatencies() {
+		final Map<String, LatencyHistogram.Snapshot> latencies = new LinkedHashMap<>();
+		for (final KurentoOperation operation : KurentoOperation.values()) {
+			final List<LatencyHistogram> histograms = new ArrayList<>();
+			for (final MediaServer server : mediaServers.getServers()) {
+				histograms.add(server.getLatencies().get(operation));
+			}
+			latencies.put(operation.getName(),
+					LatencyHistogram.snapshot(histograms));
+		}
+		return latencies;
+	}
+
+	/**
+	 * @param perUser
+	 *            whether to list the endpoints of every user, which is long
+	 *            with many users
+	 */
+	public JsonObject toJson(boolean perUser) {
+		final JsonObject json = new JsonObject();
+		json.addProperty("rooms", getRoomCount());
+		json.add("roomSizes", toJson(getRoomSizeDistribution()));
+		json.addProperty("users", getUserCount());
+
+		final JsonObject endpoints = new JsonObject();
+		endpoints.addProperty("incoming", getIncomingEndpointCount());
+		endpoints.addProperty("outgoing", getOutgoingEndpointCount());
+		if (perUser) {
+			final JsonArray users = new JsonArray();
+			for (final Room room : roomManager.getRooms()) {
+				for (final UserSession user : room.getParticipants()) {
+					final JsonObject entry = new JsonObject();
+					entry.addProperty("room", room.getName());
+					entry.addProperty("name", user.getName());
+					entry.addProperty("incoming",
+							user.getIncomingEndpointCount());
+					entry.addProperty("outgoing",
+							user.getOutgoingEndpointCount());
+					users.add(entry);
+				}
+			}
+			endpoints.add("users", users);
+		}
+		json.add("endpoints", endpoints);
+
+		final JsonObject messages = new JsonObject();
+		messages.add("in", toJson(getMessagesIn()));
+		messages.add("out", toJson(getMessagesOut()));
+		json.add("messages", messages);
+
+		final JsonObject admissions = toJson(getAdmissions());
+		admissions.addProperty("waiting", getAdmissionQueueLength());
+		admissions.add("waits", toJson(getAdmissionWaits()));
+		json.add("admission", admissions);
+
+		final JsonObject kurento = new JsonObject();
+		for (final Map.Entry<String, LatencyHistogram.Snapshot> e : getKurentoLatencies()
+				.entrySet()) {
+			kurento.add(e.getKey(), toJson(e.getValue()));
+		}
+		json.add("kurento", kurento);
+
+		final JsonObject servers = new JsonObject();
+		for (final MediaServer server : mediaServers.getServers()) {
+			final JsonObject perOperation = new JsonObject();
+			for (final KurentoOperation operation : KurentoOperation.values()) {
+				perOperation.add(operation.getName(), toJson(server
+						.getLatencies().get(operation).snapshot()));
+			}
+			servers.add(server.getName(), perOperation);
+		}
+		json.add("servers", servers);
+		return json;
+	}
+
+	private static JsonObject toJson(Map<String, ? extends Number> values) {
+		final JsonObject json = new JsonObject();
+		for (final Map.Entry<String, ? extends Number> e : values.entrySet()) {
+			json.addProperty(e.getKey(), e.getValue());
+		}
+		return json;
+	}
+
+	private static JsonObject toJson(LatencyHistogram.Snapshot snapshot) {
+		final JsonObject json = new JsonObject();
+		json.addProperty("count", snapshot.getCount());
+		json.addProperty("meanMs", snapshot.getMean());
+		json.addProperty("p50Ms", snapshot.getP50());
+		json.addProperty("p90Ms", snapshot.getP90());
+		json.addProperty("p99Ms", snapshot.getP99());
+		json.addProperty("maxMs", snapshot.getMax());
+		return json;
+	}
+
+}
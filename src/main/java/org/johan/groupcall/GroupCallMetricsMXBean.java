@@ -0,0 +1,50 @@
+package org.johan.groupcall;
+
+import java.util.Map;
+
+/**
+ * Live state of the application, as seen over JMX.
+ */
+public interface GroupCallMetricsMXBean {
+
+	int getRoomCount();
+
+	/**
+	 * @return the number of rooms per size range, e.g. "2-4" -> 12
+	 */
+	Map<String, Integer> getRoomSizeDistribution();
+
+	int getUserCount();
+
+	int getIncomingEndpointCount();
+
+	int getOutgoingEndpointCount();
+
+	Map<String, Long> getMessagesIn();
+
+	Map<String, Long> getMessagesOut();
+
+	/**
+	 * @return release calls not answered yet, by media server
+	 */
+	Map<String, Integer> getPendingReleases();
+
+	/**
+	 * @return joins and publishers admitted, queued, rejected, and rejected
+	 *         for waiting too long
+	 */
+	Map<String, Long> getAdmissions();
+
+	int getAdmissionQueueLength();
+
+	/**
+	 * @return how long joins and publishers waited for admission
+	 */
+	LatencyHistogram.Snapshot getAdmissionWaits();
+
+	/**
+	 * @return latency of each media server operation over all servers
+	 */
+	Map<String, LatencyHistogram.Snapshot> getKurentoLatencies();
+
+}
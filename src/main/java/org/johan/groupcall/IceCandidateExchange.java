@@ -0,0 +1,216 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.EventListener;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.IceCandidateFoundEvent;
+import org.kurento.client.ListenerSubscription;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.JsonObject;
+
+/**
+ * Trickle ICE for the endpoints of one user. Endpoints are known by the name
+ * of the participant whose video they carry, the user's own name for the
+ * outgoing endpoint and {@link #MIX} for the room mix.
+ *
+ * Candidates from the client can arrive before their endpoint has processed
+ * the offer; they are kept until it has, but only for endpoints the user
+ * asked for and only up to {@link #MAX_PENDING} per endpoint. Candidates found by the media server
+ * are queued to the client one by one, and the outbound queue writes those
+ * that pile up as one frame.
+ */
+public class IceCandidateExchange {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(IceCandidateExchange.class);
+
+	/** Endpoint name of the room mix; it has no name on the wire */
+	public static final String MIX = "";
+
+	/** Early candidates kept per endpoint, a client gathers far fewer */
+	public static final int MAX_PENDING = 64;
+
+	private final UserSession user;
+
+	/** Guards expected, pending and negotiated */
+	private final Object lock = new Object();
+	/** Endpoints offered for but not negotiated yet */
+	private final Set<String> expected = new HashSet<>();
+	private final Map<String, List<IceCandidate>> pending = new HashMap<>();
+	private final Map<String, WebRtcEndpoint> negotiated = new HashMap<>();
+
+	private final Set<WebRtcEndpoint> subscribed = Collections
+			.synchronizedSet(Collections
+					.newSetFromMap(new IdentityHashMap<WebRtcEndpoint, Boolean>()));
+
+	public IceCandidateExchange(UserSession user) {
+		this.user = user;
+	}
+
+	/**
+	 * To be called when the client sends an offer, before its candidates can
+	 * arrive: from then on they are kept until the endpoint is negotiated.
+	 */
+	public void expect(String endpointName) {
+		synchronized (lock) {
+			expected.add(endpointName);
+		}
+	}
+
+	/**
+	 * Hands candidates sent by the client to their endpoint, or keeps them
+	 * until the endpoint has processed the offer. Candidates for an endpoint
+	 * nobody offered for are dropped.
+	 */
+	public void addRemote(String endpointName, List<IceCandidate> candidates) {
+		final WebRtcEndpoint endpoint;
+		synchronized (lock) {
+			endpoint = negotiated.get(endpointName);
+			if (endpoint == null) {
+				if (!expected.contains(endpointName)) {
+					log.debug("USER {}: dropping candidates for unknown endpoint {}",
+							user.getName(), endpointName);
+					return;
+				}
+				List<IceCandidate> buffered = pending.get(endpointName);
+				if (buffered == null) {
+					buffered = new ArrayList<>();
+					pending.put(endpointName, buffered);
+				}
+				final int room = MAX_PENDING - buffered.size();
+				if (candidates.size() > room) {
+					log.debug("USER {}: dropping {} early candidates for {}",
+							user.getName(), candidates.size() - Math.max(0, room),
+							endpointName);
+				}
+				if (room > 0) {
+					buffered.addAll(candidates.size() > room ? candidates
+							.subList(0, room) : candidates);
+				}
+				return;
+			}
+		}
+		for (final IceCandidate candidate : candidates) {
+			addTo(endpointName, endpoint, candidate);
+		}
+	}
+
+	/**
+	 * To be called once an endpoint has processed an offer: subscribes to the
+	 * candidates it finds, hands it the buffered candidates of the client and
+	 * starts gathering.
+	 */
+	public void negotiated(final String endpointName,
+			final WebRtcEndpoint endpoint, final Continuation<Void> continuation) {
+		if (!subscribed.add(endpoint)) {
+			startExchange(endpointName, endpoint, continuation);
+			return;
+		}
+		endpoint.addIceCandidateFoundListener(
+				new EventListener<IceCandidateFoundEvent>() {
+					@Override
+					public void onEvent(IceCandidateFoundEvent event) {
+						sendCandidate(endpointName, event.getCandidate());
+					}
+				}, new Continuation<ListenerSubscription>() {
+
+					@Override
+					public void onSuccess(ListenerSubscription result)
+							throws Exception {
+						startExchange(endpointName, endpoint, continuation);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						subscribed.remove(endpoint);
+						continuation.onError(cause);
+					}
+				});
+	}
+
+	private void startExchange(String endpointName, WebRtcEndpoint endpoint,
+			Continuation<Void> continuation) {
+		final List<IceCandidate> buffered;
+		synchronized (lock) {
+			negotiated.put(endpointName, endpoint);
+			expected.remove(endpointName);
+			buffered = pending.remove(endpointName);
+		}
+		if (buffered != null) {
+			log.trace("USER {}: applying {} early candidates for {}",
+					user.getName(), buffered.size(), endpointName);
+			for (final IceCandidate candidate : buffered) {
+				addTo(endpointName, endpoint, candidate);
+			}
+		}
+		endpoint.gatherCandidates(continuation);
+	}
+
+	/**
+	 * Forgets an endpoint that is released or replaced. Candidates for the
+	 * next one are buffered again until it has processed its offer.
+	 */
+	public void reset(String endpointName, WebRtcEndpoint endpoint) {
+		synchronized (lock) {
+			if (endpoint == null || negotiated.get(endpointName) == endpoint) {
+				negotiated.remove(endpointName);
+			}
+		}
+		if (endpoint != null) {
+			subscribed.remove(endpoint);
+		}
+	}
+
+	public void clear() {
+		synchronized (lock) {
+			expected.clear();
+			pending.clear();
+			negotiated.clear();
+		}
+		subscribed.clear();
+	}
+
+	private void addTo(final String endpointName, WebRtcEndpoint endpoint,
+			IceCandidate candidate) {
+		endpoint.addIceCandidate(candidate, new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.debug("USER {}: candidate for {} rejected: {}",
+						user.getName(), endpointName, cause.getMessage());
+			}
+		});
+	}
+
+	private void sendCandidate(String endpointName, IceCandidate candidate) {
+		final JsonObject params = new JsonObject();
+		params.addProperty("candidate", candidate.getCandidate());
+		params.addProperty("sdpMid", candidate.getSdpMid());
+		params.addProperty("sdpMLineIndex", candidate.getSdpMLineIndex());
+
+		final JsonObject message = new JsonObject();
+		message.addProperty("id", "iceCandidate");
+		if (!MIX.equals(endpointName)) {
+			message.addProperty("name", endpointName);
+		}
+		message.add("candidate", params);
+		user.sendMessage(message);
+	}
+
+}
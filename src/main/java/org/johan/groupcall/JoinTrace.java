@@ -0,0 +1,191 @@
+package org.johan.groupcall;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.WebRtcEndpoint;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonObject;
+
+/**
+ * Timeline of one join or one {@code receiveVideoFrom}: when each of its
+ * steps completed. Traces are handed out and taken back by a
+ * {@link JoinTracer}, which keeps the slow ones.
+ * 
+ * Marking a step stores a timestamp in preallocated arrays, so it does not
+ * allocate. A trace must not be touched after {@link #finish()} or
+ * {@link #fail()}, as it is then reused.
+ * 
+ * As a continuation, a trace marks the outgoing endpoint of the joining
+ * user as ready and finishes.
+ */
+public class JoinTrace implements Continuation<WebRtcEndpoint> {
+
+	/** Traces nothing, for callers that have no tracer */
+	public static final JoinTrace NONE = new JoinTrace(null);
+
+	private static final int MAX_STEPS = 16;
+
+	public enum Kind {
+		JOIN("join"), RECEIVE_VIDEO("receiveVideoFrom");
+
+		private final String name;
+
+		private Kind(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	public enum Step {
+		/** The room existed and was looked up */
+		ROOM_LOOKUP("roomLookup"),
+		/** The room had to be created, pipeline included */
+		ROOM_CREATE("roomCreate"),
+		/** The user is in the room and has been told who else is there */
+		JOIN_ROOM("joinRoom"),
+		/** The joining user's outgoing endpoint is ready */
+		OUTGOING_READY("outgoingReady"),
+		/** The task waited its turn in the user's queue */
+		QUEUED("queued"),
+		ENDPOINT_BUILD("endpointBuild"),
+		CONNECT("connect"),
+		PROCESS_OFFER("processOffer"),
+		ANSWER_SENT("answerSent");
+
+		private final String name;
+
+		private Step(String name) {
+			this.name = name;
+		}
+
+		public String getName() {
+			return name;
+		}
+	}
+
+	private final JoinTracer tracer;
+
+	private final Step[] steps = new Step[MAX_STEPS];
+	private final long[] times = new long[MAX_STEPS];
+	private int stepCount;
+	private Kind kind;
+	private String user;
+	private String target;
+	private long startedAtMillis;
+	private long startNanos;
+	private long endNanos;
+	private boolean failed;
+	private boolean active;
+
+	JoinTrace(JoinTracer tracer) {
+		this.tracer = tracer;
+	}
+
+	synchronized void begin(Kind kind, String user, String target) {
+		this.kind = kind;
+		this.user = user;
+		this.target = target;
+		this.startedAtMillis = System.currentTimeMillis();
+		this.startNanos = System.nanoTime();
+		this.endNanos = 0;
+		this.stepCount = 0;
+		this.failed = false;
+		this.active = true;
+	}
+
+	public void mark(Step step) {
+		if (tracer == null) {
+			return;
+		}
+		synchronized (this) {
+			if (!active || stepCount == MAX_STEPS) {
+				return;
+			}
+			steps[stepCount] = step;
+			times[stepCount] = System.nanoTime();
+			stepCount++;
+		}
+	}
+
+	public void finish() {
+		end(false);
+	}
+
+	public void fail() {
+		end(true);
+	}
+
+	private void end(boolean failed) {
+		if (tracer == null) {
+			return;
+		}
+		synchronized (this) {
+			if (!active) {
+				return;
+			}
+			this.active = false;
+			this.failed = failed;
+			this.endNanos = System.nanoTime();
+		}
+		tracer.finished(this);
+	}
+
+	@Override
+	public void onSuccess(WebRtcEndpoint result) {
+		mark(Step.OUTGOING_READY);
+		finish();
+	}
+
+	@Override
+	public void onError(Throwable cause) {
+		fail();
+	}
+
+	synchronized long getDurationNanos() {
+		return endNanos - startNanos;
+	}
+
+	synchronized void copyFrom(JoinTrace other) {
+		synchronized (other) {
+			System.arraycopy(other.steps, 0, steps, 0, other.stepCount);
+			System.arraycopy(other.times, 0, times, 0, other.stepCount);
+			stepCount = other.stepCount;
+			kind = other.kind;
+			user = other.user;
+			target = other.target;
+			startedAtMillis = other.startedAtMillis;
+			startNanos = other.startNanos;
+			endNanos = other.endNanos;
+			failed = other.failed;
+			active = false;
+		}
+	}
+
+	/**
+	 * @return the trace with the time each step took, in milliseconds
+	 */
+	synchronized JsonObject toJson() {
+		final JsonObject json = new JsonObject();
+		json.addProperty("kind", kind.getName());
+		json.addProperty("user", user);
+		json.addProperty(kind == Kind.JOIN ? "room" : "sender", target);
+		json.addProperty("startedAt", startedAtMillis);
+		json.addProperty("totalMs", (endNanos - startNanos) / 1e6);
+		json.addProperty("failed", failed);
+		final JsonArray timeline = new JsonArray();
+		long previous = startNanos;
+		for (int i = 0; i < stepCount; i++) {
+			final JsonObject step = new JsonObject();
+			step.addProperty("step", steps[i].getName());
+			step.addProperty("ms", (times[i] - previous) / 1e6);
+			timeline.add(step);
+			previous = times[i];
+		}
+		json.add("steps", timeline);
+		return json;
+	}
+
+}
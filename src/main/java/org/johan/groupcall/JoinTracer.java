@@ -0,0 +1,92 @@
+package org.johan.groupcall;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Value;
+
+import com.google.gson.JsonArray;
+
+/**
+ * Hands out {@link JoinTrace}s and keeps the last slow ones, those that took
+ * longer than {@code trace.slowJoinMillis}, in a ring buffer of
+ * {@code trace.slowJoinCapacity} entries.
+ * 
+ * Traces are pooled and the ring buffer copies into preallocated entries,
+ * so tracing allocates nothing once the pool is warm.
+ */
+public class JoinTracer {
+
+	@Value("${trace.slowJoinMillis:2000}")
+	private long slowJoinMillis;
+
+	@Value("${trace.slowJoinCapacity:100}")
+	private int capacity;
+
+	@Value("${trace.poolSize:256}")
+	private int poolSize;
+
+	private long slowJoinNanos;
+	private ArrayBlockingQueue<JoinTrace> pool;
+	private JoinTrace[] slow;
+	private final AtomicLong slowCount = new AtomicLong();
+
+	@PostConstruct
+	private void start() {
+		slowJoinNanos = TimeUnit.MILLISECONDS.toNanos(slowJoinMillis);
+		pool = new ArrayBlockingQueue<>(Math.max(1, poolSize));
+		for (int i = 0; i < poolSize; i++) {
+			pool.offer(new JoinTrace(this));
+		}
+		slow = new JoinTrace[Math.max(1, capacity)];
+		for (int i = 0; i < slow.length; i++) {
+			slow[i] = new JoinTrace(null);
+		}
+	}
+
+	/**
+	 * @param target
+	 *            the room joined, or the sender whose video is received
+	 */
+	public JoinTrace start(JoinTrace.Kind kind, String user, String target) {
+		JoinTrace trace = pool.poll();
+		if (trace == null) {
+			trace = new JoinTrace(this);
+		}
+		trace.begin(kind, user, target);
+		return trace;
+	}
+
+	void finished(JoinTrace trace) {
+		if (trace.getDurationNanos() >= slowJoinNanos) {
+			final long index = slowCount.getAndIncrement();
+			slow[(int) (index % slow.length)].copyFrom(trace);
+		}
+		pool.offer(trace);
+	}
+
+	/**
+	 * @return the number of slow traces seen, including those no longer in
+	 *         the ring buffer
+	 */
+	public long getSlowCount() {
+		return slowCount.get();
+	}
+
+	/**
+	 * @return the slow traces still in the ring buffer, newest first
+	 */
+	public JsonArray getSlowTraces() {
+		final JsonArray traces = new JsonArray();
+		final long count = slowCount.get();
+		final long oldest = Math.max(0, count - slow.length);
+		for (long i = count - 1; i >= oldest; i--) {
+			traces.add(slow[(int) (i % slow.length)].toJson());
+		}
+		return traces;
+	}
+
+}
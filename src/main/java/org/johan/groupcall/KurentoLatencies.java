@@ -0,0 +1,51 @@
+package org.johan.groupcall;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+import org.kurento.client.Continuation;
+
+/**
+ * Latency histograms of the calls made to one media server, one per
+ * {@link KurentoOperation}.
+ */
+public class KurentoLatencies {
+
+	private final Map<KurentoOperation, LatencyHistogram> histograms = new EnumMap<>(
+			KurentoOperation.class);
+
+	public KurentoLatencies() {
+		for (final KurentoOperation operation : KurentoOperation.values()) {
+			histograms.put(operation, new LatencyHistogram());
+		}
+	}
+
+	public LatencyHistogram get(KurentoOperation operation) {
+		return histograms.get(operation);
+	}
+
+	/**
+	 * Wraps a continuation so that the time until it is called, successfully
+	 * or not, is recorded for {@code operation}.
+	 */
+	public <T> Continuation<T> timed(KurentoOperation operation,
+			final Continuation<T> continuation) {
+		final LatencyHistogram histogram = histograms.get(operation);
+		final long start = System.nanoTime();
+		return new Continuation<T>() {
+
+			@Override
+			public void onSuccess(T result) throws Exception {
+				histogram.recordSince(start);
+				continuation.onSuccess(result);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				histogram.recordSince(start);
+				continuation.onError(cause);
+			}
+		};
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.johan.groupcall;
+
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.KurentoClient;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+
+public class KurentoMediaServerClient implements MediaServerClient {
+
+	private final KurentoClient kurento;
+
+	public KurentoMediaServerClient(KurentoClient kurento) {
+		this.kurento = kurento;
+	}
+
+	public static KurentoMediaServerClient create(String uri) {
+		return new KurentoMediaServerClient(KurentoClient.create(uri));
+	}
+
+	@Override
+	public MediaPipeline createMediaPipeline() {
+		return kurento.createMediaPipeline();
+	}
+
+	@Override
+	public void createMediaPipeline(Continuation<MediaPipeline> continuation) {
+		kurento.createMediaPipeline(continuation);
+	}
+
+	@Override
+	public <T extends MediaObject> T getById(String id, Class<T> type) {
+		return kurento.getById(id, type);
+	}
+
+	@Override
+	public void createWebRtcEndpoint(MediaPipeline pipeline,
+			Continuation<WebRtcEndpoint> continuation) {
+		new WebRtcEndpoint.Builder(pipeline).buildAsync(continuation);
+	}
+
+	@Override
+	public void createRtpEndpoint(MediaPipeline pipeline,
+			Continuation<RtpEndpoint> continuation) {
+		new RtpEndpoint.Builder(pipeline).buildAsync(continuation);
+	}
+
+	@Override
+	public void createComposite(MediaPipeline pipeline,
+			Continuation<Composite> continuation) {
+		new Composite.Builder(pipeline).buildAsync(continuation);
+	}
+
+	@Override
+	public void createHubPort(Hub hub, Continuation<HubPort> continuation) {
+		new HubPort.Builder(hub).buildAsync(continuation);
+	}
+
+	@Override
+	public void destroy() {
+		kurento.destroy();
+	}
+
+}
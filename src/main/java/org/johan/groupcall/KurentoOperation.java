@@ -0,0 +1,24 @@
+package org.johan.groupcall;
+
+/**
+ * The media server calls whose latency is measured.
+ */
+public enum KurentoOperation {
+
+	PIPELINE_CREATE("pipelineCreate"),
+	ENDPOINT_BUILD("endpointBuild"),
+	CONNECT("connect"),
+	PROCESS_OFFER("processOffer"),
+	RELEASE("release");
+
+	private final String name;
+
+	private KurentoOperation(String name) {
+		this.name = name;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+}
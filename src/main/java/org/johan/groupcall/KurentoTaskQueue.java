@@ -0,0 +1,78 @@
+package org.johan.groupcall;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs asynchronous Kurento operations of one participant strictly one after
+ * the other, without holding a thread while an operation waits for the media
+ * server. A task is started on the thread that submits it or on the thread
+ * that completed the previous task.
+ */
+public class KurentoTaskQueue {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(KurentoTaskQueue.class);
+
+	/**
+	 * An asynchronous step. It must call {@code done} exactly once, normally
+	 * from the completion callback of its last Kurento call.
+	 */
+	public interface Task {
+		void run(Runnable done);
+	}
+
+	private final String owner;
+	private final Queue<Task> tasks = new ArrayDeque<>();
+	private boolean running = false;
+
+	public KurentoTaskQueue(String owner) {
+		this.owner = owner;
+	}
+
+	public void submit(Task task) {
+		synchronized (tasks) {
+			tasks.add(task);
+			if (running) {
+				return;
+			}
+			running = true;
+		}
+		runNext();
+	}
+
+	private void runNext() {
+		final Task next;
+		synchronized (tasks) {
+			next = tasks.poll();
+			if (next == null) {
+				running = false;
+				return;
+			}
+		}
+
+		final AtomicBoolean finished = new AtomicBoolean(false);
+		final Runnable done = new Runnable() {
+			@Override
+			public void run() {
+				if (finished.compareAndSet(false, true)) {
+					runNext();
+				} else {
+					log.warn("{}: task completed twice", owner);
+				}
+			}
+		};
+
+		try {
+			next.run(done);
+		} catch (final RuntimeException e) {
+			log.warn("{}: task failed", owner, e);
+			done.run();
+		}
+	}
+
+}
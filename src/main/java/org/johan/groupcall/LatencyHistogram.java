@@ -0,0 +1,165 @@
+package org.johan.groupcall;
+
+import java.beans.ConstructorProperties;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock free latency histogram, cheap enough to record every call.
+ * 
+ * Values are counted in microsecond buckets growing exponentially, four
+ * buckets per power of two, so percentiles are accurate to about 25%.
+ * Recording is a handful of atomic increments; reading walks the buckets
+ * without stopping writers, so a snapshot may be slightly inconsistent.
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKETS = 4;
+	private static final int SUB_BITS = 2;
+	/** Up to 2^40 microseconds, about 12 days */
+	private static final int BUCKETS = 40 * SUB_BUCKETS;
+
+	private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+	private final AtomicLong count = new AtomicLong();
+	private final AtomicLong totalMicros = new AtomicLong();
+	private final AtomicLong maxMicros = new AtomicLong();
+
+	/**
+	 * Records the time passed since {@code startNanos}, as returned by
+	 * {@link System#nanoTime()}.
+	 */
+	public void recordSince(long startNanos) {
+		record(TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - startNanos));
+	}
+
+	public void record(long micros) {
+		final long value = Math.max(0, micros);
+		buckets.incrementAndGet(bucketOf(value));
+		count.incrementAndGet();
+		totalMicros.addAndGet(value);
+		long max;
+		while (value > (max = maxMicros.get())
+				&& !maxMicros.compareAndSet(max, value)) {
+			// retry
+		}
+	}
+
+	public Snapshot snapshot() {
+		return snapshot(Collections.singletonList(this));
+	}
+
+	/**
+	 * @return the combined distribution of several histograms, e.g. of the
+	 *         same operation on all media servers
+	 */
+	public static Snapshot snapshot(Collection<LatencyHistogram> histograms) {
+		final long[] counts = new long[BUCKETS];
+		long total = 0;
+		long sum = 0;
+		long max = 0;
+		for (final LatencyHistogram histogram : histograms) {
+			for (int i = 0; i < BUCKETS; i++) {
+				counts[i] += histogram.buckets.get(i);
+			}
+			total += histogram.count.get();
+			sum += histogram.totalMicros.get();
+			max = Math.max(max, histogram.maxMicros.get());
+		}
+		// A bucket's upper bound may lie beyond the largest value seen
+		final double maxMillis = max / 1000.0;
+		return new Snapshot(total, total > 0 ? sum / 1000.0 / total : 0,
+				Math.min(maxMillis, percentile(counts, 0.5)), Math.min(
+						maxMillis, percentile(counts, 0.9)), Math.min(
+						maxMillis, percentile(counts, 0.99)), maxMillis);
+	}
+
+	private static int bucketOf(long micros) {
+		if (micros < SUB_BUCKETS) {
+			return (int) micros;
+		}
+		final int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		final int sub = (int) (micros >>> (exponent - SUB_BITS))
+				& (SUB_BUCKETS - 1);
+		return Math.min(BUCKETS - 1, exponent * SUB_BUCKETS + sub);
+	}
+
+	private static long upperBoundOf(int bucket) {
+		if (bucket < SUB_BUCKETS) {
+			return bucket + 1;
+		}
+		final int exponent = bucket / SUB_BUCKETS;
+		final int sub = bucket % SUB_BUCKETS;
+		return (long) (SUB_BUCKETS + sub + 1) << (exponent - SUB_BITS);
+	}
+
+	private static double percentile(long[] counts, double fraction) {
+		long total = 0;
+		for (final long c : counts) {
+			total += c;
+		}
+		if (total == 0) {
+			return 0;
+		}
+		final long rank = (long) Math.ceil(fraction * total);
+		long seen = 0;
+		for (int i = 0; i < counts.length; i++) {
+			seen += counts[i];
+			if (seen >= rank) {
+				return upperBoundOf(i) / 1000.0;
+			}
+		}
+		return upperBoundOf(counts.length - 1) / 1000.0;
+	}
+
+	/**
+	 * Point in time view of a histogram, in milliseconds.
+	 */
+	public static class Snapshot {
+
+		private final long count;
+		private final double mean;
+		private final double p50;
+		private final double p90;
+		private final double p99;
+		private final double max;
+
+		@ConstructorProperties({ "count", "mean", "p50", "p90", "p99", "max" })
+		public Snapshot(long count, double mean, double p50, double p90,
+				double p99, double max) {
+			this.count = count;
+			this.mean = mean;
+			this.p50 = p50;
+			this.p90 = p90;
+			this.p99 = p99;
+			this.max = max;
+		}
+
+		public long getCount() {
+			return count;
+		}
+
+		public double getMean() {
+			return mean;
+		}
+
+		public double getP50() {
+			return p50;
+		}
+
+		public double getP90() {
+			return p90;
+		}
+
+		public double getP99() {
+			return p99;
+		}
+
+		public double getMax() {
+			return max;
+		}
+	}
+
+}
@@ -0,0 +1,30 @@
+package org.johan.groupcall;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A directory that lives in this JVM, for a single signaling node and for
+ * tests: whoever claims a room first owns it until it releases it.
+ */
+public class LocalRoomDirectory implements RoomDirectory {
+
+	private final ConcurrentMap<String, String> owners = new ConcurrentHashMap<>();
+
+	@Override
+	public String claim(String room, String node) {
+		final String owner = owners.putIfAbsent(room, node);
+		return owner != null ? owner : node;
+	}
+
+	@Override
+	public String ownerOf(String room) {
+		return owners.get(room);
+	}
+
+	@Override
+	public void release(String room, String node) {
+		owners.remove(room, node);
+	}
+
+}
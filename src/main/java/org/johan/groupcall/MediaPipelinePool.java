@@ -0,0 +1,299 @@
+package org.johan.groupcall;
+
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Keeps a number of ready {@link MediaPipeline}s of one media server so that
+ * creating a room does not have to wait for a media server round trip.
+ *
+ * The pool is refilled in the background whenever it drops below the low
+ * watermark, and pipelines of closed rooms are recycled as long as the pool
+ * is below the high watermark. A recycled pipeline goes back to the pool
+ * only once every endpoint still attached to it has been released; if any
+ * of them cannot be, the pipeline is released instead. A pipeline with more than {@code maxRecycleChildren} endpoints
+ * left is released as a whole instead, which takes one call rather than one
+ * per endpoint.
+ *
+ * Every release goes through the server's {@link ReleaseScheduler}.
+ */
+public class MediaPipelinePool {
+
+	private final Logger log = LoggerFactory.getLogger(MediaPipelinePool.class);
+
+	public static final int DEFAULT_MAX_RECYCLE_CHILDREN = 16;
+
+	private final String serverName;
+	private final MediaServerClient kurento;
+	private final int lowWatermark;
+	private final int highWatermark;
+	private final int maxRecycleChildren;
+	private final ReleaseScheduler releases;
+
+	private final LinkedBlockingDeque<MediaPipeline> idle = new LinkedBlockingDeque<>();
+	private final AtomicInteger creating = new AtomicInteger();
+
+	private final AtomicLong hits = new AtomicLong();
+	private final AtomicLong misses = new AtomicLong();
+	private final AtomicLong recycled = new AtomicLong();
+
+	private final ExecutorService refiller;
+
+	private volatile boolean closed = false;
+
+	public MediaPipelinePool(String serverName, MediaServerClient kurento,
+			int lowWatermark, int highWatermark) {
+		this(serverName, kurento, lowWatermark, highWatermark,
+				new ReleaseScheduler(serverName, 0, new KurentoLatencies()),
+				DEFAULT_MAX_RECYCLE_CHILDREN);
+	}
+
+	/**
+	 * @param releases
+	 *            sends the release calls of the media server
+	 * @param maxRecycleChildren
+	 *            endpoints a pipeline may have left to be recycled
+	 */
+	public MediaPipelinePool(String serverName, MediaServerClient kurento,
+			int lowWatermark, int highWatermark, ReleaseScheduler releases,
+			int maxRecycleChildren) {
+		this.serverName = serverName;
+		this.kurento = kurento;
+		this.lowWatermark = lowWatermark;
+		this.highWatermark = highWatermark;
+		this.releases = releases;
+		this.maxRecycleChildren = maxRecycleChildren;
+		this.refiller = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "pipeline-pool "
+						+ MediaPipelinePool.this.serverName);
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+
+	public void start() {
+		log.info("Pipeline pool for {} starting (low {}, high {})",
+				serverName, lowWatermark, highWatermark);
+		scheduleRefill();
+	}
+
+	/**
+	 * Hands out a ready pipeline if there is one, otherwise creates one
+	 * synchronously. Either way a refill is triggered.
+	 *
+	 * @return a pipeline the caller now owns
+	 */
+	public MediaPipeline acquire() {
+		MediaPipeline pipeline = idle.pollFirst();
+		if (pipeline != null) {
+			hits.incrementAndGet();
+			log.debug("Pipeline pool hit ({} idle left)", idle.size());
+		} else {
+			misses.incrementAndGet();
+			log.debug("Pipeline pool miss, creating pipeline now");
+			pipeline = kurento.createMediaPipeline();
+		}
+		scheduleRefill();
+		return pipeline;
+	}
+
+	/**
+	 * Gives a pipeline back to the pool. Endpoints still attached to it are
+	 * released first, and the pipeline is offered to the pool when the last
+	 * of them is gone; if the pool is already full the pipeline is released
+	 * instead.
+	 *
+	 * Endpoints of the old room still being built when this is called are
+	 * not seen here; the room's {@link RoomLeg} is retired first, so that
+	 * they release themselves once built instead of joining the next room.
+	 *
+	 * @param pipeline
+	 *            a pipeline no longer used by any room
+	 */
+	public void recycle(final MediaPipeline pipeline) {
+		if (closed) {
+			release(pipeline);
+			return;
+		}
+		refiller.execute(new Runnable() {
+			@Override
+			public void run() {
+				if (idle.size() >= highWatermark) {
+					release(pipeline);
+					return;
+				}
+				try {
+					final List<MediaObject> children = pipeline.getChilds();
+					if (children.size() > maxRecycleChildren) {
+						log.debug("Releasing pipeline with {} endpoints rather than recycling it",
+								children.size());
+						release(pipeline);
+						return;
+					}
+					if (children.isEmpty()) {
+						recycled.incrementAndGet();
+						offer(pipeline);
+						return;
+					}
+					final Continuation<Void> cleaned = cleaned(pipeline,
+							children.size());
+					for (final MediaObject child : children) {
+						releases.release(child, cleaned);
+					}
+				} catch (final Exception e) {
+					log.warn("Could not clean pipeline for recycling", e);
+					release(pipeline);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Offers a pipeline once all its endpoints are released, or releases it
+	 * if any of them could not be.
+	 */
+	private Continuation<Void> cleaned(final MediaPipeline pipeline,
+			int endpoints) {
+		final AtomicInteger left = new AtomicInteger(endpoints);
+		final AtomicBoolean failed = new AtomicBoolean(false);
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				done();
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("Could not release pooled endpoint, releasing its pipeline");
+				failed.set(true);
+				done();
+			}
+
+			private void done() {
+				if (left.decrementAndGet() > 0) {
+					return;
+				}
+				if (failed.get()) {
+					release(pipeline);
+				} else {
+					recycled.incrementAndGet();
+					offer(pipeline);
+				}
+			}
+		};
+	}
+
+	private void scheduleRefill() {
+		if (closed) {
+			return;
+		}
+		refiller.execute(new Runnable() {
+			@Override
+			public void run() {
+				refill();
+			}
+		});
+	}
+
+	private void refill() {
+		while (!closed && idle.size() + creating.get() < lowWatermark) {
+			creating.incrementAndGet();
+			kurento.createMediaPipeline(new Continuation<MediaPipeline>() {
+
+				@Override
+				public void onSuccess(MediaPipeline result) throws Exception {
+					creating.decrementAndGet();
+					offer(result);
+				}
+
+				@Override
+				public void onError(Throwable cause) throws Exception {
+					creating.decrementAndGet();
+					log.warn("Could not pre-create pipeline", cause);
+				}
+			});
+		}
+	}
+
+	private void offer(MediaPipeline pipeline) {
+		if (closed || idle.size() >= highWatermark) {
+			release(pipeline);
+		} else {
+			idle.offerLast(pipeline);
+		}
+	}
+
+	/**
+	 * Releases a pipeline with whatever is left in it, without recycling it.
+	 */
+	public void discard(MediaPipeline pipeline) {
+		release(pipeline);
+	}
+
+	private void release(final MediaPipeline pipeline) {
+		releases.release(pipeline, released("pipeline"));
+	}
+
+	private Continuation<Void> released(final String what) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.trace("Released pooled {}", what);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("Could not release pooled {}", what);
+			}
+		};
+	}
+
+	public void shutdown() {
+		closed = true;
+		refiller.shutdownNow();
+		MediaPipeline pipeline;
+		while ((pipeline = idle.pollFirst()) != null) {
+			release(pipeline);
+		}
+		log.info("Pipeline pool for {} closed (hits {}, misses {}, recycled {})",
+				serverName, hits.get(), misses.get(), recycled.get());
+	}
+
+	public ReleaseScheduler getReleases() {
+		return releases;
+	}
+
+	public int getIdleCount() {
+		return idle.size();
+	}
+
+	public long getHits() {
+		return hits.get();
+	}
+
+	public long getMisses() {
+		return misses.get();
+	}
+
+	public long getRecycled() {
+		return recycled.get();
+	}
+
+}
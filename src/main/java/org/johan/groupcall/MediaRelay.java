@@ -0,0 +1,246 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Carries one publisher's outgoing media from the pipeline of its leg to the
+ * pipeline of another leg, through a pair of {@link RtpEndpoint}s. All
+ * subscribers on the receiving leg connect to the local end of the relay.
+ */
+public class MediaRelay {
+
+	private static final Logger log = LoggerFactory.getLogger(MediaRelay.class);
+
+	private final String publisher;
+	private final RoomLeg from;
+	private final RoomLeg to;
+	private final EndpointLedger ledger;
+
+	/** Where the relayed media comes from: a publisher, or a fixed element */
+	private UserSession publisherSession;
+	private MediaElement fixedSource;
+
+	private RtpEndpoint source;
+	private RtpEndpoint sink;
+	private MediaElement ready;
+	private Throwable failure;
+	private boolean released = false;
+	private final List<Continuation<? super MediaElement>> waiters = new ArrayList<>();
+
+	public MediaRelay(String publisher, RoomLeg from, RoomLeg to,
+			EndpointLedger ledger) {
+		this.publisher = publisher;
+		this.from = from;
+		this.to = to;
+		this.ledger = ledger;
+	}
+
+	/**
+	 * An asynchronous step of building the relay. Any error fails the whole
+	 * relay.
+	 */
+	private abstract class Step<T> implements Continuation<T> {
+		@Override
+		public void onError(Throwable cause) throws Exception {
+			finish(null, cause);
+		}
+	}
+
+	/**
+	 * Builds both ends, negotiates the RTP session between them and connects
+	 * the publisher's outgoing endpoint to it.
+	 */
+	public void start(UserSession publisherSession) {
+		this.publisherSession = publisherSession;
+		buildSource();
+	}
+
+	/**
+	 * Like {@link #start(UserSession)}, for an element that is already built,
+	 * e.g. the hub port carrying a participant's mix.
+	 */
+	public void start(MediaElement source) {
+		this.fixedSource = source;
+		buildSource();
+	}
+
+	private void buildSource() {
+		log.debug("RELAY {}: {} -> {}", publisher, from, to);
+		from.getServer().getClient().createRtpEndpoint(from.getPipeline(),
+				new Step<RtpEndpoint>() {
+					@Override
+					public void onSuccess(RtpEndpoint result) throws Exception {
+						synchronized (waiters) {
+							source = ledger.register(from, result,
+									"relay source of " + publisher);
+						}
+						buildSink();
+					}
+				});
+	}
+
+	private void buildSink() {
+		to.getServer().getClient().createRtpEndpoint(to.getPipeline(),
+				new Step<RtpEndpoint>() {
+					@Override
+					public void onSuccess(RtpEndpoint result) throws Exception {
+						synchronized (waiters) {
+							sink = ledger.register(to, result,
+									"relay sink of " + publisher);
+						}
+						negotiate();
+					}
+				});
+	}
+
+	private void negotiate() {
+		sink.generateOffer(new Step<String>() {
+			@Override
+			public void onSuccess(String offer) throws Exception {
+				source.processOffer(offer, timed(KurentoOperation.PROCESS_OFFER,
+						new Step<String>() {
+							@Override
+							public void onSuccess(String answer)
+									throws Exception {
+								sink.processAnswer(answer, new Step<String>() {
+									@Override
+									public void onSuccess(String result)
+											throws Exception {
+										connectSource();
+									}
+								});
+							}
+						}));
+			}
+		});
+	}
+
+	private void connectSource() {
+		if (fixedSource != null) {
+			connect(fixedSource);
+			return;
+		}
+		publisherSession.whenOutgoingReady(new Step<WebRtcEndpoint>() {
+			@Override
+			public void onSuccess(WebRtcEndpoint outgoing) throws Exception {
+				connect(outgoing);
+			}
+		});
+	}
+
+	private void connect(MediaElement element) {
+		element.connect(source, timed(KurentoOperation.CONNECT,
+				new Step<Void>() {
+					@Override
+					public void onSuccess(Void result) throws Exception {
+						finish(sink, null);
+					}
+				}));
+	}
+
+	private <T> Continuation<T> timed(KurentoOperation operation,
+			Continuation<T> continuation) {
+		return from.getServer().getLatencies().timed(operation, continuation);
+	}
+
+	private void finish(MediaElement element, Throwable cause) {
+		final List<Continuation<? super MediaElement>> toNotify;
+		final boolean releaseNow;
+		synchronized (waiters) {
+			ready = element;
+			failure = cause;
+			releaseNow = released;
+			toNotify = new ArrayList<>(waiters);
+			waiters.clear();
+		}
+		if (cause != null) {
+			log.warn("RELAY {}: could not relay {} -> {}", publisher, from, to,
+					cause);
+		}
+		if (releaseNow || cause != null) {
+			releaseEndpoints();
+		}
+		for (final Continuation<? super MediaElement> waiter : toNotify) {
+			notify(waiter);
+		}
+	}
+
+	/**
+	 * Calls back with the local end of the relay once it carries media.
+	 */
+	public void whenReady(Continuation<? super MediaElement> continuation) {
+		synchronized (waiters) {
+			if (ready == null && failure == null) {
+				waiters.add(continuation);
+				return;
+			}
+		}
+		notify(continuation);
+	}
+
+	private void notify(Continuation<? super MediaElement> waiter) {
+		try {
+			if (released) {
+				waiter.onError(new IllegalStateException("Relay of "
+						+ publisher + " released"));
+			} else if (ready != null) {
+				waiter.onSuccess(ready);
+			} else {
+				waiter.onError(failure);
+			}
+		} catch (final Exception e) {
+			log.warn("RELAY {}: callback failed", publisher, e);
+		}
+	}
+
+	/**
+	 * Releases both ends, now or as soon as they are built.
+	 */
+	public void release() {
+		final boolean building;
+		synchronized (waiters) {
+			if (released) {
+				return;
+			}
+			released = true;
+			building = ready == null && failure == null;
+		}
+		if (!building) {
+			releaseEndpoints();
+		}
+	}
+
+	private void releaseEndpoints() {
+		final RtpEndpoint src;
+		final RtpEndpoint snk;
+		synchronized (waiters) {
+			src = source;
+			snk = sink;
+			source = null;
+			sink = null;
+		}
+		ledger.release(src);
+		ledger.release(snk);
+	}
+
+	public String getPublisher() {
+		return publisher;
+	}
+
+	public RoomLeg getFrom() {
+		return from;
+	}
+
+	public RoomLeg getTo() {
+		return to;
+	}
+
+}
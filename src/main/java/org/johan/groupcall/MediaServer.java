@@ -0,0 +1,195 @@
+package org.johan.groupcall;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.MediaPipeline;
+
+/**
+ * One media server of the {@link MediaServerPool}, with the load we have put
+ * on it: live pipelines and WebRtcEndpoints, as counted on our side.
+ */
+public class MediaServer {
+
+	private final String name;
+	private final MediaServerClient client;
+	private final MediaPipelinePool pipelinePool;
+	private final int weight;
+	private volatile boolean draining;
+	private final KurentoLatencies latencies;
+
+	private final AtomicInteger pipelines = new AtomicInteger();
+	private final AtomicInteger endpoints = new AtomicInteger();
+	/**
+	 * Endpoints admitted but not built yet, see AdmissionControl, including
+	 * those reserved in the pipelines of its legs
+	 */
+	private final AtomicInteger reserved = new AtomicInteger();
+	/** Reserved for pipelines that did not exist yet when admitted */
+	private final EndpointReservations unplaced = new EndpointReservations();
+	private final AtomicLong placements = new AtomicLong();
+
+	public MediaServer(String name, MediaServerClient client,
+			MediaPipelinePool pipelinePool, int weight, boolean draining) {
+		this(name, client, pipelinePool, weight, draining,
+				new KurentoLatencies());
+	}
+
+	/**
+	 * @param latencies
+	 *            where the calls to this server are timed, normally shared
+	 *            with a {@link TimedMediaServerClient} wrapping the client
+	 */
+	public MediaServer(String name, MediaServerClient client,
+			MediaPipelinePool pipelinePool, int weight, boolean draining,
+			KurentoLatencies latencies) {
+		this.name = name;
+		this.latencies = latencies;
+		this.client = client;
+		this.pipelinePool = pipelinePool;
+		this.weight = Math.max(1, weight);
+		this.draining = draining;
+	}
+
+	public MediaPipeline acquirePipeline() {
+		final MediaPipeline pipeline = pipelinePool.acquire();
+		pipelines.incrementAndGet();
+		return pipeline;
+	}
+
+	/**
+	 * Counts a pipeline that was not acquired through the pool, e.g. one
+	 * created before a restart.
+	 */
+	public MediaPipeline adoptPipeline(MediaPipeline pipeline) {
+		pipelines.incrementAndGet();
+		return pipeline;
+	}
+
+	public void recyclePipeline(MediaPipeline pipeline) {
+		pipelines.decrementAndGet();
+		pipelinePool.recycle(pipeline);
+	}
+
+	/**
+	 * Releases a pipeline with all its elements instead of recycling it,
+	 * e.g. on shutdown.
+	 */
+	public void releasePipeline(MediaPipeline pipeline) {
+		pipelines.decrementAndGet();
+		pipelinePool.discard(pipeline);
+	}
+
+	/**
+	 * @return where release calls to this server go through
+	 */
+	public ReleaseScheduler getReleases() {
+		return pipelinePool.getReleases();
+	}
+
+	public void endpointCreated() {
+		endpointCreated(false);
+	}
+
+	/**
+	 * @param reservedByLeg
+	 *            true if the endpoint used up a reservation of its leg
+	 */
+	void endpointCreated(boolean reservedByLeg) {
+		endpoints.incrementAndGet();
+		if (reservedByLeg || unplaced.use()) {
+			reserved.decrementAndGet();
+		}
+	}
+
+	public void endpointReleased() {
+		endpoints.decrementAndGet();
+	}
+
+	/**
+	 * Holds endpoints for an admitted request whose pipeline does not exist
+	 * yet, until they are built or the reservation expires.
+	 */
+	EndpointReservations.Reservation reserve(int endpoints) {
+		reserved.addAndGet(endpoints);
+		return unplaced.add(endpoints);
+	}
+
+	void expire(EndpointReservations.Reservation reservation) {
+		reserved.addAndGet(-unplaced.expire(reservation));
+	}
+
+	/**
+	 * @param endpoints
+	 *            reserved in, or given back by, one of the server's legs
+	 */
+	void reservedByLeg(int endpoints) {
+		reserved.addAndGet(endpoints);
+	}
+
+	void placed() {
+		placements.incrementAndGet();
+	}
+
+	/**
+	 * @return live pipelines and endpoints, divided by the weight
+	 */
+	public double getLoad() {
+		return (pipelines.get() + endpoints.get()) / (double) weight;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public MediaServerClient getClient() {
+		return client;
+	}
+
+	public KurentoLatencies getLatencies() {
+		return latencies;
+	}
+
+	public MediaPipelinePool getPipelinePool() {
+		return pipelinePool;
+	}
+
+	public int getWeight() {
+		return weight;
+	}
+
+	public boolean isDraining() {
+		return draining;
+	}
+
+	/**
+	 * A draining server keeps its rooms but gets no new ones.
+	 */
+	public void setDraining(boolean draining) {
+		this.draining = draining;
+	}
+
+	public int getPipelineCount() {
+		return pipelines.get();
+	}
+
+	public int getEndpointCount() {
+		return endpoints.get();
+	}
+
+	public int getReservedCount() {
+		return reserved.get();
+	}
+
+	public long getPlacementCount() {
+		return placements.get();
+	}
+
+	@Override
+	public String toString() {
+		return name + " (weight " + weight + (draining ? ", draining" : "")
+				+ ", " + pipelines.get() + " pipelines, " + endpoints.get()
+				+ " endpoints)";
+	}
+
+}
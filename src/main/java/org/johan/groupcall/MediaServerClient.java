@@ -0,0 +1,45 @@
+package org.johan.groupcall;
+
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * The part of a media server client the application needs. Implemented on
+ * top of {@link org.kurento.client.KurentoClient} by
+ * {@link KurentoMediaServerClient}, and easy to replace with a local stub.
+ * 
+ * Media elements are built through here rather than with their builders, so
+ * that a stub can hand out elements of its own.
+ */
+public interface MediaServerClient {
+
+	MediaPipeline createMediaPipeline();
+
+	void createMediaPipeline(Continuation<MediaPipeline> continuation);
+
+	void createWebRtcEndpoint(MediaPipeline pipeline,
+			Continuation<WebRtcEndpoint> continuation);
+
+	void createRtpEndpoint(MediaPipeline pipeline,
+			Continuation<RtpEndpoint> continuation);
+
+	void createComposite(MediaPipeline pipeline,
+			Continuation<Composite> continuation);
+
+	void createHubPort(Hub hub, Continuation<HubPort> continuation);
+
+	/**
+	 * @return a handle on an object that already exists on the media server,
+	 *         e.g. one created before a restart
+	 */
+	<T extends MediaObject> T getById(String id, Class<T> type);
+
+	void destroy();
+
+}
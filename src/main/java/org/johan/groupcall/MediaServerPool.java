@@ -0,0 +1,173 @@
+package org.johan.groupcall;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * The media servers available to the application. New rooms are placed on the
+ * least loaded server that is not draining.
+ * 
+ * Servers are configured in {@code kms.servers} as a comma separated list of
+ * {@code uri[;weight=N][;drain]}, e.g.
+ * {@code ws://10.0.0.1:8888/kurento;weight=2,ws://10.0.0.2:8888/kurento;drain}
+ */
+public class MediaServerPool {
+
+	private final Logger log = LoggerFactory.getLogger(MediaServerPool.class);
+
+	@Value("${kms.servers:ws://130.232.86.113:8888/kurento}")
+	private String serversSpec;
+
+	@Value("${pipelinePool.lowWatermark:2}")
+	private int lowWatermark;
+
+	@Value("${pipelinePool.highWatermark:5}")
+	private int highWatermark;
+
+	@Value("${pipelinePool.maxRecycleChildren:16}")
+	private int maxRecycleChildren;
+
+	/** Release calls a media server may have in flight, 0 for no limit */
+	@Value("${kms.maxConcurrentReleases:32}")
+	private int maxConcurrentReleases;
+
+	private final List<MediaServer> servers = new ArrayList<>();
+
+	public MediaServerPool() {
+	}
+
+	/**
+	 * Builds a pool from already created servers, e.g. with stub clients.
+	 */
+	public MediaServerPool(List<MediaServer> servers) {
+		this.servers.addAll(servers);
+	}
+
+	@PostConstruct
+	private void start() {
+		for (final String spec : serversSpec.split(",")) {
+			if (spec.trim().isEmpty()) {
+				continue;
+			}
+			final String[] parts = spec.trim().split(";");
+			final String uri = parts[0];
+			int weight = 1;
+			boolean drain = false;
+			for (int i = 1; i < parts.length; i++) {
+				final String option = parts[i].trim();
+				if (option.startsWith("weight=")) {
+					weight = Integer.parseInt(option.substring("weight="
+							.length()));
+				} else if (option.equals("drain")) {
+					drain = true;
+				} else {
+					throw new IllegalArgumentException("Unknown option '"
+							+ option + "' for media server " + uri);
+				}
+			}
+			servers.add(createServer(uri, createClient(uri), weight, drain));
+		}
+		log.info("Media servers: {}", servers);
+	}
+
+	/**
+	 * Connects to the media server at {@code uri}. Overridden to run against
+	 * something else than a real Kurento server, e.g. in load tests.
+	 */
+	protected MediaServerClient createClient(String uri) {
+		return KurentoMediaServerClient.create(uri);
+	}
+
+	public MediaServer createServer(String name, MediaServerClient client,
+			int weight, boolean drain) {
+		final KurentoLatencies latencies = new KurentoLatencies();
+		final MediaServerClient timedClient = new TimedMediaServerClient(
+				client, latencies);
+		final MediaPipelinePool pipelinePool = new MediaPipelinePool(name,
+				timedClient, lowWatermark, highWatermark, new ReleaseScheduler(
+						name, maxConcurrentReleases, latencies),
+				maxRecycleChildren);
+		pipelinePool.start();
+		return new MediaServer(name, timedClient, pipelinePool, weight,
+				drain, latencies);
+	}
+
+	/**
+	 * Chooses the server for a new room.
+	 * 
+	 * @param roomName
+	 * @return the least loaded server that is not draining
+	 */
+	public MediaServer place(String roomName) {
+		final MediaServer server = place(roomName,
+				Collections.<MediaServer> emptySet());
+		if (server == null) {
+			throw new IllegalStateException("No media server available for room "
+					+ roomName);
+		}
+		return server;
+	}
+
+	/**
+	 * Chooses a server for a room, or for another leg of a room.
+	 * 
+	 * @param roomName
+	 * @param exclude
+	 *            servers not to consider, e.g. those already hosting the room
+	 * @return the least loaded server that is not draining or excluded, or
+	 *         null if there is none
+	 */
+	public MediaServer place(String roomName, Collection<MediaServer> exclude) {
+		final MediaServer best = leastLoaded(exclude);
+		if (best != null) {
+			best.placed();
+			log.info("Room {} placed on {}", roomName, best);
+		}
+		return best;
+	}
+
+	/**
+	 * Like {@link #place(String, Collection)}, without placing anything.
+	 */
+	public MediaServer leastLoaded(Collection<MediaServer> exclude) {
+		MediaServer best = null;
+		for (final MediaServer server : servers) {
+			if (!server.isDraining() && !exclude.contains(server)
+					&& (best == null || server.getLoad() < best.getLoad())) {
+				best = server;
+			}
+		}
+		return best;
+	}
+
+	public List<MediaServer> getServers() {
+		return Collections.unmodifiableList(servers);
+	}
+
+	public MediaServer getServer(String name) {
+		for (final MediaServer server : servers) {
+			if (server.getName().equals(name)) {
+				return server;
+			}
+		}
+		return null;
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		for (final MediaServer server : servers) {
+			server.getPipelinePool().shutdown();
+			server.getClient().destroy();
+		}
+	}
+
+}
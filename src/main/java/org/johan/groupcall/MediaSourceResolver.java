@@ -0,0 +1,26 @@
+package org.johan.groupcall;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaElement;
+
+/**
+ * Finds where a subscriber can take a publisher's media from.
+ */
+public interface MediaSourceResolver {
+
+	/**
+	 * Calls back with an element in the subscriber's pipeline that carries
+	 * the sender's outgoing media: the sender's own endpoint if both are on
+	 * the same pipeline, otherwise a local relay of it.
+	 */
+	void resolveSource(UserSession sender, UserSession subscriber,
+			Continuation<MediaElement> continuation);
+
+	/**
+	 * Calls back with an element in the subscriber's pipeline that carries
+	 * the mix of the room's composite hub.
+	 */
+	void resolveMix(UserSession subscriber,
+			Continuation<MediaElement> continuation);
+
+}
@@ -0,0 +1,58 @@
+package org.johan.groupcall;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts signaling messages by their {@code id}, in both directions.
+ */
+public class MessageCounters {
+
+	/** Counted in place of the id of frames that could not be decoded */
+	public static final String INVALID = "invalid";
+
+	private final ConcurrentMap<String, AtomicLong> in = new ConcurrentHashMap<>();
+	private final ConcurrentMap<String, AtomicLong> out = new ConcurrentHashMap<>();
+
+	public void countIn(String id) {
+		count(in, id);
+	}
+
+	public void countOut(String id) {
+		count(out, id);
+	}
+
+	public Map<String, Long> getIn() {
+		return snapshot(in);
+	}
+
+	public Map<String, Long> getOut() {
+		return snapshot(out);
+	}
+
+	private static void count(ConcurrentMap<String, AtomicLong> counters,
+			String id) {
+		AtomicLong counter = counters.get(id);
+		if (counter == null) {
+			final AtomicLong created = new AtomicLong();
+			counter = counters.putIfAbsent(id, created);
+			if (counter == null) {
+				counter = created;
+			}
+		}
+		counter.incrementAndGet();
+	}
+
+	private static Map<String, Long> snapshot(
+			ConcurrentMap<String, AtomicLong> counters) {
+		final Map<String, Long> snapshot = new TreeMap<>();
+		for (final Map.Entry<String, AtomicLong> e : counters.entrySet()) {
+			snapshot.put(e.getKey(), e.getValue().get());
+		}
+		return snapshot;
+	}
+
+}
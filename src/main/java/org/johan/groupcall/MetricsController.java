@@ -0,0 +1,26 @@
+package org.johan.groupcall;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.ResponseBody;
+
+/**
+ * Serves {@link GroupCallMetrics} as JSON on {@code /metrics}. Add
+ * {@code ?perUser=true} to list the endpoints of every user.
+ */
+@Controller
+public class MetricsController {
+
+	@Autowired
+	private GroupCallMetrics metrics;
+
+	@RequestMapping(value = "/metrics", produces = "application/json")
+	@ResponseBody
+	public String metrics(
+			@RequestParam(value = "perUser", defaultValue = "false") boolean perUser) {
+		return metrics.toJson(perUser).toString();
+	}
+
+}
@@ -0,0 +1,132 @@
+package org.johan.groupcall;
+
+import org.springframework.web.socket.TextMessage;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+
+/**
+ * A signaling message ready to be written to a client. Besides the
+ * serialized payload it remembers the message id and, for messages that can
+ * supersede each other, the user they are about.
+ * 
+ * Frames are immutable, so a broadcast serializes its message once and hands
+ * the same frame to every recipient.
+ */
+public final class OutboundFrame {
+
+	private final String id;
+	private final String subject;
+	private final String payload;
+	private final TextMessage message;
+	/** Built on first use, then shared like message */
+	private volatile TextMessage compactMessage;
+
+	public OutboundFrame(String id, String subject, String payload) {
+		this.id = id;
+		this.subject = subject;
+		this.payload = payload;
+		this.message = new TextMessage(payload);
+	}
+
+	public static OutboundFrame of(JsonObject message) {
+		final JsonElement id = message.get("id");
+		final JsonElement user = message.get("user");
+		return new OutboundFrame(id == null ? null : id.getAsString(),
+				user == null ? null : user.getAsString(), message.toString());
+	}
+
+	/**
+	 * Serializes a message with a boolean {@code flag} set to false as its
+	 * last property, so that {@link #withFlagSet()} can derive the copy with
+	 * the flag set to true without serializing the message again.
+	 */
+	public static OutboundFrame of(JsonObject message, String flag) {
+		message.remove(flag);
+		message.addProperty(flag, false);
+		final OutboundFrame frame = of(message);
+		message.remove(flag);
+		return frame;
+	}
+
+	/**
+	 * @return a copy of a frame built by {@link #of(JsonObject, String)} with
+	 *         its flag set to true
+	 */
+	public OutboundFrame withFlagSet() {
+		if (!payload.endsWith(":false}")) {
+			throw new IllegalStateException("Frame has no trailing flag: "
+					+ payload);
+		}
+		return new OutboundFrame(id, subject, payload.substring(0,
+				payload.length() - "false}".length()) + "true}");
+	}
+
+	/**
+	 * @return the message id, e.g. "chatMessageReceived"
+	 */
+	public String getId() {
+		return id;
+	}
+
+	/**
+	 * @return the user the message is about, if any
+	 */
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getPayload() {
+		return payload;
+	}
+
+	/**
+	 * @return the payload as a WebSocket message, shared by all recipients
+	 */
+	public TextMessage getMessage() {
+		return message;
+	}
+
+	/**
+	 * @param compact
+	 *            true for a client using {@link CompactFraming}
+	 */
+	public TextMessage getMessage(boolean compact) {
+		if (!compact) {
+			return message;
+		}
+		TextMessage compactMessage = this.compactMessage;
+		if (compactMessage == null) {
+			final String compacted = CompactFraming.compact(id, payload);
+			compactMessage = compacted == payload ? message : new TextMessage(
+					compacted);
+			this.compactMessage = compactMessage;
+		}
+		return compactMessage;
+	}
+
+	/**
+	 * @see #getMessage(boolean)
+	 */
+	public String getPayload(boolean compact) {
+		return compact ? getMessage(true).getPayload() : payload;
+	}
+
+	public boolean isChat() {
+		return "chatMessageReceived".equals(id);
+	}
+
+	/**
+	 * @return true if this frame makes {@code older} pointless
+	 */
+	public boolean supersedes(OutboundFrame older) {
+		return "updateVisibility".equals(id) && id.equals(older.id)
+				&& subject != null && subject.equals(older.subject);
+	}
+
+	@Override
+	public String toString() {
+		return payload;
+	}
+
+}
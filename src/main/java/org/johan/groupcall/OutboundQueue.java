@@ -0,0 +1,345 @@
+package org.johan.groupcall;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.johan.groupcall.OutboundWriter.OverflowPolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.web.socket.CloseStatus;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Bounded queue of messages waiting to be written to one client.
+ * 
+ * Senders only enqueue, so a room broadcast never waits for a slow socket.
+ * The queue is drained by one writer task at a time, which also makes the
+ * writes to the {@link WebSocketSession} single threaded. When several
+ * messages are waiting they are flushed together as one JSON array frame.
+ * A write that blocks for longer than the send timeout closes the session.
+ */
+public class OutboundQueue {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(OutboundQueue.class);
+
+	private final String owner;
+	private volatile WebSocketSession session;
+	private final Executor executor;
+	private final int capacity;
+	private final int maxBatch;
+	private final OverflowPolicy overflowPolicy;
+	private final MessageCounters counters;
+	private final ScheduledExecutorService watchdog;
+	private final long sendTimeoutMillis;
+
+	private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<>();
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private final AtomicLong dropped = new AtomicLong();
+	private volatile boolean disconnected = false;
+	/** Set while the client is away; frames are kept until it is back */
+	private volatile boolean held = false;
+	/** Set if frames were dropped while held, so resuming would lose them */
+	private volatile boolean lossy = false;
+	/** Whether the client asked for {@link CompactFraming} */
+	private volatile boolean compact;
+
+	private final Runnable drainTask = new Runnable() {
+		@Override
+		public void run() {
+			drain();
+		}
+	};
+
+	/**
+	 * @param watchdog
+	 *            runs the send timeouts, null for none
+	 */
+	public OutboundQueue(String owner, WebSocketSession session,
+			Executor executor, int capacity, int maxBatch,
+			OverflowPolicy overflowPolicy, MessageCounters counters,
+			ScheduledExecutorService watchdog, long sendTimeoutMillis) {
+		this.owner = owner;
+		this.watchdog = watchdog;
+		this.sendTimeoutMillis = sendTimeoutMillis;
+		this.counters = counters;
+		this.session = session;
+		this.compact = CompactFraming.isRequestedBy(session);
+		this.executor = executor;
+		this.capacity = capacity;
+		this.maxBatch = maxBatch;
+		this.overflowPolicy = overflowPolicy;
+	}
+
+	public void enqueue(OutboundFrame frame) {
+		if (disconnected) {
+			return;
+		}
+		final boolean overflowed;
+		synchronized (frames) {
+			if (disconnected) {
+				return;
+			}
+			overflowed = frames.size() >= capacity && !makeRoomFor(frame);
+			if (overflowed) {
+				disconnected = true;
+				frames.clear();
+			} else {
+				frames.addLast(frame);
+			}
+		}
+		if (overflowed) {
+			closeOverflowing();
+			return;
+		}
+		scheduleDrain();
+	}
+
+	/**
+	 * Must be called holding the lock on frames.
+	 * 
+	 * @return true if a queued frame was dropped
+	 */
+	private boolean makeRoomFor(OutboundFrame frame) {
+		final Iterator<OutboundFrame> it = frames.iterator();
+		switch (overflowPolicy) {
+		case DROP_STALE_CHAT:
+			while (it.hasNext()) {
+				if (it.next().isChat()) {
+					it.remove();
+					dropped.incrementAndGet();
+					// A client that is away cannot catch up on it later
+					if (held) {
+						lossy = true;
+					}
+					return true;
+				}
+			}
+			return false;
+		case COALESCE_VISIBILITY:
+			while (it.hasNext()) {
+				if (frame.supersedes(it.next())) {
+					it.remove();
+					dropped.incrementAndGet();
+					return true;
+				}
+			}
+			return false;
+		default:
+			return false;
+		}
+	}
+
+	/**
+	 * Closes the session of a client that fell too far behind. Closing writes
+	 * a close frame to the same socket that is not keeping up, so it is done
+	 * on a writer thread rather than by the sender, who may be broadcasting
+	 * to the whole room.
+	 */
+	private void closeOverflowing() {
+		log.warn("{}: outbound queue full ({} frames), disconnecting", owner,
+				capacity);
+		final WebSocketSession session = this.session;
+		executor.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					session.close(CloseStatus.SESSION_NOT_RELIABLE);
+				} catch (final IOException | RuntimeException e) {
+					log.debug("{}: could not close session", owner, e);
+				}
+			}
+		});
+	}
+
+	/**
+	 * Stops writing, e.g. because the connection dropped. Frames are still
+	 * queued, up to the capacity, for {@link #resume(WebSocketSession)}.
+	 */
+	public void hold() {
+		held = true;
+	}
+
+	/**
+	 * Writes the frames kept while held, and those to come, to a new session
+	 * of the same client.
+	 * 
+	 * @return false if frames were lost meanwhile because the queue overflowed
+	 */
+	public boolean resume(WebSocketSession session) {
+		synchronized (frames) {
+			if (disconnected || lossy) {
+				return false;
+			}
+			this.session = session;
+			this.compact = CompactFraming.isRequestedBy(session);
+			held = false;
+		}
+		scheduleDrain();
+		return true;
+	}
+
+	private void scheduleDrain() {
+		if (held) {
+			return;
+		}
+		if (draining.compareAndSet(false, true)) {
+			executor.execute(drainTask);
+		}
+	}
+
+	private void drain() {
+		if (held) {
+			draining.set(false);
+			// Resumed meanwhile, its own drain may have been skipped
+			if (!held && getDepth() > 0) {
+				scheduleDrain();
+			}
+			return;
+		}
+		final WebSocketSession session;
+		final boolean compact;
+		final OutboundFrame[] batch;
+		synchronized (frames) {
+			session = this.session;
+			compact = this.compact;
+			batch = new OutboundFrame[Math.min(frames.size(), maxBatch)];
+			for (int i = 0; i < batch.length; i++) {
+				batch[i] = frames.pollFirst();
+			}
+		}
+
+		final TextMessage payload;
+		if (batch.length == 1) {
+			payload = batch[0].getMessage(compact);
+		} else if (batch.length > 1) {
+			final StringBuilder sb = new StringBuilder("[");
+			for (int i = 0; i < batch.length; i++) {
+				if (i > 0) {
+					sb.append(',');
+				}
+				sb.append(batch[i].getPayload(compact));
+			}
+			payload = new TextMessage(sb.append(']'));
+		} else {
+			payload = null;
+		}
+
+		if (payload != null) {
+			if (write(session, payload)) {
+				for (final OutboundFrame frame : batch) {
+					counters.countOut(frame.getId());
+				}
+			} else {
+				giveBack(session, batch);
+			}
+		}
+
+		// Hand the thread back after each flush so that one busy session does
+		// not keep a writer to itself
+		draining.set(false);
+		if (getDepth() > 0) {
+			scheduleDrain();
+		}
+	}
+
+	/**
+	 * @return false if the session is closed or the write failed
+	 */
+	private boolean write(final WebSocketSession session, TextMessage payload) {
+		if (!session.isOpen()) {
+			log.debug("{}: session closed, keeping the frames", owner);
+			return false;
+		}
+		final ScheduledFuture<?> timeout = watchdog == null ? null : watchdog
+				.schedule(new Runnable() {
+					@Override
+					public void run() {
+						sendTimedOut(session);
+					}
+				}, sendTimeoutMillis, TimeUnit.MILLISECONDS);
+		try {
+			session.sendMessage(payload);
+			return true;
+		} catch (final IOException | RuntimeException e) {
+			log.debug("{}: could not send message, keeping the frames",
+					owner, e);
+			// Let the close handler decide whether the client may resume
+			try {
+				session.close(CloseStatus.SERVER_ERROR);
+			} catch (final IOException | RuntimeException closing) {
+				log.debug("{}: could not close session", owner, closing);
+			}
+			return false;
+		} finally {
+			if (timeout != null) {
+				timeout.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Closes a session whose write is stuck, which fails the write and frees
+	 * the writer thread. The client is not reading, so it does not get to
+	 * resume.
+	 */
+	private void sendTimedOut(WebSocketSession stuck) {
+		log.warn("{}: write blocked for {} ms, disconnecting", owner,
+				sendTimeoutMillis);
+		synchronized (frames) {
+			if (stuck == session) {
+				disconnected = true;
+				frames.clear();
+			}
+		}
+		try {
+			stuck.close(CloseStatus.SESSION_NOT_RELIABLE);
+		} catch (final IOException | RuntimeException e) {
+			log.debug("{}: could not close session", owner, e);
+		}
+	}
+
+	/**
+	 * Puts frames that could not be written back in front, in order, and
+	 * holds the queue until the client resumes. Unless it already resumed on
+	 * another session, which then gets them.
+	 */
+	private void giveBack(WebSocketSession written, OutboundFrame[] batch) {
+		synchronized (frames) {
+			if (disconnected) {
+				return;
+			}
+			for (int i = batch.length - 1; i >= 0; i--) {
+				frames.addFirst(batch[i]);
+			}
+			if (written == session) {
+				held = true;
+			}
+		}
+	}
+
+	/**
+	 * @return the number of frames waiting to be written
+	 */
+	public int getDepth() {
+		synchronized (frames) {
+			return frames.size();
+		}
+	}
+
+	/**
+	 * @return the number of frames dropped because of overflow
+	 */
+	public long getDropped() {
+		return dropped.get();
+	}
+
+}
@@ -0,0 +1,120 @@
+package org.johan.groupcall;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Owns the threads that write queued signaling messages to the clients, and
+ * the settings of the per-session {@link OutboundQueue}s.
+ *
+ * Writes block, so a client that stops reading would hold a writer thread
+ * and delay everyone else's messages. A write taking longer than
+ * {@code outbound.sendTimeoutMillis} closes the client's session, which
+ * fails the write and frees the thread.
+ */
+public class OutboundWriter {
+
+	/**
+	 * What to do when a session's queue is full.
+	 */
+	public enum OverflowPolicy {
+		/** Drop the oldest queued chat message */
+		DROP_STALE_CHAT,
+		/** Drop a queued visibility update superseded by the new one */
+		COALESCE_VISIBILITY,
+		/** Close the session of the slow client */
+		DISCONNECT
+	}
+
+	@Value("${outbound.capacity:256}")
+	private int capacity;
+
+	@Value("${outbound.maxBatch:16}")
+	private int maxBatch;
+
+	@Value("${outbound.writerThreads:4}")
+	private int writerThreads;
+
+	@Value("${outbound.overflowPolicy:DROP_STALE_CHAT}")
+	private OverflowPolicy overflowPolicy;
+
+	/** How long one write may block, 0 for no limit */
+	@Value("${outbound.sendTimeoutMillis:5000}")
+	private long sendTimeoutMillis;
+
+	@Autowired
+	private MessageCounters counters;
+
+	private ExecutorService executor;
+	private ScheduledThreadPoolExecutor watchdog;
+
+	public OutboundWriter() {
+	}
+
+	/**
+	 * For use outside a Spring context, e.g. by the benchmarks. The writer
+	 * threads are started right away.
+	 */
+	public OutboundWriter(int capacity, int maxBatch, int writerThreads,
+			OverflowPolicy overflowPolicy, long sendTimeoutMillis) {
+		this.capacity = capacity;
+		this.maxBatch = maxBatch;
+		this.writerThreads = writerThreads;
+		this.overflowPolicy = overflowPolicy;
+		this.sendTimeoutMillis = sendTimeoutMillis;
+		this.counters = new MessageCounters();
+		start();
+	}
+
+	@PostConstruct
+	private void start() {
+		final AtomicInteger count = new AtomicInteger();
+		executor = Executors.newFixedThreadPool(writerThreads,
+				new ThreadFactory() {
+					@Override
+					public Thread newThread(Runnable r) {
+						final Thread t = new Thread(r, "outbound-writer-"
+								+ count.incrementAndGet());
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		watchdog = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable r) {
+				final Thread t = new Thread(r, "outbound-watchdog");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		// Nearly every write finishes in time, its timeout is cancelled
+		watchdog.setRemoveOnCancelPolicy(true);
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		executor.shutdown();
+		watchdog.shutdownNow();
+	}
+
+	public MessageCounters getCounters() {
+		return counters;
+	}
+
+	public OutboundQueue newQueue(String owner, WebSocketSession session) {
+		return new OutboundQueue(owner, session, executor, capacity, maxBatch,
+				overflowPolicy, counters, sendTimeoutMillis > 0 ? watchdog
+						: null, sendTimeoutMillis);
+	}
+
+}
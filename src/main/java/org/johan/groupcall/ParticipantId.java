@@ -0,0 +1,59 @@
+package org.johan.groupcall;
+
+/**
+ * Identifies one stay of a user in a room. The room hands out a new
+ * generation for every join, so a user who rejoins under the same name gets
+ * a different id than the session that is still being torn down.
+ */
+public final class ParticipantId {
+
+	private final String room;
+	private final String name;
+	private final long generation;
+
+	public ParticipantId(String room, String name, long generation) {
+		this.room = room;
+		this.name = name;
+		this.generation = generation;
+	}
+
+	public String getRoom() {
+		return room;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public long getGeneration() {
+		return generation;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (!(obj instanceof ParticipantId)) {
+			return false;
+		}
+		final ParticipantId other = (ParticipantId) obj;
+		return generation == other.generation && name.equals(other.name)
+				&& room.equals(other.room);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = 1;
+		result = 31 * result + room.hashCode();
+		result = 31 * result + name.hashCode();
+		result = 31 * result + (int) (generation ^ (generation >>> 32));
+		return result;
+	}
+
+	@Override
+	public String toString() {
+		return room + "/" + name + "#" + generation;
+	}
+
+}
@@ -0,0 +1,96 @@
+package org.johan.groupcall;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Assigns rooms to a fixed list of signaling nodes by rendezvous hashing, so
+ * that every node computes the same owner without sharing any state.
+ *
+ * A room this node claimed stays its own until it releases the room, even
+ * if the hash now points elsewhere. The other nodes cannot know that,
+ * though: after a change of {@code cluster.nodes}, a node that wins a room
+ * still live on its old owner would start a second, empty copy of it. The
+ * node list must therefore only change while no rooms are live, e.g. by
+ * draining all nodes before restarting them with the new list. Adding a node
+ * then moves only the rooms that the new node wins.
+ */
+public class PartitionedRoomDirectory implements RoomDirectory {
+
+	private final List<String> nodes;
+	/** Rooms claimed and not yet released, by the node that claimed them */
+	private final ConcurrentMap<String, String> claims = new ConcurrentHashMap<>();
+
+	public PartitionedRoomDirectory(List<String> nodes) {
+		if (nodes.isEmpty()) {
+			throw new IllegalArgumentException("No signaling nodes");
+		}
+		this.nodes = new ArrayList<>(nodes);
+	}
+
+	/**
+	 * Records the claim if {@code node} hosts the room already or wins it by
+	 * the hash.
+	 */
+	@Override
+	public String claim(String room, String node) {
+		final String held = claims.get(room);
+		if (held != null) {
+			return held;
+		}
+		final String owner = hashOwnerOf(room);
+		if (!owner.equals(node)) {
+			return owner;
+		}
+		final String raced = claims.putIfAbsent(room, node);
+		return raced != null ? raced : node;
+	}
+
+	@Override
+	public String ownerOf(String room) {
+		final String held = claims.get(room);
+		return held != null ? held : hashOwnerOf(room);
+	}
+
+	private String hashOwnerOf(String room) {
+		String owner = null;
+		long best = Long.MIN_VALUE;
+		for (final String node : nodes) {
+			final long score = score(node, room);
+			if (owner == null || score > best) {
+				owner = node;
+				best = score;
+			}
+		}
+		return owner;
+	}
+
+	@Override
+	public void release(String room, String node) {
+		claims.remove(room, node);
+	}
+
+	public List<String> getNodes() {
+		return nodes;
+	}
+
+	/**
+	 * 64 bit FNV-1a of node and room, mixed so that similar names spread.
+	 */
+	private static long score(String node, String room) {
+		long hash = 0xcbf29ce484222325L;
+		for (final byte b : (node + '\n' + room)
+				.getBytes(StandardCharsets.UTF_8)) {
+			hash ^= b & 0xff;
+			hash *= 0x100000001b3L;
+		}
+		hash ^= hash >>> 33;
+		hash *= 0xff51afd7ed558ccdL;
+		hash ^= hash >>> 33;
+		return hash;
+	}
+
+}
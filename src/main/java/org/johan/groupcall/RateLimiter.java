@@ -0,0 +1,59 @@
+package org.johan.groupcall;
+
+/**
+ * A token bucket: allows {@code burst} events at once and {@code perSecond}
+ * events per second in the long run.
+ */
+public class RateLimiter {
+
+	private final double perNano;
+	private final double burst;
+	private double tokens;
+	private long refilled;
+
+	/**
+	 * @param perSecond
+	 *            events per second, 0 for no limit
+	 * @param burst
+	 *            events allowed at once
+	 */
+	public RateLimiter(double perSecond, int burst) {
+		this(perSecond, burst, System.nanoTime());
+	}
+
+	/**
+	 * @param now
+	 *            the {@link System#nanoTime()} the bucket starts full at
+	 */
+	RateLimiter(double perSecond, int burst, long now) {
+		this.perNano = perSecond / 1e9;
+		this.burst = Math.max(1, burst);
+		this.tokens = this.burst;
+		this.refilled = now;
+	}
+
+	/**
+	 * @return true if the event is allowed
+	 */
+	public boolean tryAcquire() {
+		return tryAcquire(System.nanoTime());
+	}
+
+	/**
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 */
+	synchronized boolean tryAcquire(long now) {
+		if (perNano <= 0) {
+			return true;
+		}
+		tokens = Math.min(burst, tokens + (now - refilled) * perNano);
+		refilled = now;
+		if (tokens < 1) {
+			return false;
+		}
+		tokens--;
+		return true;
+	}
+
+}
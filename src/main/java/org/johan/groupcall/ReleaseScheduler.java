@@ -0,0 +1,177 @@
+package org.johan.groupcall;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.kurento.client.Continuation;
+import org.kurento.client.MediaObject;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sends the release calls of one media server, at most {@code maxInFlight}
+ * at a time. The rest wait in line, so that a room closing or a crowd
+ * leaving does not flood the media server with calls. Each release is timed
+ * from when it is actually sent.
+ */
+public class ReleaseScheduler {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(ReleaseScheduler.class);
+
+	private static final class Pending {
+		private final MediaObject object;
+		private final Continuation<Void> continuation;
+
+		private Pending(MediaObject object, Continuation<Void> continuation) {
+			this.object = object;
+			this.continuation = continuation;
+		}
+	}
+
+	private final String serverName;
+	private final int maxInFlight;
+	private final KurentoLatencies latencies;
+
+	/** Guarded by this, like inFlight */
+	private final Queue<Pending> waiting = new ArrayDeque<>();
+	private int inFlight = 0;
+
+	private final AtomicLong sent = new AtomicLong();
+	private final AtomicLong queued = new AtomicLong();
+
+	/**
+	 * @param maxInFlight
+	 *            release calls sent without an answer yet, 0 for no limit
+	 * @param latencies
+	 *            where the calls are timed
+	 */
+	public ReleaseScheduler(String serverName, int maxInFlight,
+			KurentoLatencies latencies) {
+		this.serverName = serverName;
+		this.maxInFlight = maxInFlight;
+		this.latencies = latencies;
+	}
+
+	/**
+	 * Releases an object as soon as fewer than {@code maxInFlight} releases
+	 * are in flight.
+	 *
+	 * @param continuation
+	 *            called once the media server answered, or with the error if
+	 *            the call could not be sent
+	 */
+	public void release(MediaObject object, Continuation<Void> continuation) {
+		synchronized (this) {
+			if (maxInFlight > 0 && inFlight >= maxInFlight) {
+				waiting.add(new Pending(object, continuation));
+				queued.incrementAndGet();
+				return;
+			}
+			inFlight++;
+		}
+		send(object, continuation);
+	}
+
+	private void send(MediaObject object, final Continuation<Void> continuation) {
+		sent.incrementAndGet();
+		try {
+			object.release(latencies.timed(KurentoOperation.RELEASE,
+					new Continuation<Void>() {
+
+						@Override
+						public void onSuccess(Void result) throws Exception {
+							try {
+								continuation.onSuccess(result);
+							} finally {
+								sendNext();
+							}
+						}
+
+						@Override
+						public void onError(Throwable cause) throws Exception {
+							try {
+								continuation.onError(cause);
+							} finally {
+								sendNext();
+							}
+						}
+					}));
+		} catch (final RuntimeException e) {
+			log.warn("{}: could not send release", serverName, e);
+			try {
+				continuation.onError(e);
+			} catch (final Exception callback) {
+				log.debug("{}: release callback failed", serverName, callback);
+			} finally {
+				sendNext();
+			}
+		}
+	}
+
+	/**
+	 * Hands the slot of a finished release to the next one waiting.
+	 */
+	private void sendNext() {
+		final Pending next;
+		synchronized (this) {
+			next = waiting.poll();
+			if (next == null) {
+				inFlight--;
+				if (inFlight == 0) {
+					notifyAll();
+				}
+				return;
+			}
+		}
+		send(next.object, next.continuation);
+	}
+
+	/**
+	 * Waits until every release has been answered.
+	 *
+	 * @param deadline
+	 *            in {@link System#nanoTime()} terms
+	 * @return false if some were still pending at the deadline
+	 */
+	public synchronized boolean awaitIdle(long deadline) {
+		long left;
+		while (inFlight > 0 || !waiting.isEmpty()) {
+			left = deadline - System.nanoTime();
+			if (left <= 0) {
+				return false;
+			}
+			try {
+				TimeUnit.NANOSECONDS.timedWait(this, left);
+			} catch (final InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return releases sent or waiting, not answered yet
+	 */
+	public synchronized int getPending() {
+		return inFlight + waiting.size();
+	}
+
+	/**
+	 * @return release calls sent so far
+	 */
+	public long getSentCount() {
+		return sent.get();
+	}
+
+	/**
+	 * @return releases that had to wait for a slot
+	 */
+	public long getQueuedCount() {
+		return queued.get();
+	}
+
+}
@@ -3,18 +3,21 @@ package org.johan.groupcall;
 
 import java.io.Closeable;
 import java.io.IOException;
-import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collection;
-import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
-
-import javax.annotation.PreDestroy;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.kurento.client.Continuation;
-import org.kurento.client.MediaPipeline;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaElement;
+import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.web.socket.WebSocketSession;
@@ -24,13 +27,57 @@ import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonPrimitive;
 
-public class Room implements Closeable {
+public class Room implements Closeable, MediaSourceResolver {
 	private final Logger log = LoggerFactory.getLogger(Room.class);
 
 	private final ConcurrentMap<String, UserSession> participants = new ConcurrentHashMap<>();
-	private final MediaPipeline pipeline;
+	/** Numbers the joins, see {@link ParticipantId} */
+	private final AtomicLong generations = new AtomicLong();
+	private final List<RoomLeg> legs = new CopyOnWriteArrayList<>();
+	private final MediaServerPool mediaServers;
+	private final RoomSettings settings;
+	private final BandwidthPolicy bandwidth;
+	private final Object rebalancing = new Object();
+
+	/** Null unless the room forwards only the last N active publishers */
+	private final ActiveSpeakers speakers;
+	/** The active set last announced; guarded by speakers */
+	private ActiveSpeakers.Snapshot forwarded = ActiveSpeakers.Snapshot.EMPTY;
+	private final OutboundWriter outboundWriter;
+	private volatile RoomMode mode;
+	private CompositeHub hub;
+	private final EndpointLedger ledger;
 	private final String name;
-	private final SimpleDateFormat sdf = new SimpleDateFormat("HH:mm:ss");
+	private final ChatLog chatLog;
+	private final RoomJournal journal;
+
+	/**
+	 * Endpoints of participants from before a restart, by name, kept for
+	 * them until they reconnect or the reattach window closes.
+	 */
+	private final ConcurrentMap<String, Detached> detached = new ConcurrentHashMap<>();
+	private volatile long reattachUntil;
+
+	private static final class Detached {
+		private final boolean visible;
+		private final boolean admin;
+		private WebRtcEndpoint outgoing;
+		/** By sender name */
+		private final Map<String, WebRtcEndpoint> incoming = new ConcurrentHashMap<>();
+
+		private Detached(boolean visible, boolean admin) {
+			this.visible = visible;
+			this.admin = admin;
+		}
+	}
+
+	/** Guards pendingJoins, idleSince and retired */
+	private final Object lifecycle = new Object();
+	/** Held while a join replaces and adds its participant */
+	private final Object joining = new Object();
+	private int pendingJoins = 0;
+	private long idleSince = System.nanoTime();
+	private boolean retired = false;
 
 	/**
 	 * @return the name
@@ -39,52 +86,825 @@ public class Room implements Closeable {
 		return name;
 	}
 
-	public Room(String roomName, MediaPipeline pipeline) {
+	/**
+	 * @param roomName
+	 * @param mode
+	 *            how media is routed at first
+	 * @param primaryLeg
+	 *            the leg on the media server the room was placed on
+	 * @param mediaServers
+	 *            where further legs are placed
+	 * @param outboundWriter
+	 * @param settings
+	 * @param bandwidth
+	 *            caps the streams of the room
+	 * @param journal
+	 *            where the media objects of the room are recorded
+	 */
+	public Room(String roomName, RoomMode mode, RoomLeg primaryLeg,
+			MediaServerPool mediaServers, OutboundWriter outboundWriter,
+			RoomSettings settings, BandwidthPolicy bandwidth,
+			RoomJournal journal) {
 		this.name = roomName;
-		this.pipeline = pipeline;
-		log.info("ROOM {} has been created", roomName);
+		this.mode = mode;
+		this.legs.add(primaryLeg);
+		this.mediaServers = mediaServers;
+		this.outboundWriter = outboundWriter;
+		this.settings = settings;
+		this.bandwidth = bandwidth;
+		this.journal = journal;
+		this.chatLog = new ChatLog(settings.getChatHistorySize(),
+				settings.getChatHistoryBytes());
+		this.speakers = settings.getLastN() > 0 ? new ActiveSpeakers(
+				settings.getLastN()) : null;
+		this.ledger = new EndpointLedger(roomName);
+		if (mode == RoomMode.COMPOSITE) {
+			hub = new CompositeHub(roomName, primaryLeg, ledger);
+		} else {
+			journal.roomCreated(roomName, primaryLeg.getServer().getName(),
+					primaryLeg.getPipeline().getId());
+		}
+		log.info("ROOM {} has been created ({})", roomName, mode);
+	}
+
+	/**
+	 * @return how media is currently routed in this room
+	 */
+	public RoomMode getMode() {
+		return mode;
 	}
 
-	@PreDestroy
-	private void shutdown() {
-		this.close();
+
+	public UserSession join(String userName, WebSocketSession session) {
+		return join(userName, session, JoinTrace.NONE);
+	}
+
+	/**
+	 * Like {@link #join(String, WebSocketSession)}, marking the steps of the
+	 * join on {@code trace} and finishing it once the new participant's
+	 * outgoing endpoint is ready.
+	 */
+	public UserSession join(String userName, WebSocketSession session,
+			JoinTrace trace) {
+		return join(userName, session, trace, false);
 	}
 
-	public UserSession join(String userName, WebSocketSession session)
-			throws IOException {
+	/**
+	 * Like {@link #join(String, WebSocketSession, JoinTrace)}.
+	 * 
+	 * @param resume
+	 *            true if the client still has its peers from before a restart
+	 *            of the application, in which case it gets its endpoints back
+	 *            if they are still {@link #expectReattach waiting} for it
+	 */
+	public UserSession join(String userName, WebSocketSession session,
+			JoinTrace trace, boolean resume) {
 		log.info("ROOM {}: adding participant {}", name, userName);
-		final UserSession participant = new UserSession(userName, this.name,
-				session, pipeline);
-		participant.createOrUpdateEndpoint(pipeline);
-		if (participants.size() <= 0) {
-			// First to connect will become admin (visible)
-			participant.setAdmin(true);
-			participant.setVisible(true);
-		} 
+		final UserSession participant;
+		final boolean reattaching;
+		// Replacing a participant is check, leave, put: two joins under the
+		// same name must not interleave, or one of them is never torn down
+		synchronized (joining) {
+			Detached reattached = detached.remove(userName);
+			if (reattached != null && !resume) {
+				log.info("ROOM {}: {} rejoined from scratch, dropping its endpoints",
+						name, userName);
+				dropDetached(userName, reattached);
+				reattached = null;
+			}
+			final UserSession previous = participants.get(userName);
+			if (previous != null) {
+				// Rejoined before the old session was torn down; drop it now,
+				// its own teardown will find nothing left to remove
+				log.info("ROOM {}: {} rejoined, replacing {}", name, userName,
+						previous.getId());
+				try {
+					leave(previous);
+				} catch (final IOException e) {
+					log.warn("ROOM {}: could not release {}", name,
+							previous.getId(), e);
+				}
+			}
+			final RoomLeg leg;
+			if (reattached != null) {
+				// Restored rooms only have their primary leg
+				leg = legs.get(0);
+				leg.participantJoined();
+			} else {
+				leg = chooseLeg();
+			}
+			participant = new UserSession(new ParticipantId(
+					this.name, userName, generations.incrementAndGet()), session,
+					outboundWriter.newQueue("USER " + userName, session), leg,
+					this, ledger, journal, new RateLimiter(
+							settings.getChatRatePerSecond(),
+							settings.getChatBurst()));
+			if (reattached != null) {
+				participant.setAdmin(reattached.admin);
+				participant.setVisible(reattached.visible);
+			} else if (participants.size() <= 0 && !isAdminDetached()) {
+				// First to connect will become admin (visible)
+				participant.setAdmin(true);
+				participant.setVisible(true);
+			}
+			journal.participant(name, userName, participant.isVisible(),
+					participant.isAdmin());
+			if (reattached != null) {
+				participant.reattach(reattached.outgoing, reattached.incoming);
+			} else {
+				participant.createOrUpdateEndpoint(leg.getPipeline());
+			}
 		
-		joinRoom(participant);
-		participants.put(participant.getName(), participant);
-		sendParticipantNames(participant);
+			reattaching = reattached != null;
+			joinRoom(participant, reattaching);
+			participants.put(participant.getName(), participant);
+		}
+		final boolean activeSetChanged = isLastN() && participant.isVisible()
+				&& speakers.touch(userName);
+		sendParticipantNames(participant, reattaching);
+		if (chatLog.size() > 0) {
+			// Queued right behind existingParticipants, so usually in its frame
+			sendChatHistory(participant, 0);
+		}
+		if (activeSetChanged) {
+			updateActiveSet();
+		}
+
+		final int threshold = settings.getCompositeThreshold();
+		if (mode == RoomMode.MESH && threshold > 0
+				&& participants.size() > threshold) {
+			switchToComposite();
+		} else if (mode == RoomMode.COMPOSITE && participant.isVisible()) {
+			connectToHub(participant);
+		}
+		rebalanceBandwidth();
+		trace.mark(JoinTrace.Step.JOIN_ROOM);
+		participant.whenOutgoingReady(trace);
 		return participant;
 	}
 
+	/**
+	 * Moves a mesh room to composite mode: drops every per publisher
+	 * endpoint, feeds the visible publishers into the hub and tells the
+	 * clients to receive the mix instead.
+	 */
+	private synchronized void switchToComposite() {
+		if (mode == RoomMode.COMPOSITE) {
+			return;
+		}
+		log.info("ROOM {}: switching to composite mode with {} participants",
+				name, participants.size());
+		hub = new CompositeHub(name, legs.get(0), ledger);
+		mode = RoomMode.COMPOSITE;
+		// Composite rooms are rebuilt rather than reattached after a restart
+		journal.forget(name);
+
+		for (final UserSession participant : participants.values()) {
+			for (final UserSession sender : participants.values()) {
+				if (!sender.equals(participant)) {
+					participant.cancelVideoFrom(sender);
+				}
+			}
+		}
+		for (final UserSession participant : participants.values()) {
+			if (participant.isVisible()) {
+				connectToHub(participant);
+			}
+		}
+
+		final JsonObject modeMsg = new JsonObject();
+		modeMsg.addProperty("id", "roomModeChanged");
+		modeMsg.addProperty("mode", mode.getProtocolName());
+		broadcast(modeMsg);
+	}
+
+	private void connectToHub(final UserSession publisher) {
+		hub.port(publisher.getName(), new Continuation<HubPort>() {
+
+			@Override
+			public void onSuccess(final HubPort port) throws Exception {
+				resolveSourceIn(publisher, hub.getLeg(),
+						new Continuation<MediaElement>() {
+
+							@Override
+							public void onSuccess(MediaElement source)
+									throws Exception {
+								source.connect(port, hub.getLeg().getServer()
+										.getLatencies().timed(
+												KurentoOperation.CONNECT,
+												hubLogger(publisher,
+														"connected to")));
+							}
+
+							@Override
+							public void onError(Throwable cause)
+									throws Exception {
+								log.warn("ROOM {}: no media of {} for the hub",
+										name, publisher.getName(), cause);
+							}
+						});
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: no hub port for {}", name,
+						publisher.getName(), cause);
+			}
+		});
+	}
+
+	private void disconnectFromHub(final UserSession publisher) {
+		if (publisher.getLeg() != hub.getLeg()) {
+			// Dropping the relay (done by the caller) is enough
+			return;
+		}
+		final WebRtcEndpoint outgoing = publisher.getOutgoingWebRtcPeer();
+		if (outgoing == null) {
+			return;
+		}
+		hub.port(publisher.getName(), new Continuation<HubPort>() {
+
+			@Override
+			public void onSuccess(HubPort port) throws Exception {
+				outgoing.disconnect(port, hubLogger(publisher,
+						"disconnected from"));
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: no hub port for {}", name,
+						publisher.getName(), cause);
+			}
+		});
+	}
+
+	private Continuation<Void> hubLogger(final UserSession publisher,
+			final String what) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				log.debug("ROOM {}: {} {} hub", name, publisher.getName(), what);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("ROOM {}: {} not {} hub", name, publisher.getName(),
+						what, cause);
+			}
+		};
+	}
+
+	/**
+	 * Keeps the room from being retired until {@link #endJoin()}, so that a
+	 * user can join it.
+	 * 
+	 * @return false if the room has already been retired
+	 */
+	public boolean beginJoin() {
+		synchronized (lifecycle) {
+			if (retired) {
+				return false;
+			}
+			pendingJoins++;
+			return true;
+		}
+	}
+
+	public void endJoin() {
+		synchronized (lifecycle) {
+			pendingJoins--;
+			idleSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Retires the room if nobody has been in it, or about to join it, for
+	 * the grace period. A retired room must be closed and never joined again.
+	 * 
+	 * @return true if the room was retired by this call
+	 */
+	public boolean retireIfIdle(long graceNanos) {
+		synchronized (lifecycle) {
+			if (retired || pendingJoins > 0 || !participants.isEmpty()
+					|| !detached.isEmpty()
+					|| System.nanoTime() - idleSince < graceNanos) {
+				return false;
+			}
+			retired = true;
+			return true;
+		}
+	}
+
 	public void leave(UserSession user) throws IOException {
 		log.debug("PARTICIPANT {}: Leaving room {}", user.getName(), this.name);
-		this.removeParticipant(user.getName());
+		// Before the room can look empty, so the grace period starts now
+		synchronized (lifecycle) {
+			idleSince = System.nanoTime();
+		}
+		final boolean removed = this.removeParticipant(user);
 		user.close();
+		if (!removed) {
+			// Already replaced; relays and hub port belong to the new one
+			return;
+		}
+		journal.participantLeft(name, user.getName());
+		releaseRelaysOf(user.getName());
+		if (hub != null) {
+			hub.removePort(user.getName());
+		}
+		if (user.getLeg().participantLeft() <= 0) {
+			releaseLeg(user.getLeg());
+		}
+		if (isLastN() && speakers.remove(user.getName())) {
+			updateActiveSet();
+		} else {
+			rebalanceBandwidth();
+		}
+	}
+
+	/**
+	 * Keeps the endpoints that survived a restart for the participants they
+	 * belonged to, registering them in the ledger. Whatever is not reattached
+	 * within the window is released by {@link #expireReattach()}.
+	 * 
+	 * @param users
+	 *            the participants from before the restart
+	 * @param alive
+	 *            the ids of the elements still in the primary pipeline
+	 * @param windowNanos
+	 *            how long the participants have to reconnect
+	 */
+	public void expectReattach(Map<String, RoomJournal.ParticipantRecord> users,
+			Set<String> alive, long windowNanos) {
+		final RoomLeg leg = legs.get(0);
+		final MediaServerClient client = leg.getServer().getClient();
+		int endpoints = 0;
+		for (final Map.Entry<String, RoomJournal.ParticipantRecord> user : users
+				.entrySet()) {
+			final Detached left = new Detached(user.getValue().isVisible(),
+					user.getValue().isAdmin());
+			for (final Map.Entry<String, String> endpoint : user.getValue()
+					.getEndpoints().entrySet()) {
+				if (!alive.contains(endpoint.getValue())) {
+					continue;
+				}
+				final String sender = endpoint.getKey();
+				final WebRtcEndpoint element = ledger.register(leg, client
+						.getById(endpoint.getValue(), WebRtcEndpoint.class),
+						"detached EP of " + user.getKey() + " for " + sender);
+				if (sender.equals(user.getKey())) {
+					left.outgoing = element;
+				} else {
+					left.incoming.put(sender, element);
+				}
+				endpoints++;
+			}
+			detached.put(user.getKey(), left);
+		}
+		reattachUntil = System.nanoTime() + windowNanos;
+		log.info("ROOM {}: {} endpoints of {} participants waiting to be reattached",
+				name, endpoints, users.size());
+	}
+
+	/**
+	 * Drops the participants that have not reconnected within the reattach
+	 * window, releasing their endpoints and telling the others they left.
+	 */
+	public void expireReattach() {
+		if (detached.isEmpty() || System.nanoTime() - reattachUntil < 0) {
+			return;
+		}
+		for (final String userName : new ArrayList<>(detached.keySet())) {
+			final Detached left = detached.remove(userName);
+			if (left == null) {
+				continue;
+			}
+			log.info("ROOM {}: {} did not come back, releasing its endpoints",
+					name, userName);
+			dropDetached(userName, left);
+			final JsonObject participantLeft = new JsonObject();
+			participantLeft.addProperty("id", "participantLeft");
+			participantLeft.addProperty("name", userName);
+			participantLeft.addProperty("isyou", false);
+			broadcast(participantLeft);
+		}
+		synchronized (lifecycle) {
+			idleSince = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Releases the endpoints of a participant from before a restart, and
+	 * those receiving its media, so that it starts from scratch.
+	 */
+	private void dropDetached(String userName, Detached left) {
+		journal.participantLeft(name, userName);
+		ledger.release(left.outgoing);
+		for (final WebRtcEndpoint incoming : left.incoming.values()) {
+			ledger.release(incoming);
+		}
+		for (final Map.Entry<String, Detached> other : detached.entrySet()) {
+			final WebRtcEndpoint incoming = other.getValue().incoming
+					.remove(userName);
+			if (incoming != null) {
+				journal.endpointReleased(name, other.getKey(), userName);
+				ledger.release(incoming);
+			}
+		}
+		for (final UserSession participant : participants.values()) {
+			participant.cancelVideoFrom(userName);
+		}
+	}
+
+	private boolean isAdminDetached() {
+		for (final Detached left : detached.values()) {
+			if (left.admin) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Leaves the room's media objects alive when the application shuts down,
+	 * for the next run to reattach.
+	 */
+	public void detach() {
+		ledger.detach();
+	}
+
+	/**
+	 * @return true if subscribers only get the last N active publishers
+	 */
+	public boolean isLastN() {
+		return speakers != null && mode == RoomMode.MESH;
+	}
+
+	/**
+	 * @return true if subscribers get the publisher's video
+	 */
+	public boolean isForwarded(UserSession publisher) {
+		if (!isLastN()) {
+			return true;
+		}
+		synchronized (speakers) {
+			return forwarded.isActive(publisher.getName());
+		}
+	}
+
+	/**
+	 * A hint that a user is speaking. In a last-N room a visible user who is
+	 * not forwarded yet takes the place of the least recently active one.
+	 */
+	public void speaking(UserSession user) {
+		if (!isLastN() || !user.isVisible()) {
+			return;
+		}
+		if (speakers.touch(user.getName())) {
+			log.debug("ROOM {}: {} became active", name, user.getName());
+			updateActiveSet();
+		}
+	}
+
+	/**
+	 * Moves every subscriber to the current active set. Publishers that drop
+	 * out are disconnected from their endpoints, which are kept while the
+	 * publisher is parked and reconnected if it comes back; endpoints of
+	 * publishers that are no longer kept are released. Clients negotiate
+	 * with the publishers they have no endpoint for yet.
+	 */
+	private void updateActiveSet() {
+		final JsonObject message = new JsonObject();
+		synchronized (speakers) {
+			final ActiveSpeakers.Snapshot previous = forwarded;
+			final ActiveSpeakers.Snapshot current = speakers.snapshot();
+			forwarded = current;
+
+			for (final UserSession subscriber : participants.values()) {
+				for (final String publisher : previous.getActive()) {
+					final UserSession sender = participants.get(publisher);
+					if (sender != null && sender != subscriber
+							&& !current.isActive(publisher)
+							&& current.isKept(publisher)) {
+						subscriber.pauseVideoFrom(sender);
+					}
+				}
+				for (final String publisher : current.getActive()) {
+					final UserSession sender = participants.get(publisher);
+					if (sender != null && sender != subscriber
+							&& !previous.isActive(publisher)) {
+						subscriber.resumeVideoFrom(sender);
+					}
+				}
+				for (final String publisher : previous.getParked()) {
+					if (!current.isKept(publisher)) {
+						subscriber.cancelVideoFrom(publisher);
+					}
+				}
+				for (final String publisher : previous.getActive()) {
+					if (!current.isKept(publisher)) {
+						subscriber.cancelVideoFrom(publisher);
+					}
+				}
+			}
+			message.addProperty("id", "activeSet");
+			message.add("active", toJsonArray(current.getActive()));
+			message.add("parked", toJsonArray(current.getParked()));
+		}
+		broadcast(message);
+		rebalanceBandwidth();
+	}
+
+	private static JsonArray toJsonArray(List<String> names) {
+		final JsonArray array = new JsonArray();
+		for (final String name : names) {
+			array.add(new JsonPrimitive(name));
+		}
+		return array;
+	}
+
+	/**
+	 * Recomputes the bandwidth caps of every stream forwarded in the room.
+	 * Subscribers cap what the media server sends them of each publisher;
+	 * publishers cap what they send to the media server at the most any of
+	 * their subscribers gets. Composite rooms forward a single mix and are
+	 * left alone.
+	 */
+	private void rebalanceBandwidth() {
+		if (!bandwidth.isEnabled() || mode != RoomMode.MESH) {
+			return;
+		}
+		synchronized (rebalancing) {
+			final List<UserSession> everyone = new ArrayList<>(
+					participants.values());
+			final List<UserSession> publishers = new ArrayList<>();
+			int publisherWeight = 0;
+			for (final UserSession participant : everyone) {
+				if (participant.isVisible() && isForwarded(participant)) {
+					publishers.add(participant);
+					publisherWeight += bandwidth.weightOf(participant);
+				}
+			}
+			// Every publisher is forwarded to everybody but itself
+			final int roomWeight = publisherWeight * (everyone.size() - 1);
+
+			final Map<String, Integer> publishKbps = new HashMap<>();
+			for (final UserSession subscriber : everyone) {
+				final int subscriberWeight = publisherWeight
+						- (subscriber.isVisible() ? bandwidth
+								.weightOf(subscriber) : 0);
+				for (final UserSession publisher : publishers) {
+					if (publisher == subscriber || !isForwarded(publisher)) {
+						continue;
+					}
+					final int kbps = bandwidth.streamKbps(
+							bandwidth.weightOf(publisher), subscriberWeight,
+							roomWeight);
+					subscriber.setReceiveBandwidth(publisher.getName(), kbps);
+					final Integer highest = publishKbps.get(publisher
+							.getName());
+					if (highest == null || highest < kbps) {
+						publishKbps.put(publisher.getName(), kbps);
+					}
+				}
+			}
+			for (final UserSession publisher : publishers) {
+				final Integer kbps = publishKbps.get(publisher.getName());
+				publisher.setPublishBandwidth(kbps != null ? kbps : bandwidth
+						.getMaxKbps());
+			}
+			log.debug("ROOM {}: bandwidth rebalanced for {} publishers, {} participants",
+					name, publishers.size(), everyone.size());
+		}
+	}
+
+	/**
+	 * Estimates what letting a user join would add to the media servers: its
+	 * outgoing endpoint and one incoming endpoint per visible publisher it
+	 * will receive, or the endpoint receiving the mix in composite mode. A
+	 * user getting its endpoints back after a restart adds nothing.
+	 */
+	public AdmissionControl.Demand estimateJoin(String userName, boolean resume) {
+		final String what = "join of " + userName + " to room " + name;
+		final Detached left = resume ? detached.get(userName) : null;
+		if (left != null) {
+			return new AdmissionControl.Demand(what, legs.get(0).getServer(),
+					legs.get(0), 0, left.admin);
+		}
+		int endpoints = 2;
+		if (mode == RoomMode.MESH) {
+			int publishers = 0;
+			for (final UserSession participant : participants.values()) {
+				if (participant.isVisible()
+						&& !participant.getName().equals(userName)) {
+					publishers++;
+				}
+			}
+			endpoints = 1 + (isLastN() ? Math.min(publishers,
+					settings.getLastN()) : publishers);
+		}
+		final boolean admin = participants.isEmpty() && !isAdminDetached();
+		synchronized (legs) {
+			final RoomLeg leg = leastPopulatedLeg();
+			if (isLegFull(leg)) {
+				final MediaServer server = mediaServers
+						.leastLoaded(usedServers());
+				if (server != null) {
+					return new AdmissionControl.Demand(what, server, null,
+							endpoints, admin);
+				}
+			}
+			return new AdmissionControl.Demand(what, leg.getServer(), leg,
+					endpoints, admin);
+		}
+	}
+
+	/**
+	 * Estimates what a user starting to publish would add: an endpoint for
+	 * every other participant in mesh mode, a hub port in composite mode.
+	 * Its outgoing endpoint is replaced, not added. The endpoints are counted
+	 * against the publisher's leg, where they are unless the room spans
+	 * several media servers.
+	 */
+	public AdmissionControl.Demand estimatePublish(UserSession user) {
+		final int endpoints = mode == RoomMode.MESH ? participants.size() - 1
+				: 1;
+		return new AdmissionControl.Demand("publishing of " + user.getName()
+				+ " in room " + name, user.getLeg().getServer(),
+				user.getLeg(), Math.max(0, endpoints), user.isAdmin());
+	}
+
+	/**
+	 * Picks the leg for a new participant: the least populated leg with room
+	 * left, otherwise a new leg on a media server the room does not use yet.
+	 * In composite mode everybody new joins the hub's leg.
+	 */
+	private RoomLeg chooseLeg() {
+		synchronized (legs) {
+			RoomLeg best = leastPopulatedLeg();
+			if (isLegFull(best)) {
+				final MediaServer server = mediaServers.place(name,
+						usedServers());
+				if (server != null) {
+					best = new RoomLeg(server, server.acquirePipeline());
+					legs.add(best);
+					log.info("ROOM {}: now spans {}", name, legs);
+				}
+			}
+			best.participantJoined();
+			return best;
+		}
+	}
+
+	/**
+	 * @return the hub's leg in composite mode, otherwise the leg with the
+	 *         fewest participants; guarded by legs
+	 */
+	private RoomLeg leastPopulatedLeg() {
+		RoomLeg best = legs.get(0);
+		if (mode == RoomMode.COMPOSITE) {
+			return best;
+		}
+		for (final RoomLeg leg : legs) {
+			if (leg.getParticipantCount() < best.getParticipantCount()) {
+				best = leg;
+			}
+		}
+		return best;
+	}
+
+	/**
+	 * @return true if a mesh room should span another media server rather
+	 *         than add participants to this leg
+	 */
+	private boolean isLegFull(RoomLeg leg) {
+		final int maxParticipantsPerLeg = settings.getMaxParticipantsPerLeg();
+		return mode == RoomMode.MESH && maxParticipantsPerLeg > 0
+				&& leg.getParticipantCount() >= maxParticipantsPerLeg;
+	}
+
+	private List<MediaServer> usedServers() {
+		final List<MediaServer> used = new ArrayList<>();
+		for (final RoomLeg leg : legs) {
+			used.add(leg.getServer());
+		}
+		return used;
+	}
+
+	/**
+	 * Drops a leg nobody is on any more, unless it is the primary one.
+	 */
+	private void releaseLeg(RoomLeg leg) {
+		synchronized (legs) {
+			if (leg == legs.get(0) || leg.getParticipantCount() > 0
+					|| !legs.remove(leg)) {
+				return;
+			}
+		}
+		log.info("ROOM {}: releasing leg on {}", name, leg.getServer()
+				.getName());
+		for (final RoomLeg other : legs) {
+			for (final MediaRelay relay : other.getRelays()) {
+				if (relay.getFrom() == leg
+						&& other.removeRelay(relay.getPublisher()) != null) {
+					relay.release();
+				}
+			}
+		}
+		for (final MediaRelay relay : leg.getRelays()) {
+			relay.release();
+		}
+		leg.retire();
+		ledger.clear(leg);
+		leg.getServer().recyclePipeline(leg.getPipeline());
+	}
+
+	/**
+	 * Releases the relays carrying a publisher's media to other legs, e.g.
+	 * because it left or its outgoing endpoint is replaced.
+	 */
+	private void releaseRelaysOf(String publisher) {
+		for (final RoomLeg leg : legs) {
+			final MediaRelay relay = leg.removeRelay(publisher);
+			if (relay != null) {
+				relay.release();
+			}
+		}
+	}
+
+	@Override
+	public void resolveSource(final UserSession sender,
+			final UserSession subscriber,
+			final Continuation<MediaElement> continuation) {
+		resolveSourceIn(sender, subscriber.getLeg(), continuation);
+	}
+
+	@Override
+	public void resolveMix(final UserSession subscriber,
+			final Continuation<MediaElement> continuation) {
+		if (hub == null) {
+			try {
+				continuation.onError(new IllegalStateException("Room " + name
+						+ " is not in composite mode"));
+			} catch (final Exception e) {
+				log.warn("ROOM {}: mix callback failed", name, e);
+			}
+		} else if (subscriber.getLeg() == hub.getLeg()) {
+			hub.port(subscriber.getName(), continuation);
+		} else {
+			hub.relayedMix(subscriber, continuation);
+		}
+	}
+
+	private void resolveSourceIn(final UserSession sender, final RoomLeg to,
+			final Continuation<MediaElement> continuation) {
+		if (sender.getLeg() == to) {
+			sender.whenOutgoingReady(continuation);
+			return;
+		}
+
+		MediaRelay relay = to.getRelay(sender.getName());
+		if (relay == null) {
+			final MediaRelay created = new MediaRelay(sender.getName(),
+					sender.getLeg(), to, ledger);
+			relay = to.putRelayIfAbsent(sender.getName(), created);
+			if (relay == null) {
+				relay = created;
+				created.start(sender);
+			}
+		}
+
+		final MediaRelay used = relay;
+		used.whenReady(new Continuation<MediaElement>() {
+			@Override
+			public void onSuccess(MediaElement result) throws Exception {
+				continuation.onSuccess(result);
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				// Let the next subscriber try again with a new relay
+				to.removeRelay(sender.getName(), used);
+				continuation.onError(cause);
+			}
+		});
 	}
 
 	/**
 	 * @param participant
-	 * @throws IOException
+	 * @param resumed
+	 *            true if the others still receive the participant through
+	 *            the endpoints they had before a restart
 	 */
-	private Collection<String> joinRoom(UserSession newParticipant)
-			throws IOException {
+	private Collection<String> joinRoom(UserSession newParticipant,
+			boolean resumed) {
 		final JsonObject newParticipantMsg = new JsonObject();
 		newParticipantMsg.addProperty("id", "newParticipantArrived");
 		newParticipantMsg.addProperty("name", newParticipant.getName());
 		newParticipantMsg.addProperty("isAdmin", newParticipant.isAdmin());
 		newParticipantMsg.addProperty("isVisible", newParticipant.isVisible());
+		newParticipantMsg.addProperty("resumed", resumed);
 
 		final List<String> participantsList = new ArrayList<>(participants
 				.values().size());
@@ -92,27 +912,25 @@ public class Room implements Closeable {
 				"ROOM {}: notifying other participants of new participant {}",
 				name, newParticipant.getName());
 
+		broadcast(newParticipantMsg);
 		for (final UserSession participant : participants.values()) {
-			try {
-				participant.sendMessage(newParticipantMsg);
-			} catch (final IOException e) {
-				log.debug("ROOM {}: participant {} could not be notified",
-						name, participant.getName(), e);
-			}
 			participantsList.add(participant.getName());
 		}
 
 		return participantsList;
 	}
 
-	private void removeParticipant(String name) throws IOException {
-		
-		if (!participants.containsKey(name)) {
-			log.warn("ROOM {}: User {} already removed. No need to remove twice. Returning", this.name, name);
-			return;
+	/**
+	 * @return false if the user was already removed
+	 */
+	private boolean removeParticipant(UserSession user) {
+		final String name = user.getName();
+		if (!participants.remove(name, user)) {
+			log.warn("ROOM {}: User {} already removed. No need to remove twice. Returning", this.name, user.getId());
+			return false;
 		}
-		
-		UserSession removedUser = participants.remove(name);
+		final UserSession removedUser = user;
+
 		
 		// If admin quits, we have to promote someone else. This is a TODO!
 		UserSession newAdminUser = null;
@@ -123,35 +941,32 @@ public class Room implements Closeable {
 		log.debug("ROOM {}: notifying all users that {} is leaving the room",
 				this.name, name);
 
-		final List<String> unnotifiedParticipants = new ArrayList<>();
 		final JsonObject participantLeftJson = new JsonObject();
 		participantLeftJson.addProperty("id", "participantLeft");
 		participantLeftJson.addProperty("name", name);
+		final OutboundFrame participantLeft = OutboundFrame.of(
+				participantLeftJson, "isyou");
 		for (final UserSession participant : participants.values()) {
-			try {
-				participant.cancelVideoFrom(name);
-				participant.sendMessage(participantLeftJson);
-			} catch (final IOException e) {
-				unnotifiedParticipants.add(participant.getName()); 
-			}
+			participant.cancelVideoFrom(name);
+			participant.sendFrame(participantLeft);
 		}
 		
 		// Also sending message to the user itself so that it can return to the lobby
-		try {
-			participantLeftJson.addProperty("isyou", true);
-			removedUser.sendMessage(participantLeftJson);			
-		}catch (final IOException e) {
-		}
+		removedUser.sendFrame(participantLeft.withFlagSet());
+		return true;
 
-		if (!unnotifiedParticipants.isEmpty()) {
-			log.debug(
-					"ROOM {}: The users {} could not be notified that {} left the room",
-					this.name, unnotifiedParticipants, name);
-		}
+	}
 
+	public void sendParticipantNames(UserSession user) {
+		sendParticipantNames(user, false);
 	}
 
-	public void sendParticipantNames(UserSession user) throws IOException {
+	/**
+	 * @param resumed
+	 *            true if the user got its endpoints back, so that its client
+	 *            keeps the peers it has
+	 */
+	private void sendParticipantNames(UserSession user, boolean resumed) {
 
 		final JsonArray participantsArray = new JsonArray();
 		for (final UserSession participant : this.getParticipants()) {
@@ -170,12 +985,57 @@ public class Room implements Closeable {
 		existingParticipantsMsg.addProperty("id", "existingParticipants");
 		existingParticipantsMsg.addProperty("isNewUserAdmin", user.isAdmin());
 		existingParticipantsMsg.addProperty("isNewUserVisible", user.isVisible());
+		existingParticipantsMsg.addProperty("mode", mode.getProtocolName());
+		existingParticipantsMsg.addProperty("resumed", resumed);
+		if (isLastN()) {
+			synchronized (speakers) {
+				existingParticipantsMsg.addProperty("lastN",
+						settings.getLastN());
+				existingParticipantsMsg.add("active",
+						toJsonArray(forwarded.getActive()));
+				existingParticipantsMsg.add("parked",
+						toJsonArray(forwarded.getParked()));
+			}
+		}
 		existingParticipantsMsg.add("data", participantsArray);
 		log.debug("PARTICIPANT {}: sending a list of {} participants",
 				user.getName(), participantsArray.size());
 		user.sendMessage(existingParticipantsMsg);
 	}
 
+	/**
+	 * @return the media server the room was placed on
+	 */
+	public MediaServer getServer() {
+		return legs.get(0).getServer();
+	}
+
+	/**
+	 * @return the owner of every media element of this room
+	 */
+	public EndpointLedger getEndpointLedger() {
+		return ledger;
+	}
+
+	/**
+	 * Releases media elements of this room's pipelines nobody owns any more.
+	 * Blocks on the media servers.
+	 * 
+	 * @return the number of orphans released
+	 */
+	public int reconcileEndpoints() {
+		final int orphans = ledger.reconcile(legs);
+		log.debug("ROOM {}: endpoints {}", name, ledger);
+		return orphans;
+	}
+
+	/**
+	 * @return the parts of this room, one per media server it spans
+	 */
+	public List<RoomLeg> getLegs() {
+		return legs;
+	}
+
 	/**
 	 * @return a collection with all the participants in the room
 	 */
@@ -193,6 +1053,24 @@ public class Room implements Closeable {
 
 	@Override
 	public void close() {
+		close(true);
+	}
+
+	/**
+	 * Closes the room when the application shuts down. Its pipelines are
+	 * released rather than recycled, since the pools are going away too.
+	 */
+	public void shutdown() {
+		close(false);
+	}
+
+	private void close(boolean recycle) {
+		// The elements go with their pipeline, or the pool cleans them up:
+		// forget them first, so that the participants' teardown does not
+		// release them one by one
+		for (final RoomLeg leg : legs) {
+			ledger.clear(leg);
+		}
 		for (final UserSession user : participants.values()) {
 			try {
 				user.close();
@@ -203,20 +1081,26 @@ public class Room implements Closeable {
 		}
 
 		participants.clear();
+		journal.roomClosed(name);
 
-		pipeline.release(new Continuation<Void>() {
+		if (hub != null) {
+			hub.release();
+		}
 
-			@Override
-			public void onSuccess(Void result) throws Exception {
-				log.trace("ROOM {}: Released Pipeline", Room.this.name);
+		// The pools release whatever endpoints are left and keep the
+		// pipelines for the next rooms, or release them if they have enough
+		for (final RoomLeg leg : legs) {
+			for (final MediaRelay relay : leg.getRelays()) {
+				relay.release();
 			}
-
-			@Override
-			public void onError(Throwable cause) throws Exception {
-				log.warn("PARTICIPANT {}: Could not release Pipeline",
-						Room.this.name);
+			leg.retire();
+			ledger.clear(leg);
+			if (recycle) {
+				leg.getServer().recyclePipeline(leg.getPipeline());
+			} else {
+				leg.getServer().releasePipeline(leg.getPipeline());
 			}
-		});
+		}
 
 		log.debug("Room {} closed", this.name);
 	}
@@ -227,49 +1111,119 @@ public class Room implements Closeable {
 	 */
 	public void updateVisibilityFor(UserSession user) {
 		user.setVisible(!user.isVisible());
+		journal.participant(name, user.getName(), user.isVisible(),
+				user.isAdmin());
+		// Hub and relays are fed by the endpoint being replaced or dropped
+		if (mode == RoomMode.COMPOSITE) {
+			disconnectFromHub(user);
+		}
+		releaseRelaysOf(user.getName());
 		if (user.isVisible()) {
-			user.createOrUpdateEndpoint(pipeline);
+			user.createOrUpdateEndpoint(user.getLeg().getPipeline());
+			if (mode == RoomMode.COMPOSITE) {
+				connectToHub(user);
+			}
 		}
 		final JsonObject updateVisibilityMsg = new JsonObject();
 		updateVisibilityMsg.addProperty("id", "updateVisibility");
 		updateVisibilityMsg.addProperty("user", user.getName());
 		updateVisibilityMsg.addProperty("visibility", user.isVisible());
-		for (final UserSession participant : participants.values()) {
-			try {
-				participant.sendMessage(updateVisibilityMsg);
-				
+		broadcast(updateVisibilityMsg);
+
 // This somehow also closes the websocket... avoid until clear...
-				if (!user.isVisible()) {
-					participant.cancelVideoFrom(user);					
-				}
-			} catch (final IOException e) {
-				log.warn(e.getLocalizedMessage());
-				e.printStackTrace();
+		if (!user.isVisible() && mode == RoomMode.MESH) {
+			for (final UserSession participant : participants.values()) {
+				participant.cancelVideoFrom(user);					
+			}
+		}
+		if (isLastN()) {
+			final boolean changed = user.isVisible() ? speakers.touch(user
+					.getName()) : speakers.remove(user.getName());
+			if (changed) {
+				updateActiveSet();
+				return;
 			}
 		}
+		rebalanceBandwidth();
 		
 	}
 
 	public void distributeChatMessage(UserSession chatMsgSender, String text) {
-		Date now = new Date();
-
-		String nowStr = sdf.format(now);
+		if (!chatMsgSender.allowChat()) {
+			log.debug("ROOM {}: dropping chat message of {}, sent too fast",
+					name, chatMsgSender.getName());
+			return;
+		}
+		final ChatLog.Entry entry = chatLog.append(chatMsgSender.getName(),
+				ChatLog.now(), truncate(text, settings.getChatMaxLength()));
 		
+		final JsonObject chatMessage = new JsonObject();
+		chatMessage.addProperty("id", "chatMessageReceived");
+		chatMessage.addProperty("sender", entry.getSender());
+		chatMessage.addProperty("time", entry.getTime());
+		chatMessage.addProperty("text", entry.getText());
+		chatMessage.addProperty("seq", entry.getSeq());
+		broadcast(chatMessage, chatMsgSender, "isYou");
+		
+	}
+
+	/**
+	 * Cuts off chat text beyond {@code maxLength} characters, so that one
+	 * message cannot flood the clients or push the whole history out of the
+	 * log. A surrogate pair is not split.
+	 */
+	private String truncate(String text, int maxLength) {
+		if (maxLength <= 0 || text.length() <= maxLength) {
+			return text;
+		}
+		log.debug("ROOM {}: cutting chat message of {} chars to {}", name,
+				text.length(), maxLength);
+		final int end = Character.isHighSurrogate(text.charAt(maxLength - 1)) ? maxLength - 1
+				: maxLength;
+		return text.substring(0, end);
+	}
+
+	/**
+	 * Sends a user a page of the chat history.
+	 * 
+	 * @param before
+	 *            the cursor from the previous page, or 0 for the latest
+	 *            messages
+	 */
+	public void sendChatHistory(UserSession user, long before) {
+		user.sendMessage(chatLog.pageMessage(before,
+				settings.getChatPageSize()));
+	}
+
+	/**
+	 * Sends the same message to every participant. It is serialized once and
+	 * the resulting frame is shared by all recipients.
+	 * 
+	 * @param message
+	 */
+	public void broadcast(JsonObject message) {
+		final OutboundFrame frame = OutboundFrame.of(message);
 		for (final UserSession participant : participants.values()) {
-			final JsonObject chatMessage = new JsonObject();
-			chatMessage.addProperty("id", "chatMessageReceived");
-			chatMessage.addProperty("sender", chatMsgSender.getName());
-			chatMessage.addProperty("time", nowStr);
-			chatMessage.addProperty("text", text);
-			chatMessage.addProperty("isYou", participant.equals(chatMsgSender));
-			try {
-				participant.sendMessage(chatMessage);
-			} catch (final IOException e) {
-				log.warn(e.getLocalizedMessage());
-				e.printStackTrace();
-			}
+			participant.sendFrame(frame);
+		}
+	}
+
+	/**
+	 * Like {@link #broadcast(JsonObject)}, but the message carries a boolean
+	 * {@code selfFlag} which is true only in the copy sent to {@code self}.
+	 * The sender's copy is derived from the shared frame, so the message is
+	 * still serialized only once.
+	 * 
+	 * @param message
+	 * @param self
+	 * @param selfFlag
+	 */
+	public void broadcast(JsonObject message, UserSession self, String selfFlag) {
+		final OutboundFrame frame = OutboundFrame.of(message, selfFlag);
+		final OutboundFrame ownFrame = frame.withFlagSet();
+		for (final UserSession participant : participants.values()) {
+			participant.sendFrame(participant.equals(self) ? ownFrame : frame);
 		}
-		
 	}
 
 }
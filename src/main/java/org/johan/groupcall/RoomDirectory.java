@@ -0,0 +1,27 @@
+package org.johan.groupcall;
+
+/**
+ * Records which signaling node owns each room. All participants of a room
+ * must be connected to its owner, since the room's state lives there.
+ * Nodes are known by the URL clients use to reach their signaling endpoint.
+ */
+public interface RoomDirectory {
+
+	/**
+	 * Makes {@code node} the owner of a room, unless another node owns it.
+	 * 
+	 * @return the owner of the room
+	 */
+	String claim(String room, String node);
+
+	/**
+	 * @return the owner of a room, or null if nobody owns it
+	 */
+	String ownerOf(String room);
+
+	/**
+	 * Gives up a room owned by {@code node}, e.g. once it has been closed.
+	 */
+	void release(String room, String node);
+
+}
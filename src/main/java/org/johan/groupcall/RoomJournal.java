@@ -0,0 +1,428 @@
+package org.johan.groupcall;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * An append-only log of which media objects the rooms use: the pipeline of
+ * each room and the endpoints of each participant. After a restart the
+ * rooms can be rebuilt around the same objects, so that reconnecting
+ * clients find their media where they left it.
+ *
+ * One record per line, fields separated by tabs and URL encoded:
+ * <ul>
+ * <li>{@code R room server pipeline} / {@code -R room}</li>
+ * <li>{@code U room user visible admin} / {@code -U room user}</li>
+ * <li>{@code E room user sender endpoint} / {@code -E room user sender}, the
+ * sender being the user itself for its outgoing endpoint</li>
+ * </ul>
+ * The live state is mirrored in memory and the file is rewritten from it
+ * once it holds mostly dead records.
+ *
+ * Disabled unless {@code snapshot.file} is set.
+ */
+public class RoomJournal {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(RoomJournal.class);
+
+	public static final class RoomRecord {
+		private final String name;
+		private final String server;
+		private final String pipeline;
+		private final Map<String, ParticipantRecord> participants = new LinkedHashMap<>();
+
+		RoomRecord(String name, String server, String pipeline) {
+			this.name = name;
+			this.server = server;
+			this.pipeline = pipeline;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the name of the media server, as in the pool
+		 */
+		public String getServer() {
+			return server;
+		}
+
+		public String getPipeline() {
+			return pipeline;
+		}
+
+		public Map<String, ParticipantRecord> getParticipants() {
+			return participants;
+		}
+	}
+
+	public static final class ParticipantRecord {
+		private boolean visible;
+		private boolean admin;
+		/** Endpoint ids by sender; the user's own name for the outgoing one */
+		private final Map<String, String> endpoints = new HashMap<>();
+
+		public boolean isVisible() {
+			return visible;
+		}
+
+		public boolean isAdmin() {
+			return admin;
+		}
+
+		public Map<String, String> getEndpoints() {
+			return endpoints;
+		}
+	}
+
+	@Value("${snapshot.file:}")
+	private String fileName;
+
+	@Value("${snapshot.flushMillis:200}")
+	private long flushMillis;
+
+	private File file;
+	private Writer writer;
+	private boolean frozen = false;
+	private final Map<String, RoomRecord> state = new HashMap<>();
+	private long records = 0;
+
+	private final ScheduledExecutorService flusher = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "room-journal");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	public RoomJournal() {
+	}
+
+	/**
+	 * A journal writing to {@code file}, e.g. outside of Spring.
+	 */
+	public RoomJournal(String fileName) {
+		this.fileName = fileName;
+		this.flushMillis = 200;
+	}
+
+	public boolean isEnabled() {
+		return fileName != null && !fileName.isEmpty();
+	}
+
+	@PostConstruct
+	public void start() {
+		if (!isEnabled()) {
+			return;
+		}
+		file = new File(fileName);
+		if (file.exists()) {
+			replay();
+		}
+		synchronized (this) {
+			compact();
+		}
+		flusher.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				flush();
+			}
+		}, flushMillis, flushMillis, TimeUnit.MILLISECONDS);
+		log.info("Room journal {}: {} rooms to reattach", file, state.size());
+	}
+
+	/**
+	 * Stops recording, so that tearing down the rooms on shutdown leaves the
+	 * journal as it was while they were live.
+	 */
+	public synchronized void freeze() {
+		frozen = true;
+		try {
+			if (writer != null) {
+				writer.flush();
+			}
+		} catch (final IOException e) {
+			log.warn("Could not flush room journal {}", file, e);
+		}
+	}
+
+	@PreDestroy
+	public void shutdown() {
+		flusher.shutdownNow();
+		synchronized (this) {
+			if (writer != null) {
+				try {
+					writer.close();
+				} catch (final IOException e) {
+					log.warn("Could not close room journal {}", file, e);
+				}
+				writer = null;
+			}
+		}
+	}
+
+	/**
+	 * @return the rooms recorded before the last restart. Once they have been
+	 *         restored, {@link #forget(String)} the ones that could not be.
+	 */
+	public synchronized Collection<RoomRecord> getRooms() {
+		return new ArrayList<>(state.values());
+	}
+
+	public void roomCreated(String room, String server, String pipeline) {
+		append("R", room, server, pipeline);
+	}
+
+	public void roomClosed(String room) {
+		append("-R", room);
+	}
+
+	/**
+	 * Drops a room from the journal without it being closed, e.g. because it
+	 * can no longer be restored.
+	 */
+	public void forget(String room) {
+		append("-R", room);
+	}
+
+	public void participant(String room, String user, boolean visible,
+			boolean admin) {
+		append("U", room, user, String.valueOf(visible),
+				String.valueOf(admin));
+	}
+
+	public void participantLeft(String room, String user) {
+		append("-U", room, user);
+	}
+
+	public void endpoint(String room, String user, String sender,
+			String endpoint) {
+		append("E", room, user, sender, endpoint);
+	}
+
+	public void endpointReleased(String room, String user, String sender) {
+		append("-E", room, user, sender);
+	}
+
+	private void append(String... fields) {
+		if (!isEnabled()) {
+			return;
+		}
+		synchronized (this) {
+			if (frozen) {
+				return;
+			}
+			apply(fields);
+			if (writer == null) {
+				return;
+			}
+			try {
+				writeRecord(writer, fields);
+				records++;
+			} catch (final IOException e) {
+				log.warn("Could not write to room journal {}", file, e);
+			}
+		}
+	}
+
+	private void flush() {
+		synchronized (this) {
+			try {
+				if (records > Math.max(1000, 4 * liveRecords())) {
+					compact();
+				} else if (writer != null) {
+					writer.flush();
+				}
+			} catch (final IOException e) {
+				log.warn("Could not flush room journal {}", file, e);
+			}
+		}
+	}
+
+	/**
+	 * Applies a record to the state in memory.
+	 */
+	private void apply(String[] fields) {
+		final RoomRecord room = state.get(fields[1]);
+		switch (fields[0]) {
+		case "R":
+			// A restored room records its pipeline again, keeping the
+			// participants that have not reattached yet
+			if (room == null || !room.pipeline.equals(fields[3])) {
+				state.put(fields[1], new RoomRecord(fields[1], fields[2],
+						fields[3]));
+			}
+			break;
+		case "-R":
+			state.remove(fields[1]);
+			break;
+		case "U":
+			if (room != null) {
+				ParticipantRecord user = room.participants.get(fields[2]);
+				if (user == null) {
+					user = new ParticipantRecord();
+					room.participants.put(fields[2], user);
+				}
+				user.visible = Boolean.parseBoolean(fields[3]);
+				user.admin = Boolean.parseBoolean(fields[4]);
+			}
+			break;
+		case "-U":
+			if (room != null) {
+				room.participants.remove(fields[2]);
+			}
+			break;
+		case "E":
+		case "-E":
+			final ParticipantRecord user = room == null ? null
+					: room.participants.get(fields[2]);
+			if (user != null) {
+				if (fields[0].equals("E")) {
+					user.endpoints.put(fields[3], fields[4]);
+				} else {
+					user.endpoints.remove(fields[3]);
+				}
+			}
+			break;
+		default:
+			throw new IllegalArgumentException("Unknown record " + fields[0]);
+		}
+	}
+
+	private void replay() {
+		int lines = 0;
+		try (BufferedReader reader = new BufferedReader(new InputStreamReader(
+				new FileInputStream(file), StandardCharsets.UTF_8))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				lines++;
+				try {
+					apply(decode(line));
+				} catch (final RuntimeException e) {
+					// Most likely the last line, cut short by a crash
+					log.warn("Skipping record {} of room journal {}: {}",
+							lines, file, e.getMessage());
+				}
+			}
+		} catch (final IOException e) {
+			log.warn("Could not read room journal {}", file, e);
+		}
+		log.debug("Replayed {} records of room journal {}", lines, file);
+	}
+
+	/**
+	 * Rewrites the file with the live state only.
+	 */
+	private void compact() {
+		final File tmp = new File(file.getPath() + ".tmp");
+		try {
+			if (writer != null) {
+				writer.close();
+				writer = null;
+			}
+			records = 0;
+			try (Writer out = open(tmp, false)) {
+				for (final RoomRecord room : state.values()) {
+					writeRecord(out, "R", room.name, room.server,
+							room.pipeline);
+					records++;
+					for (final Map.Entry<String, ParticipantRecord> user : room.participants
+							.entrySet()) {
+						writeRecord(out, "U", room.name, user.getKey(),
+								String.valueOf(user.getValue().visible),
+								String.valueOf(user.getValue().admin));
+						records++;
+						for (final Map.Entry<String, String> endpoint : user
+								.getValue().endpoints.entrySet()) {
+							writeRecord(out, "E", room.name, user.getKey(),
+									endpoint.getKey(), endpoint.getValue());
+							records++;
+						}
+					}
+				}
+			}
+			if (!tmp.renameTo(file)) {
+				file.delete();
+				if (!tmp.renameTo(file)) {
+					throw new IOException("Could not replace " + file);
+				}
+			}
+			writer = open(file, true);
+		} catch (final IOException e) {
+			log.warn("Could not compact room journal {}, journaling stopped",
+					file, e);
+		}
+	}
+
+	private int liveRecords() {
+		int live = 0;
+		for (final RoomRecord room : state.values()) {
+			live++;
+			for (final ParticipantRecord user : room.participants.values()) {
+				live += 1 + user.endpoints.size();
+			}
+		}
+		return live;
+	}
+
+	private static Writer open(File file, boolean append) throws IOException {
+		return new BufferedWriter(new OutputStreamWriter(new FileOutputStream(
+				file, append), StandardCharsets.UTF_8));
+	}
+
+	private static void writeRecord(Writer out, String... fields)
+			throws IOException {
+		for (int i = 0; i < fields.length; i++) {
+			if (i > 0) {
+				out.write('\t');
+			}
+			out.write(URLEncoder.encode(fields[i], "UTF-8"));
+		}
+		out.write('\n');
+	}
+
+	private static String[] decode(String line) {
+		final List<String> fields = new ArrayList<>();
+		try {
+			for (final String field : line.split("\t")) {
+				fields.add(URLDecoder.decode(field, "UTF-8"));
+			}
+		} catch (final UnsupportedEncodingException e) {
+			throw new IllegalStateException(e);
+		}
+		return fields.toArray(new String[fields.size()]);
+	}
+
+}
@@ -0,0 +1,142 @@
+package org.johan.groupcall;
+
+import java.util.Collection;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.kurento.client.MediaPipeline;
+
+/**
+ * The part of a room hosted on one media server. Participants of a leg have
+ * their endpoints in its pipeline; media of publishers on other legs comes in
+ * through one {@link MediaRelay} per publisher.
+ *
+ * A leg is also the room's lease on its pipeline. Once {@link #retire()
+ * retired} the pipeline may go to another room, and elements whose build
+ * was still in flight must not be registered in it.
+ */
+public class RoomLeg {
+
+	private final MediaServer server;
+	private final MediaPipeline pipeline;
+	private final AtomicInteger participants = new AtomicInteger();
+	private final AtomicInteger endpoints = new AtomicInteger();
+	private final EndpointReservations reserved = new EndpointReservations();
+	/** Guarded by this */
+	private boolean retired = false;
+
+	/** Relays into this leg, by publisher name */
+	private final ConcurrentMap<String, MediaRelay> relays = new ConcurrentHashMap<>();
+
+	public RoomLeg(MediaServer server, MediaPipeline pipeline) {
+		this.server = server;
+		this.pipeline = pipeline;
+	}
+
+	public MediaServer getServer() {
+		return server;
+	}
+
+	public MediaPipeline getPipeline() {
+		return pipeline;
+	}
+
+	public int getParticipantCount() {
+		return participants.get();
+	}
+
+	void participantJoined() {
+		participants.incrementAndGet();
+	}
+
+	/**
+	 * @return the participants left on this leg
+	 */
+	int participantLeft() {
+		return participants.decrementAndGet();
+	}
+
+	/**
+	 * @return the elements in this leg's pipeline, as counted by the ledger
+	 */
+	public int getEndpointCount() {
+		return endpoints.get();
+	}
+
+	void endpointCreated() {
+		endpoints.incrementAndGet();
+		server.endpointCreated(reserved.use());
+	}
+
+	void endpointReleased() {
+		endpoints.decrementAndGet();
+		server.endpointReleased();
+	}
+
+	/**
+	 * @return endpoints admitted into this leg's pipeline but not built yet
+	 */
+	public int getReservedCount() {
+		return reserved.getCount();
+	}
+
+	/**
+	 * Holds endpoints in this leg's pipeline for an admitted request, until
+	 * they are built or the reservation expires.
+	 */
+	EndpointReservations.Reservation reserve(int count) {
+		server.reservedByLeg(count);
+		return reserved.add(count);
+	}
+
+	void expire(EndpointReservations.Reservation reservation) {
+		server.reservedByLeg(-reserved.expire(reservation));
+	}
+
+	/**
+	 * Gives up the pipeline, before it is recycled or released.
+	 */
+	synchronized void retire() {
+		retired = true;
+	}
+
+	/**
+	 * @return true once the pipeline was given up; hold the lock on this leg
+	 *         to keep it from being retired meanwhile
+	 */
+	synchronized boolean isRetired() {
+		return retired;
+	}
+
+	MediaRelay getRelay(String publisher) {
+		return relays.get(publisher);
+	}
+
+	/**
+	 * @return the relay already registered for the publisher, or null if
+	 *         {@code relay} was registered
+	 */
+	MediaRelay putRelayIfAbsent(String publisher, MediaRelay relay) {
+		return relays.putIfAbsent(publisher, relay);
+	}
+
+	MediaRelay removeRelay(String publisher) {
+		return relays.remove(publisher);
+	}
+
+	boolean removeRelay(String publisher, MediaRelay relay) {
+		return relays.remove(publisher, relay);
+	}
+
+	Collection<MediaRelay> getRelays() {
+		return relays.values();
+	}
+
+	@Override
+	public String toString() {
+		return server.getName() + " (" + participants.get() + " participants, "
+				+ relays.size() + " relays)";
+	}
+
+}
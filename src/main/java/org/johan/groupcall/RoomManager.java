@@ -1,13 +1,30 @@
 package org.johan.groupcall;
 
 import java.io.IOException;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
-import org.kurento.client.factory.KurentoClient;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.web.socket.WebSocketSession;
 
 
 public class RoomManager {
@@ -15,10 +32,211 @@ public class RoomManager {
 	private final Logger log = LoggerFactory.getLogger(RoomManager.class);
 
 	@Autowired
-	private KurentoClient kurento;
+	private MediaServerPool mediaServers;
+
+	@Autowired
+	private OutboundWriter outboundWriter;
+
+	@Autowired
+	private RoomSettings roomSettings;
+
+	@Autowired
+	private BandwidthPolicy bandwidthPolicy;
+
+	@Autowired
+	private RoomDirectory roomDirectory;
+
+	@Autowired
+	private ClusterSettings cluster;
+
+	@Autowired
+	private RoomJournal journal;
+
+	/** How long clients have to get their endpoints back after a restart */
+	@Value("${snapshot.reattachSeconds:60}")
+	private int reattachSeconds;
+
+	@Value("${ledger.reconcileSeconds:60}")
+	private int reconcileSeconds;
+
+	/** How long an empty room is kept before its pipeline is released */
+	@Value("${room.idleGraceSeconds:30}")
+	private int idleGraceSeconds;
+
+	@Value("${room.reapIntervalSeconds:5}")
+	private int reapIntervalSeconds;
+
+	/** How long shutdown waits for the media servers to release the rooms */
+	@Value("${shutdown.drainSeconds:10}")
+	private int drainSeconds;
 
 	private final ConcurrentMap<String, Room> rooms = new ConcurrentHashMap<>();
 
+	/** Rooms being created; later joiners wait for the same creation */
+	private final ConcurrentMap<String, FutureTask<Room>> creating = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService maintenance = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "room-maintenance");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	@PostConstruct
+	private void start() {
+		restoreRooms();
+		if (reconcileSeconds > 0) {
+			maintenance.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reconcileEndpoints();
+				}
+			}, reconcileSeconds, reconcileSeconds, TimeUnit.SECONDS);
+		}
+		maintenance.scheduleWithFixedDelay(new Runnable() {
+			@Override
+			public void run() {
+				reapIdleRooms();
+			}
+		}, reapIntervalSeconds, Math.max(1, reapIntervalSeconds),
+				TimeUnit.SECONDS);
+	}
+
+	@PreDestroy
+	private void shutdown() {
+		maintenance.shutdownNow();
+		if (journal.isEnabled()) {
+			// The sessions are closed after this; their media is left alive
+			// for the next run
+			journal.freeze();
+			for (final Room room : rooms.values()) {
+				room.detach();
+			}
+			log.info("{} rooms left on the media servers for reattaching",
+					rooms.size());
+		} else {
+			drainRooms();
+		}
+	}
+
+	/**
+	 * Releases the pipelines of all the rooms and waits, until the drain
+	 * deadline, for the media servers to confirm. The media servers work
+	 * through their queues in parallel. The rooms stay in the map, closed,
+	 * so that the sessions closing after this do not create them again.
+	 */
+	private void drainRooms() {
+		final long deadline = System.nanoTime()
+				+ TimeUnit.SECONDS.toNanos(drainSeconds);
+		for (final Room room : rooms.values()) {
+			try {
+				room.shutdown();
+			} catch (final Exception e) {
+				log.warn("Room {}: could not be released on shutdown",
+						room.getName(), e);
+			}
+		}
+		for (final MediaServer server : mediaServers.getServers()) {
+			final ReleaseScheduler releases = server.getReleases();
+			if (!releases.awaitIdle(deadline)) {
+				log.warn("{}: {} releases still pending after {} s",
+						server.getName(), releases.getPending(), drainSeconds);
+			}
+		}
+		log.info("{} rooms released on shutdown", rooms.size());
+	}
+
+	/**
+	 * Rebuilds the mesh rooms of the journal around their pipelines, if they
+	 * still exist, and keeps their endpoints for the participants to
+	 * reconnect to. Blocks on the media servers.
+	 */
+	private void restoreRooms() {
+		final long windowNanos = TimeUnit.SECONDS.toNanos(reattachSeconds);
+		for (final RoomJournal.RoomRecord record : journal.getRooms()) {
+			try {
+				if (!restoreRoom(record, windowNanos)) {
+					journal.forget(record.getName());
+				}
+			} catch (final Exception e) {
+				log.warn("Room {}: could not be restored", record.getName(), e);
+				journal.forget(record.getName());
+			}
+		}
+	}
+
+	private boolean restoreRoom(RoomJournal.RoomRecord record, long windowNanos) {
+		final String roomName = record.getName();
+		final MediaServer server = mediaServers.getServer(record.getServer());
+		if (server == null) {
+			log.info("Room {}: media server {} is gone, not restored",
+					roomName, record.getServer());
+			return false;
+		}
+		if (!roomDirectory.claim(roomName, cluster.getSelf()).equals(
+				cluster.getSelf())) {
+			log.info("Room {}: now owned by another node, not restored",
+					roomName);
+			return false;
+		}
+		final MediaPipeline pipeline = server.getClient().getById(
+				record.getPipeline(), MediaPipeline.class);
+		// Fails if the pipeline no longer exists
+		final Set<String> alive = new HashSet<>();
+		for (final MediaObject child : pipeline.getChilds()) {
+			alive.add(child.getId());
+		}
+		final Room room = new Room(roomName, RoomMode.MESH, new RoomLeg(
+				server, server.adoptPipeline(pipeline)), mediaServers,
+				outboundWriter, roomSettings, bandwidthPolicy, journal);
+		room.expectReattach(record.getParticipants(), alive, windowNanos);
+		rooms.put(roomName, room);
+		return true;
+	}
+
+	/**
+	 * Closes the rooms that have been empty for the grace period.
+	 */
+	public void reapIdleRooms() {
+		final long graceNanos = TimeUnit.SECONDS.toNanos(idleGraceSeconds);
+		for (final Room room : rooms.values()) {
+			try {
+				room.expireReattach();
+				if (room.retireIfIdle(graceNanos)) {
+					rooms.remove(room.getName(), room);
+					room.close();
+					roomDirectory.release(room.getName(), cluster.getSelf());
+					log.info("Room {} idle for {} s, closed", room.getName(),
+							idleGraceSeconds);
+				}
+			} catch (final Exception e) {
+				log.warn("Room {}: could not close idle room", room.getName(),
+						e);
+			}
+		}
+	}
+
+	/**
+	 * Lets every room release the media elements nobody owns any more.
+	 */
+	public void reconcileEndpoints() {
+		for (final Room room : rooms.values()) {
+			try {
+				final int orphans = room.reconcileEndpoints();
+				if (orphans > 0) {
+					log.warn("Room {}: released {} orphaned endpoints ({})",
+							room.getName(), orphans, room.getEndpointLedger());
+				}
+			} catch (final Exception e) {
+				log.warn("Room {}: could not reconcile endpoints",
+						room.getName(), e);
+			}
+		}
+	}
+
 	/**
 	 * @param roomName
 	 *            the name of the room
@@ -26,26 +244,164 @@ public class RoomManager {
 	 *         first time this room is accessed
 	 */
 	public Room getRoom(String roomName) {
+		return getRoom(roomName, null);
+	}
+
+	/**
+	 * @param roomName
+	 *            the name of the room
+	 * @param mode
+	 *            how media is routed if the room has to be created, or null
+	 *            for the default mode
+	 * @return the room if it was already created, or a new one if it is the
+	 *         first time this room is accessed
+	 */
+	public Room getRoom(String roomName, RoomMode mode) {
+		return getRoom(roomName, mode, JoinTrace.NONE);
+	}
+
+	/**
+	 * Like {@link #getRoom(String, RoomMode)}, marking on {@code trace}
+	 * whether the room was looked up or created.
+	 */
+	public Room getRoom(final String roomName, final RoomMode mode,
+			JoinTrace trace) {
 		log.debug("Searching for room {}", roomName);
-		Room room = rooms.get(roomName);
+		final Room existing = rooms.get(roomName);
+		if (existing != null) {
+			trace.mark(JoinTrace.Step.ROOM_LOOKUP);
+			log.debug("Room {} found!", roomName);
+			return existing;
+		}
+
+		final FutureTask<Room> creation = new FutureTask<>(new Callable<Room>() {
+			@Override
+			public Room call() {
+				// Created meanwhile by a creation that has already finished
+				final Room room = rooms.get(roomName);
+				return room != null ? room : createRoom(roomName, mode);
+			}
+		});
+		FutureTask<Room> inFlight = creating.putIfAbsent(roomName, creation);
+		if (inFlight == null) {
+			inFlight = creation;
+			try {
+				creation.run();
+			} finally {
+				creating.remove(roomName, creation);
+			}
+		} else {
+			log.debug("Room {} is being created, waiting for it", roomName);
+		}
 
-		if (room == null) {
-			log.debug("Room {} not existent. Will create now!", roomName);
-			room = new Room(roomName, kurento.createMediaPipeline());
-			rooms.put(roomName, room);
+		try {
+			final Room room = inFlight.get();
+			trace.mark(JoinTrace.Step.ROOM_CREATE);
+			return room;
+		} catch (final ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Could not create room "
+					+ roomName, e.getCause());
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException(
+					"Interrupted while waiting for room " + roomName, e);
 		}
-		log.debug("Room {} found!", roomName);
+	}
+
+	private Room createRoom(String roomName, RoomMode mode) {
+		log.debug("Room {} not existent. Will create now!", roomName);
+		final MediaServer server = mediaServers.place(roomName);
+		final Room room = new Room(roomName,
+				mode != null ? mode : roomSettings.getDefaultMode(),
+				new RoomLeg(server, server.acquirePipeline()), mediaServers,
+				outboundWriter, roomSettings, bandwidthPolicy, journal);
+		rooms.put(roomName, room);
 		return room;
 	}
 
 	/**
-	 * Removes a room from the list of available rooms
+	 * Claims a room for this node unless another node owns it.
+	 * 
+	 * @return the URL of the node that owns the room, or null if it is this
+	 *         one
+	 */
+	public String redirectFor(String roomName) {
+		final String owner = roomDirectory.claim(roomName, cluster.getSelf());
+		return owner.equals(cluster.getSelf()) ? null : owner;
+	}
+
+	/**
+	 * Estimates what a join would add to the media servers, see
+	 * {@link Room#estimateJoin}. A user creating a room becomes its admin,
+	 * alone on a new pipeline of the least loaded media server.
+	 * 
+	 * @return null if the room would have to be created but every media
+	 *         server is draining
+	 */
+	public AdmissionControl.Demand estimateJoin(String roomName,
+			String userName, boolean resume) {
+		final Room room = rooms.get(roomName);
+		if (room != null) {
+			return room.estimateJoin(userName, resume);
+		}
+		final MediaServer server = mediaServers.leastLoaded(Collections
+				.<MediaServer> emptySet());
+		if (server == null) {
+			log.warn("Room {}: no media server available", roomName);
+			return null;
+		}
+		return new AdmissionControl.Demand("join of " + userName
+				+ " to new room " + roomName, server, null, 1, true);
+	}
+
+	/**
+	 * Joins a user to a room, creating the room if needed. Unlike a
+	 * {@link #getRoom(String) lookup} followed by {@link Room#join}, this
+	 * cannot end up in a room that is being closed for being idle.
+	 * 
+	 * @param resume
+	 *            see {@link Room#join(String, WebSocketSession, JoinTrace, boolean)}
+	 */
+	public UserSession joinRoom(String roomName, RoomMode mode,
+			String userName, WebSocketSession session, JoinTrace trace,
+			boolean resume) {
+		while (true) {
+			final Room room = getRoom(roomName, mode, trace);
+			if (!room.beginJoin()) {
+				// Lost the race against the reaper, which is removing it
+				rooms.remove(roomName, room);
+				continue;
+			}
+			// The reaper may have released the room in the meantime
+			roomDirectory.claim(roomName, cluster.getSelf());
+			try {
+				return room.join(userName, session, trace, resume);
+			} finally {
+				room.endJoin();
+			}
+		}
+	}
+
+	/**
+	 * @return the rooms that currently exist
+	 */
+	public Collection<Room> getRooms() {
+		return Collections.unmodifiableCollection(rooms.values());
+	}
+
+	/**
+	 * Removes a room from the list of available rooms right away, without
+	 * waiting for the idle grace period.
 	 *
 	 * @param room
 	 * @throws IOException
 	 */
 	public void removeRoom(Room room) {
-		this.rooms.remove(room.getName());
+		this.rooms.remove(room.getName(), room);
+		roomDirectory.release(room.getName(), cluster.getSelf());
 		room.close();
 		log.info("Room {} removed and closed", room.getName());
 	}
@@ -0,0 +1,45 @@
+package org.johan.groupcall;
+
+/**
+ * How media is routed in a room.
+ */
+public enum RoomMode {
+
+	/**
+	 * Every subscriber gets one endpoint per visible publisher
+	 */
+	MESH("mesh"),
+
+	/**
+	 * All publishers go through a server side Composite hub and every
+	 * participant receives the mixed stream on one endpoint
+	 */
+	COMPOSITE("composite");
+
+	private final String protocolName;
+
+	private RoomMode(String protocolName) {
+		this.protocolName = protocolName;
+	}
+
+	/**
+	 * @return the name used for this mode in signaling messages
+	 */
+	public String getProtocolName() {
+		return protocolName;
+	}
+
+	/**
+	 * @param protocolName
+	 * @return the mode, or null if the name is unknown
+	 */
+	public static RoomMode fromProtocolName(String protocolName) {
+		for (final RoomMode mode : values()) {
+			if (mode.protocolName.equals(protocolName)) {
+				return mode;
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,156 @@
+package org.johan.groupcall;
+
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Settings shared by all rooms.
+ */
+public class RoomSettings {
+
+	@Value("${cascade.maxParticipantsPerServer:0}")
+	private int maxParticipantsPerLeg;
+
+	@Value("${room.defaultMode:MESH}")
+	private RoomMode defaultMode;
+
+	@Value("${room.compositeThreshold:0}")
+	private int compositeThreshold;
+
+	@Value("${room.lastN:0}")
+	private int lastN;
+
+	@Value("${chat.historySize:200}")
+	private int chatHistorySize;
+
+	@Value("${chat.historyBytes:262144}")
+	private long chatHistoryBytes;
+
+	@Value("${chat.pageSize:50}")
+	private int chatPageSize;
+
+	@Value("${chat.ratePerSecond:2}")
+	private double chatRatePerSecond;
+
+	@Value("${chat.burst:5}")
+	private int chatBurst;
+
+	@Value("${chat.maxLength:2000}")
+	private int chatMaxLength;
+
+	/**
+	 * @return participants a leg takes before the room spans another media
+	 *         server, or 0 to keep every room on one server
+	 */
+	public int getMaxParticipantsPerLeg() {
+		return maxParticipantsPerLeg;
+	}
+
+	public void setMaxParticipantsPerLeg(int maxParticipantsPerLeg) {
+		this.maxParticipantsPerLeg = maxParticipantsPerLeg;
+	}
+
+	/**
+	 * @return the mode of rooms created without asking for one
+	 */
+	public RoomMode getDefaultMode() {
+		return defaultMode;
+	}
+
+	public void setDefaultMode(RoomMode defaultMode) {
+		this.defaultMode = defaultMode;
+	}
+
+	/**
+	 * @return the participant count above which a mesh room switches to
+	 *         composite mode, or 0 to never switch
+	 */
+	public int getCompositeThreshold() {
+		return compositeThreshold;
+	}
+
+	public void setCompositeThreshold(int compositeThreshold) {
+		this.compositeThreshold = compositeThreshold;
+	}
+
+	/**
+	 * @return how many of the most recently active publishers a subscriber
+	 *         of a mesh room gets, or 0 for all of them
+	 */
+	public int getLastN() {
+		return lastN;
+	}
+
+	public void setLastN(int lastN) {
+		this.lastN = lastN;
+	}
+
+	/**
+	 * @return chat messages a room keeps for late joiners, 0 for none
+	 */
+	public int getChatHistorySize() {
+		return chatHistorySize;
+	}
+
+	public void setChatHistorySize(int chatHistorySize) {
+		this.chatHistorySize = chatHistorySize;
+	}
+
+	/**
+	 * @return memory the kept chat messages of a room may take, 0 for no
+	 *         limit
+	 */
+	public long getChatHistoryBytes() {
+		return chatHistoryBytes;
+	}
+
+	public void setChatHistoryBytes(long chatHistoryBytes) {
+		this.chatHistoryBytes = chatHistoryBytes;
+	}
+
+	/**
+	 * @return chat messages sent per page of history
+	 */
+	public int getChatPageSize() {
+		return chatPageSize;
+	}
+
+	public void setChatPageSize(int chatPageSize) {
+		this.chatPageSize = chatPageSize;
+	}
+
+	/**
+	 * @return chat messages a user may send per second in the long run, 0
+	 *         for no limit
+	 */
+	public double getChatRatePerSecond() {
+		return chatRatePerSecond;
+	}
+
+	public void setChatRatePerSecond(double chatRatePerSecond) {
+		this.chatRatePerSecond = chatRatePerSecond;
+	}
+
+	/**
+	 * @return chat messages a user may send at once
+	 */
+	public int getChatBurst() {
+		return chatBurst;
+	}
+
+	public void setChatBurst(int chatBurst) {
+		this.chatBurst = chatBurst;
+	}
+
+	/**
+	 * @return characters a chat message keeps, the rest is cut off before it
+	 *         is logged or sent
+	 */
+	public int getChatMaxLength() {
+		return chatMaxLength;
+	}
+
+	public void setChatMaxLength(int chatMaxLength) {
+		this.chatMaxLength = chatMaxLength;
+	}
+
+}
@@ -0,0 +1,139 @@
+package org.johan.groupcall;
+
+import java.math.BigInteger;
+import java.security.SecureRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+
+/**
+ * Resume tokens of the users. A user whose connection drops is held in its
+ * room, endpoints and all, for a grace period. A client reconnecting with
+ * the token takes the user back; otherwise the user leaves once the period
+ * is over. A token is good for one resume, which hands out the next one.
+ */
+public class SessionResumption {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SessionResumption.class);
+
+	private static final class Entry {
+		private final UserSession user;
+		private ScheduledFuture<?> expiry;
+
+		private Entry(UserSession user) {
+			this.user = user;
+		}
+	}
+
+	/** How long a user is held after its connection dropped, 0 to never */
+	@Value("${session.resumeGraceSeconds:30}")
+	private int graceSeconds;
+
+	private final SecureRandom random = new SecureRandom();
+	private final ConcurrentMap<String, Entry> byToken = new ConcurrentHashMap<>();
+	private final ConcurrentMap<ParticipantId, String> tokens = new ConcurrentHashMap<>();
+
+	private final ScheduledExecutorService expirer = Executors
+			.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable r) {
+					final Thread t = new Thread(r, "session-resumption");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+
+	@PreDestroy
+	private void shutdown() {
+		expirer.shutdownNow();
+	}
+
+	public boolean isEnabled() {
+		return graceSeconds > 0;
+	}
+
+	/**
+	 * @return a new token for the user, replacing the one it had
+	 */
+	public String issue(UserSession user) {
+		final String token = new BigInteger(130, random).toString(32);
+		byToken.put(token, new Entry(user));
+		final String previous = tokens.put(user.getId(), token);
+		if (previous != null) {
+			byToken.remove(previous);
+		}
+		return token;
+	}
+
+	/**
+	 * Holds a user whose connection dropped.
+	 *
+	 * @param expired
+	 *            run if the user is not resumed within the grace period
+	 * @return false if the user cannot be resumed, e.g. it has no token
+	 */
+	public boolean hold(UserSession user, final Runnable expired) {
+		final String token = tokens.get(user.getId());
+		final Entry entry = token != null ? byToken.get(token) : null;
+		if (!isEnabled() || entry == null) {
+			return false;
+		}
+		user.hold();
+		synchronized (entry) {
+			entry.expiry = expirer.schedule(new Runnable() {
+				@Override
+				public void run() {
+					if (byToken.remove(token, entry)) {
+						tokens.remove(entry.user.getId(), token);
+						log.info("USER {}: not resumed within {} s",
+								entry.user.getName(), graceSeconds);
+						expired.run();
+					}
+				}
+			}, graceSeconds, TimeUnit.SECONDS);
+		}
+		return true;
+	}
+
+	/**
+	 * Takes a user back, whether or not its old connection is known to be
+	 * gone yet. The token cannot be used again; {@link #issue} a new one.
+	 *
+	 * @return the user, or null if the token is unknown or expired
+	 */
+	public UserSession resume(String token) {
+		final Entry entry = byToken.remove(token);
+		if (entry == null) {
+			return null;
+		}
+		tokens.remove(entry.user.getId(), token);
+		synchronized (entry) {
+			if (entry.expiry != null) {
+				entry.expiry.cancel(false);
+			}
+		}
+		return entry.user;
+	}
+
+	/**
+	 * Forgets the token of a user that left.
+	 */
+	public void revoke(UserSession user) {
+		final String token = tokens.remove(user.getId());
+		if (token != null) {
+			byToken.remove(token);
+		}
+	}
+
+}
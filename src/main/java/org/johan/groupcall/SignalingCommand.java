@@ -0,0 +1,249 @@
+package org.johan.groupcall;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.kurento.client.IceCandidate;
+
+/**
+ * A decoded client message. Built by {@link SignalingDecoder} straight from
+ * the frame, without an intermediate JSON tree.
+ */
+public abstract class SignalingCommand {
+
+	public enum Type {
+		JOIN_ROOM("joinRoom", "j"),
+		RECEIVE_VIDEO_FROM("receiveVideoFrom", "r"),
+		RECEIVE_MIX("receiveMix", "m"),
+		LEAVE_ROOM("leaveRoom", "l"),
+		CHANGE_VISIBILITY("changeVisibility", "v"),
+		CHAT("chat", "c"),
+		ON_ICE_CANDIDATE("onIceCandidate", "i"),
+		SPEAKING("speaking", "s"),
+		CHAT_HISTORY("chatHistory", "h"),
+		RESUME_SESSION("resumeSession", "z");
+
+		/** Types by id and by code, so that decoding needs no search */
+		private static final Map<String, Type> BY_ID;
+
+		static {
+			final Map<String, Type> byId = new HashMap<>();
+			for (final Type type : values()) {
+				byId.put(type.id, type);
+				byId.put(type.code, type);
+			}
+			BY_ID = Collections.unmodifiableMap(byId);
+		}
+
+		private final String id;
+		private final String code;
+
+		private Type(String id, String code) {
+			this.id = id;
+			this.code = code;
+		}
+
+		/**
+		 * @return the message id on the wire
+		 */
+		public String getId() {
+			return id;
+		}
+
+		/**
+		 * @return the short id sent instead by clients using compact framing,
+		 *         see {@link CompactFraming}
+		 */
+		public String getCode() {
+			return code;
+		}
+
+		/**
+		 * @return the type for a message id or its short code, or null if it
+		 *         is unknown
+		 */
+		public static Type fromId(String id) {
+			return id != null ? BY_ID.get(id) : null;
+		}
+	}
+
+	private final Type type;
+
+	protected SignalingCommand(Type type) {
+		this.type = type;
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	public static final class JoinRoom extends SignalingCommand {
+		private final String room;
+		private final String name;
+		private final RoomMode mode;
+		private final boolean resume;
+
+		public JoinRoom(String room, String name, RoomMode mode,
+				boolean resume) {
+			super(Type.JOIN_ROOM);
+			this.room = room;
+			this.name = name;
+			this.mode = mode;
+			this.resume = resume;
+		}
+
+		public String getRoom() {
+			return room;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * @return the mode asked for, or null
+		 */
+		public RoomMode getMode() {
+			return mode;
+		}
+
+		/**
+		 * @return true if the client reconnects with the peers it had
+		 */
+		public boolean isResume() {
+			return resume;
+		}
+	}
+
+	public static final class ReceiveVideoFrom extends SignalingCommand {
+		private final String sender;
+		private final String sdpOffer;
+
+		public ReceiveVideoFrom(String sender, String sdpOffer) {
+			super(Type.RECEIVE_VIDEO_FROM);
+			this.sender = sender;
+			this.sdpOffer = sdpOffer;
+		}
+
+		public String getSender() {
+			return sender;
+		}
+
+		public String getSdpOffer() {
+			return sdpOffer;
+		}
+	}
+
+	public static final class ReceiveMix extends SignalingCommand {
+		private final String sdpOffer;
+
+		public ReceiveMix(String sdpOffer) {
+			super(Type.RECEIVE_MIX);
+			this.sdpOffer = sdpOffer;
+		}
+
+		public String getSdpOffer() {
+			return sdpOffer;
+		}
+	}
+
+	/**
+	 * A chat message for the sender's room. A room named by the client is
+	 * ignored, it could name a room the sender is not in.
+	 */
+	public static final class Chat extends SignalingCommand {
+		private final String text;
+
+		public Chat(String text) {
+			super(Type.CHAT);
+			this.text = text;
+		}
+
+		public String getText() {
+			return text;
+		}
+	}
+
+	public static final class ResumeSession extends SignalingCommand {
+		private final String token;
+
+		public ResumeSession(String token) {
+			super(Type.RESUME_SESSION);
+			this.token = token;
+		}
+
+		/**
+		 * @return the token the client got on join or on its last resume
+		 */
+		public String getToken() {
+			return token;
+		}
+	}
+
+	public static final class ChatHistory extends SignalingCommand {
+		private final long before;
+
+		public ChatHistory(long before) {
+			super(Type.CHAT_HISTORY);
+			this.before = before;
+		}
+
+		/**
+		 * @return the cursor of the page asked for, 0 for the latest
+		 */
+		public long getBefore() {
+			return before;
+		}
+	}
+
+	/**
+	 * The ICE candidates a client found since its last onIceCandidate, for
+	 * any of its endpoints.
+	 */
+	public static final class IceCandidates extends SignalingCommand {
+		private final List<Candidate> candidates;
+
+		public IceCandidates(List<Candidate> candidates) {
+			super(Type.ON_ICE_CANDIDATE);
+			this.candidates = candidates;
+		}
+
+		public List<Candidate> getCandidates() {
+			return candidates;
+		}
+	}
+
+	public static final class Candidate {
+		private final String name;
+		private final IceCandidate candidate;
+
+		public Candidate(String name, IceCandidate candidate) {
+			this.name = name;
+			this.candidate = candidate;
+		}
+
+		/**
+		 * @return the participant whose video the endpoint receives, or null
+		 *         for the room mix
+		 */
+		public String getName() {
+			return name;
+		}
+
+		public IceCandidate getCandidate() {
+			return candidate;
+		}
+	}
+
+	/**
+	 * A command without parameters: leaveRoom, changeVisibility or speaking.
+	 */
+	public static final class Simple extends SignalingCommand {
+		public Simple(Type type) {
+			super(type);
+		}
+	}
+
+}
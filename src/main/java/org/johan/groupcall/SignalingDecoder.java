@@ -0,0 +1,234 @@
+package org.johan.groupcall;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.kurento.client.IceCandidate;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+
+/**
+ * Decodes client frames into {@link SignalingCommand}s with a streaming
+ * parser. Only the fields a command needs are kept; everything else is
+ * skipped without being materialized. The clients send the id first, so a
+ * frame with an unknown id is rejected before the rest of it is read, and so
+ * is one with more than {@link #MAX_CANDIDATES} candidates.
+ */
+public final class SignalingDecoder {
+
+	private static final Logger log = LoggerFactory
+			.getLogger(SignalingDecoder.class);
+
+	/**
+	 * Candidates one frame may carry. A client sends those it gathered for
+	 * all its endpoints since the last frame, far fewer than this.
+	 */
+	public static final int MAX_CANDIDATES = 1024;
+
+	private SignalingDecoder() {
+	}
+
+	/**
+	 * @param payload
+	 *            the text of a WebSocket frame
+	 * @return the command, or null if the frame is malformed or unknown
+	 */
+	public static SignalingCommand decode(String payload) {
+		SignalingCommand.Type type = null;
+		String name = null;
+		String room = null;
+		String sender = null;
+		String sdpOffer = null;
+		String text = null;
+		String mode = null;
+		String token = null;
+		List<SignalingCommand.Candidate> candidates = null;
+		long before = 0;
+		boolean resume = false;
+
+		try (JsonReader reader = new JsonReader(new StringReader(payload))) {
+			reader.beginObject();
+			while (reader.hasNext()) {
+				final String field = reader.nextName();
+				switch (field) {
+				case "id":
+					final String id = readString(reader);
+					type = SignalingCommand.Type.fromId(id);
+					if (type == null) {
+						log.debug("Rejecting message with unknown id {}", id);
+						return null;
+					}
+					break;
+				case "name":
+					name = readString(reader);
+					break;
+				case "room":
+					room = readString(reader);
+					break;
+				case "sender":
+					sender = readString(reader);
+					break;
+				case "sdpOffer":
+					sdpOffer = readString(reader);
+					break;
+				case "text":
+					text = readString(reader);
+					break;
+				case "mode":
+					mode = readString(reader);
+					break;
+				case "token":
+					token = readString(reader);
+					break;
+				case "before":
+					if (reader.peek() == JsonToken.NULL) {
+						reader.nextNull();
+					} else {
+						before = reader.nextLong();
+					}
+					break;
+				case "resume":
+					if (reader.peek() == JsonToken.BOOLEAN) {
+						resume = reader.nextBoolean();
+					} else {
+						reader.skipValue();
+					}
+					break;
+				case "candidates":
+					candidates = readCandidates(reader);
+					if (candidates == null) {
+						return null;
+					}
+					break;
+				default:
+					reader.skipValue();
+					break;
+				}
+			}
+			reader.endObject();
+		} catch (final IOException | IllegalStateException
+				| NumberFormatException e) {
+			log.debug("Rejecting malformed message: {}", e.getMessage());
+			return null;
+		}
+
+		if (type == null) {
+			log.debug("Rejecting message without id");
+			return null;
+		}
+
+		switch (type) {
+		case JOIN_ROOM:
+			if (room == null || name == null) {
+				return missing(type);
+			}
+			return new SignalingCommand.JoinRoom(room, name,
+					mode == null ? null : RoomMode.fromProtocolName(mode),
+					resume);
+		case RECEIVE_VIDEO_FROM:
+			if (sender == null || sdpOffer == null) {
+				return missing(type);
+			}
+			return new SignalingCommand.ReceiveVideoFrom(sender, sdpOffer);
+		case RECEIVE_MIX:
+			if (sdpOffer == null) {
+				return missing(type);
+			}
+			return new SignalingCommand.ReceiveMix(sdpOffer);
+		case CHAT:
+			if (text == null) {
+				return missing(type);
+			}
+			return new SignalingCommand.Chat(text);
+		case CHAT_HISTORY:
+			return new SignalingCommand.ChatHistory(before);
+		case ON_ICE_CANDIDATE:
+			if (candidates == null) {
+				return missing(type);
+			}
+			return new SignalingCommand.IceCandidates(candidates);
+		case RESUME_SESSION:
+			if (token == null) {
+				return missing(type);
+			}
+			return new SignalingCommand.ResumeSession(token);
+		default:
+			return new SignalingCommand.Simple(type);
+		}
+	}
+
+	/**
+	 * @return the string value, or null for a JSON null
+	 */
+	private static String readString(JsonReader reader) throws IOException {
+		if (reader.peek() == JsonToken.NULL) {
+			reader.nextNull();
+			return null;
+		}
+		return reader.nextString();
+	}
+
+	/**
+	 * Reads an array of {name, candidate, sdpMid, sdpMLineIndex}. Entries
+	 * without a candidate, like the empty one that ends gathering, are
+	 * dropped.
+	 * 
+	 * @return the candidates, or null if there are more than
+	 *         {@link #MAX_CANDIDATES}
+	 */
+	private static List<SignalingCommand.Candidate> readCandidates(
+			JsonReader reader) throws IOException {
+		final List<SignalingCommand.Candidate> candidates = new ArrayList<>();
+		reader.beginArray();
+		for (int read = 0; reader.hasNext(); read++) {
+			if (read == MAX_CANDIDATES) {
+				log.debug("Rejecting message with more than {} candidates",
+						MAX_CANDIDATES);
+				return null;
+			}
+			String name = null;
+			String candidate = null;
+			String sdpMid = null;
+			int sdpMLineIndex = 0;
+			reader.beginObject();
+			while (reader.hasNext()) {
+				switch (reader.nextName()) {
+				case "name":
+					name = readString(reader);
+					break;
+				case "candidate":
+					candidate = readString(reader);
+					break;
+				case "sdpMid":
+					sdpMid = readString(reader);
+					break;
+				case "sdpMLineIndex":
+					sdpMLineIndex = reader.nextInt();
+					break;
+				default:
+					reader.skipValue();
+					break;
+				}
+			}
+			reader.endObject();
+			if (candidate != null && !candidate.isEmpty()) {
+				candidates.add(new SignalingCommand.Candidate(name,
+						new IceCandidate(candidate, sdpMid, sdpMLineIndex)));
+			}
+		}
+		reader.endArray();
+		return candidates;
+	}
+
+	private static SignalingCommand missing(SignalingCommand.Type type) {
+		log.debug("Rejecting {} message with missing fields", type.getId());
+		return null;
+	}
+
+}
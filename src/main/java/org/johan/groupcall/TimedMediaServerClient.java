@@ -0,0 +1,80 @@
+package org.johan.groupcall;
+
+import org.kurento.client.Composite;
+import org.kurento.client.Continuation;
+import org.kurento.client.Hub;
+import org.kurento.client.HubPort;
+import org.kurento.client.MediaObject;
+import org.kurento.client.MediaPipeline;
+import org.kurento.client.RtpEndpoint;
+import org.kurento.client.WebRtcEndpoint;
+
+/**
+ * Records the latency of pipeline and element creation on the way to
+ * another {@link MediaServerClient}.
+ */
+public class TimedMediaServerClient implements MediaServerClient {
+
+	private final MediaServerClient client;
+	private final KurentoLatencies latencies;
+
+	public TimedMediaServerClient(MediaServerClient client,
+			KurentoLatencies latencies) {
+		this.client = client;
+		this.latencies = latencies;
+	}
+
+	@Override
+	public MediaPipeline createMediaPipeline() {
+		final long start = System.nanoTime();
+		try {
+			return client.createMediaPipeline();
+		} finally {
+			latencies.get(KurentoOperation.PIPELINE_CREATE).recordSince(start);
+		}
+	}
+
+	@Override
+	public void createMediaPipeline(Continuation<MediaPipeline> continuation) {
+		client.createMediaPipeline(latencies.timed(
+				KurentoOperation.PIPELINE_CREATE, continuation));
+	}
+
+	@Override
+	public <T extends MediaObject> T getById(String id, Class<T> type) {
+		return client.getById(id, type);
+	}
+
+	@Override
+	public void createWebRtcEndpoint(MediaPipeline pipeline,
+			Continuation<WebRtcEndpoint> continuation) {
+		client.createWebRtcEndpoint(pipeline, latencies.timed(
+				KurentoOperation.ENDPOINT_BUILD, continuation));
+	}
+
+	@Override
+	public void createRtpEndpoint(MediaPipeline pipeline,
+			Continuation<RtpEndpoint> continuation) {
+		client.createRtpEndpoint(pipeline, latencies.timed(
+				KurentoOperation.ENDPOINT_BUILD, continuation));
+	}
+
+	@Override
+	public void createComposite(MediaPipeline pipeline,
+			Continuation<Composite> continuation) {
+		client.createComposite(pipeline, latencies.timed(
+				KurentoOperation.ENDPOINT_BUILD, continuation));
+	}
+
+	@Override
+	public void createHubPort(Hub hub, Continuation<HubPort> continuation) {
+		client.createHubPort(hub, latencies.timed(
+				KurentoOperation.ENDPOINT_BUILD, continuation));
+	}
+
+	@Override
+	public void destroy() {
+		client.destroy();
+	}
+
+}
@@ -1,38 +1,35 @@
-
 package org.johan.groupcall;
 
 import java.util.concurrent.ConcurrentHashMap;
 
 import org.springframework.web.socket.WebSocketSession;
 
+/**
+ * Users by WebSocket session. Names are not unique across rooms, so senders
+ * are looked up in their room, not here.
+ */
 public class UserRegistry {
 
-	private final ConcurrentHashMap<String, UserSession> usersByName = new ConcurrentHashMap<String, UserSession>();
 	private final ConcurrentHashMap<String, UserSession> usersBySessionId = new ConcurrentHashMap<String, UserSession>();
 
+	/**
+	 * Registers a user. A user previously registered for the same session,
+	 * which joined again without reconnecting, is replaced.
+	 */
 	public void register(UserSession user) {
-		usersByName.put(user.getName(), user);
 		usersBySessionId.put(user.getSession().getId(), user);
 	}
 
-	public UserSession getByName(String name) {
-		return usersByName.get(name);
-	}
-
 	public UserSession getBySession(WebSocketSession session) {
 		return usersBySessionId.get(session.getId());
 	}
 
-	public boolean exists(String name) {
-		return usersByName.keySet().contains(name);
+	public int getUserCount() {
+		return usersBySessionId.size();
 	}
 
 	public UserSession removeBySession(WebSocketSession session) {
-		final UserSession user = getBySession(session);
-		if (user == null)  return null;
-		usersByName.remove(user.getName());
-		usersBySessionId.remove(session.getId());
-		return user;
+		return usersBySessionId.remove(session.getId());
 	}
 
 }
@@ -3,15 +3,21 @@ package org.johan.groupcall;
 
 import java.io.Closeable;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 
 import org.kurento.client.Continuation;
+import org.kurento.client.IceCandidate;
+import org.kurento.client.MediaElement;
 import org.kurento.client.MediaPipeline;
 import org.kurento.client.WebRtcEndpoint;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.web.socket.TextMessage;
 import org.springframework.web.socket.WebSocketSession;
 
 import com.google.gson.JsonObject;
@@ -22,32 +28,201 @@ public class UserSession implements Closeable {
 	private static final Logger log = LoggerFactory
 			.getLogger(UserSession.class);
 
+	private final ParticipantId id;
 	private final String name;
-	private final WebSocketSession session;
-
+	private volatile WebSocketSession session;
+	private final OutboundQueue outbound;
+
+	private final RoomLeg leg;
+	private final MediaServer server;
+	private final MediaSourceResolver sources;
+	private final EndpointLedger ledger;
+	private final RoomJournal journal;
 	private MediaPipeline pipeline;
 
 	private final String roomName;
 	private WebRtcEndpoint outgoingMedia;
+	private final List<Continuation<? super WebRtcEndpoint>> outgoingWaiters = new ArrayList<>();
 	private final ConcurrentMap<String, WebRtcEndpoint> incomingMedia = new ConcurrentHashMap<>();
+	/** Receives the room mix in composite mode; only touched from tasks */
+	private WebRtcEndpoint mixMedia;
+
+	/**
+	 * All media operations of this user go through here, so that they reach
+	 * the media server in the order they were requested without blocking the
+	 * calling thread.
+	 */
+	private final KurentoTaskQueue tasks;
+
+	private final IceCandidateExchange ice;
+
+	/** Caps in kbps set by the room's bandwidth policy, by sender name */
+	private final ConcurrentMap<String, Integer> receiveKbps = new ConcurrentHashMap<>();
+	private volatile int publishKbps = 0;
+
+	/** Senders whose endpoint is kept but disconnected; only touched from tasks */
+	private final Set<String> paused = new HashSet<>();
+
+	private final RateLimiter chatLimiter;
+	private volatile boolean chatThrottled = false;
 
 	private boolean isVisible = false;
 	private boolean isAdmin = false;
 
-	public UserSession(String name, String roomName, WebSocketSession session,  MediaPipeline pipeline) {
-		this.name = name;
+	/**
+	 * The user has no endpoints yet: either
+	 * {@link #createOrUpdateEndpoint(MediaPipeline) build} or
+	 * {@link #reattach(WebRtcEndpoint, Map) reattach} them.
+	 */
+	public UserSession(ParticipantId id, WebSocketSession session,
+			OutboundQueue outbound, RoomLeg leg, MediaSourceResolver sources,
+			EndpointLedger ledger, RoomJournal journal, RateLimiter chatLimiter) {
+		this.id = id;
+		this.name = id.getName();
 		this.session = session;
-		this.roomName = roomName;
-		createOrUpdateEndpoint(pipeline);
+		this.outbound = outbound;
+		this.leg = leg;
+		this.server = leg.getServer();
+		this.sources = sources;
+		this.ledger = ledger;
+		this.journal = journal;
+		this.chatLimiter = chatLimiter;
+		this.roomName = id.getRoom();
+		this.tasks = new KurentoTaskQueue("USER " + name);
+		this.ice = new IceCandidateExchange(this);
 	}
 
+	/**
+	 * @return the outgoing endpoint, or null while it is being built
+	 */
 	public WebRtcEndpoint getOutgoingWebRtcPeer() {
-		return outgoingMedia;
+		synchronized (outgoingWaiters) {
+			return outgoingMedia;
+		}
 	}
-	
-	public void createOrUpdateEndpoint(MediaPipeline pipeline) {
+
+	/**
+	 * Starts building a new outgoing endpoint, releasing the one it replaces.
+	 * Until it is ready, anyone asking for it through
+	 * {@link #whenOutgoingReady(Continuation)} waits.
+	 */
+	public void createOrUpdateEndpoint(final MediaPipeline pipeline) {
 		this.pipeline = pipeline;
-		this.outgoingMedia = new WebRtcEndpoint.Builder(pipeline).build();
+		final WebRtcEndpoint replaced;
+		synchronized (outgoingWaiters) {
+			replaced = outgoingMedia;
+			outgoingMedia = null;
+		}
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(final Runnable done) {
+				ice.reset(name, replaced);
+				ledger.release(replaced);
+				server.getClient().createWebRtcEndpoint(pipeline,
+						new Continuation<WebRtcEndpoint>() {
+
+							@Override
+							public void onSuccess(WebRtcEndpoint result)
+									throws Exception {
+								log.trace("USER {}: outgoing EP ready", name);
+								journal.endpoint(roomName, name, name,
+										result.getId());
+								outgoingReady(ledger.register(leg, result,
+										"outgoing EP of " + name), null);
+								done.run();
+							}
+
+							@Override
+							public void onError(Throwable cause)
+									throws Exception {
+								log.warn("USER {}: Could not build outgoing EP",
+										name, cause);
+								outgoingReady(null, cause);
+								done.run();
+							}
+						});
+			}
+		});
+	}
+
+	/**
+	 * Takes over endpoints that survived a restart of the application,
+	 * already registered in the ledger. The client's peers are still
+	 * connected to them, so nothing is negotiated again.
+	 * 
+	 * @param outgoing
+	 *            the outgoing endpoint, or null to build a new one
+	 * @param incoming
+	 *            the incoming endpoints, by sender name
+	 */
+	public void reattach(WebRtcEndpoint outgoing,
+			Map<String, WebRtcEndpoint> incoming) {
+		log.info("USER {}: reattached to {} incoming EPs", name,
+				incoming.size());
+		incomingMedia.putAll(incoming);
+		for (final Map.Entry<String, WebRtcEndpoint> endpoint : incoming
+				.entrySet()) {
+			journal.endpoint(roomName, name, endpoint.getKey(), endpoint
+					.getValue().getId());
+		}
+		if (outgoing == null) {
+			createOrUpdateEndpoint(leg.getPipeline());
+			return;
+		}
+		this.pipeline = leg.getPipeline();
+		journal.endpoint(roomName, name, name, outgoing.getId());
+		outgoingReady(outgoing, null);
+	}
+
+	private void outgoingReady(WebRtcEndpoint endpoint, Throwable cause) {
+		if (endpoint != null && publishKbps > 0) {
+			capReceive(endpoint, publishKbps);
+		}
+		final List<Continuation<? super WebRtcEndpoint>> waiters;
+		synchronized (outgoingWaiters) {
+			outgoingMedia = endpoint;
+			waiters = new ArrayList<>(outgoingWaiters);
+			outgoingWaiters.clear();
+		}
+		for (final Continuation<? super WebRtcEndpoint> waiter : waiters) {
+			notifyOutgoing(waiter, endpoint, cause);
+		}
+	}
+
+	/**
+	 * Calls back with the outgoing endpoint as soon as it is built.
+	 */
+	public void whenOutgoingReady(
+			Continuation<? super WebRtcEndpoint> continuation) {
+		final WebRtcEndpoint endpoint;
+		synchronized (outgoingWaiters) {
+			if (outgoingMedia == null) {
+				outgoingWaiters.add(continuation);
+				return;
+			}
+			endpoint = outgoingMedia;
+		}
+		notifyOutgoing(continuation, endpoint, null);
+	}
+
+	private void notifyOutgoing(Continuation<? super WebRtcEndpoint> waiter,
+			WebRtcEndpoint endpoint, Throwable cause) {
+		try {
+			if (endpoint != null) {
+				waiter.onSuccess(endpoint);
+			} else {
+				waiter.onError(cause);
+			}
+		} catch (final Exception e) {
+			log.warn("USER {}: outgoing EP callback failed", name, e);
+		}
+	}
+
+	/**
+	 * @return what tells this join apart from earlier ones under the same name
+	 */
+	public ParticipantId getId() {
+		return id;
 	}
 
 	/**
@@ -57,6 +232,36 @@ public class UserSession implements Closeable {
 		return name;
 	}
 
+	/**
+	 * @return the part of the room, and so the media server, this user's
+	 *         endpoints live in
+	 */
+	public RoomLeg getLeg() {
+		return leg;
+	}
+
+	/**
+	 * @return the number of live endpoints receiving media for this user,
+	 *         including the one for the room mix
+	 */
+	public int getIncomingEndpointCount() {
+		return incomingMedia.size() + (mixMedia != null ? 1 : 0);
+	}
+
+	/**
+	 * @return 1 if this user's outgoing endpoint is live, 0 otherwise
+	 */
+	public int getOutgoingEndpointCount() {
+		synchronized (outgoingWaiters) {
+			return outgoingMedia != null ? 1 : 0;
+		}
+	}
+
+	private <T> Continuation<T> timed(KurentoOperation operation,
+			Continuation<T> continuation) {
+		return server.getLatencies().timed(operation, continuation);
+	}
+
 	/**
 	 * @return the session
 	 */
@@ -74,20 +279,234 @@ public class UserSession implements Closeable {
 	}
 
 	/**
+	 * Negotiates the reception of the sender's video. The answer is sent to
+	 * the user from the media server callback; the calling thread does not
+	 * wait for it.
+	 * 
 	 * @param sender
 	 * @param sdpOffer
-	 * @throws IOException
 	 */
-	public void receiveVideoFrom(UserSession sender, String sdpOffer)
-			throws IOException {
+	public void receiveVideoFrom(UserSession sender, String sdpOffer) {
+		receiveVideoFrom(sender, sdpOffer, JoinTrace.NONE);
+	}
+
+	/**
+	 * Like {@link #receiveVideoFrom(UserSession, String)}, marking the steps
+	 * on {@code trace} and finishing it once the answer is sent.
+	 */
+	public void receiveVideoFrom(final UserSession sender,
+			final String sdpOffer, final JoinTrace trace) {
 		log.info("USER {}: connecting with {} in room {}", this.name,
 				sender.getName(), this.roomName);
 
 		log.trace("USER {}: SdpOffer for {} is {}", this.name,
 				sender.getName(), sdpOffer);
+		ice.expect(sender.getName());
+
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(final Runnable done) {
+				trace.mark(JoinTrace.Step.QUEUED);
+				getEndpointForUser(sender, trace, new Continuation<WebRtcEndpoint>() {
+
+					@Override
+					public void onSuccess(final WebRtcEndpoint endpoint)
+							throws Exception {
+						endpoint.processOffer(sdpOffer, timed(KurentoOperation.PROCESS_OFFER,
+								new Continuation<String>() {
+
+									@Override
+									public void onSuccess(String ipSdpAnswer)
+											throws Exception {
+										trace.mark(JoinTrace.Step.PROCESS_OFFER);
+										sendVideoAnswer(sender, ipSdpAnswer);
+										trace.mark(JoinTrace.Step.ANSWER_SENT);
+										trace.finish();
+										ice.negotiated(sender.getName(),
+												endpoint, gathering(
+														sender.getName(), done));
+									}
+
+									@Override
+									public void onError(Throwable cause)
+											throws Exception {
+										log.warn(
+												"USER {}: Could not process offer for {}",
+												name, sender.getName(), cause);
+										trace.fail();
+										done.run();
+									}
+								}));
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						log.warn("USER {}: Could not get endpoint for {}",
+								name, sender.getName(), cause);
+						trace.fail();
+						done.run();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Candidates the client found for one of this user's endpoints.
+	 * 
+	 * @param endpointName
+	 *            the participant whose video the endpoint receives, or
+	 *            {@link IceCandidateExchange#MIX}
+	 */
+	public void addIceCandidates(String endpointName,
+			List<IceCandidate> candidates) {
+		log.trace("USER {}: {} candidates for {}", this.name,
+				candidates.size(), endpointName);
+		ice.addRemote(endpointName, candidates);
+	}
+
+	/**
+	 * Ends a negotiation task once the endpoint has started gathering.
+	 */
+	private Continuation<Void> gathering(final String what,
+			final Runnable done) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				done.run();
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("USER {}: Could not gather candidates for {}", name,
+						what, cause);
+				done.run();
+			}
+		};
+	}
+
+	/**
+	 * Negotiates the reception of the room mix in composite mode. Like
+	 * {@link #receiveVideoFrom(UserSession, String)}, the answer is sent from
+	 * the media server callback.
+	 * 
+	 * @param sdpOffer
+	 */
+	public void receiveMix(final String sdpOffer) {
+		log.info("USER {}: receiving mix of room {}", this.name, this.roomName);
+		ice.expect(IceCandidateExchange.MIX);
+
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(final Runnable done) {
+				getMixEndpoint(new Continuation<WebRtcEndpoint>() {
+
+					@Override
+					public void onSuccess(final WebRtcEndpoint endpoint)
+							throws Exception {
+						endpoint.processOffer(sdpOffer, timed(KurentoOperation.PROCESS_OFFER,
+								new Continuation<String>() {
+
+									@Override
+									public void onSuccess(String sdpAnswer)
+											throws Exception {
+										final JsonObject answer = new JsonObject();
+										answer.addProperty("id",
+												"receiveMixAnswer");
+										answer.addProperty("sdpAnswer",
+												sdpAnswer);
+										sendMessage(answer);
+										ice.negotiated(IceCandidateExchange.MIX,
+												endpoint, gathering("the mix",
+														done));
+									}
+
+									@Override
+									public void onError(Throwable cause)
+											throws Exception {
+										log.warn(
+												"USER {}: Could not process mix offer",
+												name, cause);
+										done.run();
+									}
+								}));
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						log.warn("USER {}: Could not get mix endpoint", name,
+								cause);
+						done.run();
+					}
+				});
+			}
+		});
+	}
+
+	/**
+	 * Must only run inside a task of this user's queue.
+	 */
+	private void getMixEndpoint(final Continuation<WebRtcEndpoint> continuation) {
+		if (mixMedia != null) {
+			try {
+				continuation.onSuccess(mixMedia);
+			} catch (final Exception e) {
+				log.warn("USER {}: mix callback failed", name, e);
+			}
+			return;
+		}
+		server.getClient().createWebRtcEndpoint(pipeline,
+				new Continuation<WebRtcEndpoint>() {
+
+					@Override
+					public void onSuccess(final WebRtcEndpoint result)
+							throws Exception {
+						mixMedia = ledger.register(leg, result, "mix EP of "
+								+ name);
+						sources.resolveMix(UserSession.this,
+								new Continuation<MediaElement>() {
+
+									@Override
+									public void onSuccess(MediaElement mix)
+											throws Exception {
+										mix.connect(result, timed(KurentoOperation.CONNECT,
+												new Continuation<Void>() {
+
+													@Override
+													public void onSuccess(
+															Void nothing)
+															throws Exception {
+														continuation
+																.onSuccess(result);
+													}
+
+													@Override
+													public void onError(
+															Throwable cause)
+															throws Exception {
+														continuation
+																.onError(cause);
+													}
+												}));
+									}
+
+									@Override
+									public void onError(Throwable cause)
+											throws Exception {
+										continuation.onError(cause);
+									}
+								});
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						continuation.onError(cause);
+					}
+				});
+	}
 
-		final String ipSdpAnswer = this.getEndpointForUser(sender)
-				.processOffer(sdpOffer);
+	private void sendVideoAnswer(UserSession sender, String ipSdpAnswer) {
 		final JsonObject scParams = new JsonObject();
 		scParams.addProperty("id", "receiveVideoAnswer");
 		scParams.addProperty("name", sender.getName());
@@ -99,33 +518,187 @@ public class UserSession implements Closeable {
 	}
 
 	/**
+	 * Must only run inside a task of this user's queue.
+	 * 
 	 * @param sender
 	 *            the user
-	 * @return the endpoint used to receive media from a certain user
+	 * @param continuation
+	 *            gets the endpoint used to receive media from a certain user,
+	 *            once it is built and connected
 	 */
-	private WebRtcEndpoint getEndpointForUser(UserSession sender) {
+	private void getEndpointForUser(final UserSession sender,
+			final JoinTrace trace,
+			final Continuation<WebRtcEndpoint> continuation) {
 		// TODO, Skip loopback for local videos to save streams
 		if (sender.getName().equals(name)) {
 			log.debug("PARTICIPANT {}: configuring loopback", this.name);
-			return outgoingMedia;
+			whenOutgoingReady(continuation);
+			return;
 		}
 
 		log.debug("PARTICIPANT {}: receiving video from {}", this.name,
 				sender.getName());
 
-		WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
-		if (incoming == null) {
-			log.debug("PARTICIPANT {}: creating new endpoint for {}",
-					this.name, sender.getName());
-			incoming = new WebRtcEndpoint.Builder(pipeline).build();
-			incomingMedia.put(sender.getName(), incoming);
+		final WebRtcEndpoint incoming = incomingMedia.get(sender.getName());
+		if (incoming != null) {
+			// Asked for explicitly, so no longer paused
+			paused.remove(sender.getName());
+			connectIncoming(sender, incoming, trace, continuation);
+			return;
 		}
 
+		log.debug("PARTICIPANT {}: creating new endpoint for {}", this.name,
+				sender.getName());
+		server.getClient().createWebRtcEndpoint(pipeline,
+				new Continuation<WebRtcEndpoint>() {
+
+					@Override
+					public void onSuccess(WebRtcEndpoint result)
+							throws Exception {
+						ledger.register(leg, result, "incoming EP of "
+								+ name + " for " + sender.getName());
+						incomingMedia.put(sender.getName(), result);
+						journal.endpoint(roomName, name, sender.getName(),
+								result.getId());
+						final Integer kbps = receiveKbps.get(sender.getName());
+						if (kbps != null) {
+							capSend(result, kbps);
+						}
+						trace.mark(JoinTrace.Step.ENDPOINT_BUILD);
+						connectIncoming(sender, result, trace, continuation);
+					}
+
+					@Override
+					public void onError(Throwable cause) throws Exception {
+						continuation.onError(cause);
+					}
+				});
+	}
+
+	private void connectIncoming(final UserSession sender,
+			final WebRtcEndpoint incoming, final JoinTrace trace,
+			final Continuation<WebRtcEndpoint> continuation) {
 		log.debug("PARTICIPANT {}: obtained endpoint for {}", this.name,
 				sender.getName());
-		sender.getOutgoingWebRtcPeer().connect(incoming);
 
-		return incoming;
+		sources.resolveSource(sender, this, new Continuation<MediaElement>() {
+
+			@Override
+			public void onSuccess(MediaElement source) throws Exception {
+				source.connect(incoming, timed(KurentoOperation.CONNECT,
+						new Continuation<Void>() {
+
+							@Override
+							public void onSuccess(Void result) throws Exception {
+								trace.mark(JoinTrace.Step.CONNECT);
+								continuation.onSuccess(incoming);
+							}
+
+							@Override
+							public void onError(Throwable cause) throws Exception {
+								continuation.onError(cause);
+							}
+						}));
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				continuation.onError(cause);
+			}
+		});
+	}
+
+	/**
+	 * Stops the sender's media to this user but keeps the endpoint, so that
+	 * {@link #resumeVideoFrom(UserSession)} needs no new negotiation.
+	 */
+	public void pauseVideoFrom(final UserSession sender) {
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(final Runnable done) {
+				final WebRtcEndpoint incoming = incomingMedia.get(sender
+						.getName());
+				if (incoming == null || !paused.add(sender.getName())) {
+					done.run();
+					return;
+				}
+				log.debug("PARTICIPANT {}: pausing video from {}", name,
+						sender.getName());
+				sources.resolveSource(sender, UserSession.this,
+						new Continuation<MediaElement>() {
+
+							@Override
+							public void onSuccess(MediaElement source)
+									throws Exception {
+								source.disconnect(incoming, timed(
+										KurentoOperation.CONNECT,
+										whenDone(done, "pause video from "
+												+ sender.getName())));
+							}
+
+							@Override
+							public void onError(Throwable cause)
+									throws Exception {
+								log.warn("USER {}: no media of {} to pause",
+										name, sender.getName(), cause);
+								done.run();
+							}
+						});
+			}
+		});
+	}
+
+	/**
+	 * Reconnects the endpoint of a sender paused by
+	 * {@link #pauseVideoFrom(UserSession)}.
+	 */
+	public void resumeVideoFrom(final UserSession sender) {
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(final Runnable done) {
+				final WebRtcEndpoint incoming = incomingMedia.get(sender
+						.getName());
+				if (incoming == null || !paused.remove(sender.getName())) {
+					done.run();
+					return;
+				}
+				log.debug("PARTICIPANT {}: resuming video from {}", name,
+						sender.getName());
+				connectIncoming(sender, incoming, JoinTrace.NONE,
+						new Continuation<WebRtcEndpoint>() {
+
+							@Override
+							public void onSuccess(WebRtcEndpoint result)
+									throws Exception {
+								done.run();
+							}
+
+							@Override
+							public void onError(Throwable cause)
+									throws Exception {
+								log.warn("USER {}: Could not resume video from {}",
+										name, sender.getName(), cause);
+								done.run();
+							}
+						});
+			}
+		});
+	}
+
+	private Continuation<Void> whenDone(final Runnable done, final String what) {
+		return new Continuation<Void>() {
+
+			@Override
+			public void onSuccess(Void result) throws Exception {
+				done.run();
+			}
+
+			@Override
+			public void onError(Throwable cause) throws Exception {
+				log.warn("USER {}: Could not {}", name, what, cause);
+				done.run();
+			}
+		};
 	}
 
 	/**
@@ -143,85 +716,192 @@ public class UserSession implements Closeable {
 	public void cancelVideoFrom(final String senderName) {
 		log.debug("PARTICIPANT {}: canceling video reception from {}",
 				this.name, senderName);
-		final WebRtcEndpoint incoming = incomingMedia.remove(senderName);
-//		incoming.getMediaSrcs().get(0). TODO for testing
-		log.debug("PARTICIPANT {}: removing endpoint for {}", this.name,
-				senderName);
-		if (incoming == null) {
-			log.debug("removing endpoint for null... returning");
+		// Queued, so that an endpoint still being negotiated is released
+		// after it has been built
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(Runnable done) {
+				final WebRtcEndpoint incoming = incomingMedia.remove(senderName);
+				receiveKbps.remove(senderName);
+				paused.remove(senderName);
+				log.debug("PARTICIPANT {}: removing endpoint for {}",
+						UserSession.this.name, senderName);
+				if (incoming == null) {
+					log.debug("removing endpoint for null... returning");
+				} else {
+					ice.reset(senderName, incoming);
+					journal.endpointReleased(roomName, name, senderName);
+					releaseIncoming(senderName, incoming);
+				}
+				done.run();
+			}
+		});
+	}
+
+	/**
+	 * Caps the video the media server sends this user of a sender. Applied
+	 * right away if the endpoint exists, otherwise once it is built.
+	 */
+	public void setReceiveBandwidth(String senderName, int kbps) {
+		final Integer previous = receiveKbps.put(senderName, kbps);
+		if (previous != null && previous == kbps) {
+			return;
+		}
+		final WebRtcEndpoint incoming = incomingMedia.get(senderName);
+		if (incoming != null) {
+			capSend(incoming, kbps);
+		}
+	}
+
+	/**
+	 * Caps the video this user sends to the media server.
+	 */
+	public void setPublishBandwidth(int kbps) {
+		if (publishKbps == kbps) {
 			return;
 		}
-		incoming.release(new Continuation<Void>() {
+		publishKbps = kbps;
+		final WebRtcEndpoint outgoing = getOutgoingWebRtcPeer();
+		if (outgoing != null) {
+			capReceive(outgoing, kbps);
+		}
+	}
+
+	private void capSend(WebRtcEndpoint endpoint, final int kbps) {
+		endpoint.setMaxVideoSendBandwidth(kbps, bandwidthSet("send", kbps));
+	}
+
+	private void capReceive(WebRtcEndpoint endpoint, final int kbps) {
+		endpoint.setMaxVideoRecvBandwidth(kbps, bandwidthSet("receive", kbps));
+	}
+
+	private Continuation<Void> bandwidthSet(final String direction,
+			final int kbps) {
+		return new Continuation<Void>() {
+
 			@Override
 			public void onSuccess(Void result) throws Exception {
-				log.trace(
-						"PARTICIPANT {}: Released successfully incoming EP for {}",
-						UserSession.this.name, senderName);
+				log.trace("USER {}: {} bandwidth capped at {} kbps", name,
+						direction, kbps);
 			}
 
 			@Override
 			public void onError(Throwable cause) throws Exception {
-				log.warn(
-						"PARTICIPANT {}: Could not release incoming EP for {}",
-						UserSession.this.name, senderName);
+				log.warn("USER {}: Could not cap {} bandwidth", name,
+						direction, cause);
 			}
-		});
+		};
+	}
+
+	private void releaseIncoming(final String senderName,
+			WebRtcEndpoint incoming) {
+		log.trace("PARTICIPANT {}: Releasing incoming EP for {}", this.name,
+				senderName);
+		ledger.release(incoming);
 	}
 
 	@Override
 	public void close() throws IOException {
 		log.debug("PARTICIPANT {}: Releasing resources", this.name);
+		tasks.submit(new KurentoTaskQueue.Task() {
+			@Override
+			public void run(Runnable done) {
+				releaseAll();
+				done.run();
+			}
+		});
+	}
+
+	private void releaseAll() {
 		for (final String remoteParticipantName : incomingMedia.keySet()) {
 
 			log.trace("PARTICIPANT {}: Released incoming EP for {}", this.name,
 					remoteParticipantName);
 
 			final WebRtcEndpoint ep = this.incomingMedia
-					.get(remoteParticipantName);
+					.remove(remoteParticipantName);
+			if (ep != null) {
+				releaseIncoming(remoteParticipantName, ep);
+			}
+		}
 
-			ep.release(new Continuation<Void>() {
+		if (mixMedia != null) {
+			releaseIncoming("the mix", mixMedia);
+			mixMedia = null;
+		}
 
-				@Override
-				public void onSuccess(Void result) throws Exception {
-					log.trace(
-							"PARTICIPANT {}: Released successfully incoming EP for {}",
-							UserSession.this.name, remoteParticipantName);
-				}
+		log.trace("PARTICIPANT {}: Releasing outgoing EP", this.name);
+		ledger.release(getOutgoingWebRtcPeer());
+		ice.clear();
+		paused.clear();
+	}
 
-				@Override
-				public void onError(Throwable cause) throws Exception {
-					log.warn(
-							"PARTICIPANT {}: Could not release incoming EP for {}",
-							UserSession.this.name, remoteParticipantName);
-				}
-			});
-		}
+	/**
+	 * Queues a message for this user. Never blocks on the socket.
+	 */
+	public void sendMessage(JsonObject message) {
+		log.debug("USER {}: Sending message {}", name, message);
+		outbound.enqueue(OutboundFrame.of(message));
+	}
 
-		outgoingMedia.release(new Continuation<Void>() {
+	/**
+	 * Queues an already serialized message, typically one frame shared by a
+	 * whole room broadcast.
+	 */
+	public void sendFrame(OutboundFrame frame) {
+		log.debug("USER {}: Sending message {}", name, frame);
+		outbound.enqueue(frame);
+	}
 
-			@Override
-			public void onSuccess(Void result) throws Exception {
-				log.trace("PARTICIPANT {}: Released outgoing EP",
-						UserSession.this.name);
-			}
+	/**
+	 * Keeps the messages for this user while its connection is gone.
+	 */
+	public void hold() {
+		outbound.hold();
+	}
 
-			@Override
-			public void onError(Throwable cause) throws Exception {
-				log.warn("USER {}: Could not release outgoing EP",
-						UserSession.this.name);
-			}
-		});
+	/**
+	 * Moves this user to a new connection of the same client, which gets the
+	 * messages kept since {@link #hold()}.
+	 * 
+	 * @return false if messages were lost meanwhile, so the client cannot
+	 *         carry on where it was
+	 */
+	public boolean rebind(WebSocketSession session) {
+		if (!outbound.resume(session)) {
+			return false;
+		}
+		this.session = session;
+		return true;
 	}
 
-	public void sendMessage(JsonObject message) throws IOException {
-		log.debug("USER {}: Sending message {}", name, message);
-		if (session.isOpen()) {
-			session.sendMessage(new TextMessage(message.toString()));			
-		} else {
-			log.debug("USER {}: FAIL, TRYING TO SEND MESSAGE ON CLOSED SESSION!", name, message);
+	/**
+	 * @return the number of messages waiting to be written to this user
+	 */
+	public int getOutboundQueueDepth() {
+		return outbound.getDepth();
+	}
+
+	/**
+	 * @return false if the user sends chat messages faster than allowed. The
+	 *         first message refused tells the user so.
+	 */
+	public boolean allowChat() {
+		if (chatLimiter.tryAcquire()) {
+			chatThrottled = false;
+			return true;
+		}
+		if (!chatThrottled) {
+			chatThrottled = true;
+			final JsonObject notice = new JsonObject();
+			notice.addProperty("id", "chatMessageReceived");
+			notice.addProperty("systemMessage", true);
+			notice.addProperty("text",
+					"You are sending messages too fast, some were not delivered");
+			sendMessage(notice);
 		}
+		return false;
 	}
-	
 
 	public boolean isVisible() {
 		return isVisible;
@@ -255,9 +935,7 @@ public class UserSession implements Closeable {
 			return false;
 		}
 		UserSession other = (UserSession) obj;
-		boolean eq = name.equals(other.name);
-		eq &= roomName.equals(other.roomName);
-		return eq;
+		return id.equals(other.id);
 	}
 
 	/*
@@ -267,10 +945,7 @@ public class UserSession implements Closeable {
 	 */
 	@Override
 	public int hashCode() {
-		int result = 1;
-		result = 31 * result + name.hashCode();
-		result = 31 * result + roomName.hashCode();
-		return result;
+		return id.hashCode();
 	}
 
 }
@@ -4,49 +4,140 @@ var participants;
 var name; // The local user name... strange that it is in use..
 var messageOnOff = false; // Toggling this on off for the messages... not so important :)
 var hasAudio = false;
+var roomMode = 'mesh'; // 'mesh' or 'composite', as told by the server
+var mix = null; // The room mix, only in composite mode
+var pendingCandidates = []; // Local ICE candidates not sent yet
+var lastN = 0; // If > 0, only the videos of the active set are received
+var activeSet = { active : [], parked : [] };
+var joinMessage = null; // Sent again when the server redirects us
+var redirects = 0;
+var signalingUrl = null; // Where joinMessage was last sent
+var inRoom = false; // If so, a lost connection is reestablished
+var resuming = false; // Rejoining with the peers we have
+var reconnects = 0;
+var resumeToken = null; // Takes our session back while the server still holds it
+var shownChat = {}; // Sequence numbers of the chat messages shown
+const MAX_REDIRECTS = 3;
+const MAX_RECONNECTS = 5;
+const RECONNECT_MILLIS = 1000; // Times the attempt, so the fleet does not reconnect at once
+const SPEAKING_LEVEL = 0.05; // RMS of the microphone that counts as speaking
+const SPEAKING_HINT_MILLIS = 1000; // At most one speaking hint per second
+const ICE_BATCH_MILLIS = 20; // Candidates found within this time share a message
+const COMPACT_FRAMING = true; // Short message ids both ways, see CompactFraming.java
+const MESSAGE_CODES = { // What we send
+	joinRoom : 'j', receiveVideoFrom : 'r', receiveMix : 'm', leaveRoom : 'l',
+	changeVisibility : 'v', chat : 'c', onIceCandidate : 'i', speaking : 's',
+	chatHistory : 'h', resumeSession : 'z'
+};
+const MESSAGE_IDS = { // What we get; other messages keep their full id
+	E : 'existingParticipants', N : 'newParticipantArrived', L : 'participantLeft',
+	A : 'receiveVideoAnswer', X : 'receiveMixAnswer', I : 'iceCandidate',
+	V : 'updateVisibility', C : 'chatMessageReceived', H : 'chatHistory',
+	M : 'roomModeChanged', S : 'activeSet', T : 'resumeToken', R : 'sessionResumed',
+	F : 'resumeFailed', D : 'redirect', J : 'joinRejected', P : 'publishRejected'
+};
 
 window.onbeforeunload = function() {
+	inRoom = false;
 	ws.close();
 };
 
 registerWebSocket = function(ws) {
 	
+	ws.onclose = function() {
+		// Redirects replace ws before the old socket closes
+		if (inRoom && this === ws) {
+			reconnect();
+		}
+	}
+	
 	ws.onmessage = function(message) {
 		var parsedMessage = JSON.parse(message.data);
 		console.info('Received message: ' + message.data);
 		
-		switch (parsedMessage.id) {
-		// This is what the new joined user gets (but not the others)
-		case 'existingParticipants':
-			onExistingParticipants(parsedMessage);
-			break;
-			// This is what the existing participants get (when the new joins), but not the joiner
-		case 'newParticipantArrived':
-			onNewParticipant(parsedMessage);
-			break;
-		case 'participantLeft':
-			onParticipantLeft(parsedMessage);
-			break;
-		case 'receiveVideoAnswer':
-			receiveVideoResponse(parsedMessage);
-			break;
-		case 'updateVisibility':
-			updateVisibility(parsedMessage);
-			break;
-		case 'chatMessageReceived':
-			addChatMessage(parsedMessage);
-			break;
-		default:
-			console.error('Unrecognized message', parsedMessage);
+		// The server flushes several queued messages at once as an array
+		if (Array.isArray(parsedMessage)) {
+			parsedMessage.forEach(handleMessage);
+		} else {
+			handleMessage(parsedMessage);
 		}
 	}
 }
 
+function handleMessage(parsedMessage) {
+	if (MESSAGE_IDS.hasOwnProperty(parsedMessage.id)) {
+		parsedMessage.id = MESSAGE_IDS[parsedMessage.id];
+	}
+	switch (parsedMessage.id) {
+	// This is what the new joined user gets (but not the others)
+	case 'existingParticipants':
+		onExistingParticipants(parsedMessage);
+		break;
+		// This is what the existing participants get (when the new joins), but not the joiner
+	case 'newParticipantArrived':
+		onNewParticipant(parsedMessage);
+		break;
+	case 'participantLeft':
+		onParticipantLeft(parsedMessage);
+		break;
+	case 'receiveVideoAnswer':
+		receiveVideoResponse(parsedMessage);
+		break;
+	case 'updateVisibility':
+		updateVisibility(parsedMessage);
+		break;
+	case 'chatMessageReceived':
+		addChatMessage(parsedMessage);
+		break;
+	case 'chatHistory':
+		addChatHistory(parsedMessage);
+		break;
+	case 'roomModeChanged':
+		onRoomModeChanged(parsedMessage);
+		break;
+	case 'receiveMixAnswer':
+		mix.rtcPeer.processAnswer(parsedMessage.sdpAnswer);
+		break;
+	case 'iceCandidate':
+		onIceCandidate(parsedMessage);
+		break;
+	case 'redirect':
+		onRedirect(parsedMessage);
+		break;
+	case 'activeSet':
+		onActiveSetChanged(parsedMessage);
+		break;
+	case 'resumeToken':
+		resumeToken = parsedMessage.token;
+		break;
+	case 'sessionResumed':
+		onSessionResumed(parsedMessage);
+		break;
+	case 'joinRejected':
+		// The media servers are full or unavailable, or the join failed
+		console.error('Could not join ' + parsedMessage.room + ': ' + parsedMessage.reason);
+		onParticipantLeft({isyou:"true"});
+		break;
+	case 'publishRejected':
+		addChatMessage({systemMessage: true, text: "*** Cannot publish video right now, the media server is full ***"})
+		break;
+	case 'resumeFailed':
+		// The server let us go, join again with the peers we have
+		resumeToken = null;
+		sendMessage($.extend({}, joinMessage, { resume : true }));
+		break;
+	default:
+		console.error('Unrecognized message', parsedMessage);
+	}
+}
+
 
 function register() {
 	//if (ws == null || ws.readyState > 2) {
 		participants = {};
-		ws = new WebSocket('ws://' + location.host + '/groupcall');
+		shownChat = {};
+		signalingUrl = withFraming('ws://' + location.host + '/groupcall');
+		ws = new WebSocket(signalingUrl);
 		registerWebSocket(ws);
 	//}
 
@@ -72,13 +163,18 @@ function register() {
 
 
 
+	redirects = 0;
+	reconnects = 0;
+	resuming = false;
+	resumeToken = null;
+	joinMessage = {
+			id : 'joinRoom',
+			name : name,
+			room : room,
+			mode : $( "#mixedroom" ).is(":checked") ? 'composite' : 'mesh'
+	}
 	ws.onopen = function(message) {
-		var firstMsg = {
-				id : 'joinRoom',
-				name : name,
-				room : room
-		}
-		sendMessage(firstMsg);		
+		sendMessage(joinMessage);		
 	}
 	
 	// Adds chat message locally
@@ -86,6 +182,77 @@ function register() {
 
 }
 
+/**
+ * The room lives on another signaling node: join it there instead
+ */
+function onRedirect(msg) {
+	if (++redirects > MAX_REDIRECTS) {
+		console.error('Too many redirects, giving up joining ' + msg.room);
+		onParticipantLeft({isyou:"true"});
+		return;
+	}
+	console.log('Room ' + msg.room + ' is hosted by ' + msg.url + ', reconnecting');
+	ws.close();
+	signalingUrl = withFraming(msg.url);
+	ws = new WebSocket(signalingUrl);
+	registerWebSocket(ws);
+	ws.onopen = function() {
+		sendMessage(joinMessage);
+	}
+}
+
+/**
+ * The connection to the server was lost while in the room, e.g. because it
+ * restarted. Join again asking for the media we had: the peers stay up
+ * meanwhile, and are kept if the server still has their endpoints.
+ */
+function reconnect() {
+	if (++reconnects > MAX_RECONNECTS) {
+		console.error('Could not reconnect to ' + signalingUrl + ', giving up');
+		onParticipantLeft({isyou:"true"});
+		return;
+	}
+	var delay = RECONNECT_MILLIS * reconnects * (0.5 + Math.random());
+	console.log('Connection lost, reconnecting in ' + Math.round(delay) + ' ms');
+	setTimeout(function() {
+		resuming = true;
+		ws = new WebSocket(signalingUrl);
+		registerWebSocket(ws);
+		ws.onopen = function() {
+			if (resumeToken != null) {
+				sendMessage({ id : 'resumeSession', token : resumeToken });
+			} else {
+				sendMessage($.extend({}, joinMessage, { resume : true }));
+			}
+		}
+	}, delay);
+}
+
+/**
+ * The server held our session while we were away: nothing changed, the
+ * messages sent meanwhile follow.
+ */
+function onSessionResumed(msg) {
+	resuming = false;
+	reconnects = 0;
+	resumeToken = msg.token;
+	addChatMessage({systemMessage: true, text: "*** Reconnected ***"})
+}
+
+/**
+ * Drops every peer, for when the server could not give our endpoints back
+ */
+function disposeAll() {
+	for ( var key in participants) {
+		participants[key].dispose();
+	}
+	participants = {};
+	if (mix != null) {
+		mix.dispose();
+		mix = null;
+	}
+}
+
 function sendTextToOthers(textStr) {
 	if (textStr == null || textStr.length <= 0) {
 		return;
@@ -101,16 +268,121 @@ function sendTextToOthers(textStr) {
 }
 
 function onNewParticipant(request) {
+	var known = participants[request.name];
+	if (known != undefined) {
+		if (request.resumed) {
+			// Came back after a restart, still feeding the peer we have
+			return;
+		}
+		known.dispose();
+	}
 	// Receive Video from This ONE OTHER that just joined
 	receiveVideoAndCreateUser({"name" : request.name, "isVisible" : request.isVisible, "isAdmin" : request.isAdmin});
 }
 
 function receiveVideoResponse(result) {
-	participants[result.name].rtcPeer.processSdpAnswer(result.sdpAnswer);
+	participants[result.name].rtcPeer.processAnswer(result.sdpAnswer);
+}
+
+/**
+ * A candidate the server found for one of our peers, named after the
+ * participant it receives, or without a name for the room mix
+ */
+function onIceCandidate(message) {
+	var target = message.name == undefined ? mix : participants[message.name];
+	if (target == undefined || target == null || target.rtcPeer == null) {
+		console.log('Dropping candidate for ' + message.name + ', no peer');
+		return;
+	}
+	target.rtcPeer.addIceCandidate(message.candidate, function(error) {
+		if (error) {
+			console.error('Could not add candidate: ' + error);
+		}
+	});
+}
+
+/**
+ * Queues a local candidate. Browsers find them in bursts, so they are sent
+ * together a moment later instead of one message each.
+ */
+function sendIceCandidate(participantName, candidate) {
+	pendingCandidates.push({
+		name : participantName,
+		candidate : candidate.candidate,
+		sdpMid : candidate.sdpMid,
+		sdpMLineIndex : candidate.sdpMLineIndex
+	});
+	if (pendingCandidates.length == 1) {
+		setTimeout(flushIceCandidates, ICE_BATCH_MILLIS);
+	}
+}
+
+function flushIceCandidates() {
+	if (pendingCandidates.length == 0) {
+		return;
+	}
+	var candidates = pendingCandidates;
+	pendingCandidates = [];
+	if (ws == null || ws.readyState != 1) {
+		return;
+	}
+	sendMessage({
+		id : 'onIceCandidate',
+		candidates : candidates
+	});
 }
 
 /** This can also be used internally **/
 function addChatMessage(result) {
+	if (!firstShown(result)) {
+		return;
+	}
+	$( "#chatcontent" ).prepend(chatLine(result));
+}
+
+/**
+ * A message sent while we joined can come both in the history and live, with
+ * the same sequence number: it is only shown once.
+ */
+function firstShown(message) {
+	if (message.seq == undefined) {
+		return true;
+	}
+	if (shownChat[message.seq]) {
+		return false;
+	}
+	shownChat[message.seq] = true;
+	return true;
+}
+
+/**
+ * A page of older messages, oldest first. The chat shows the newest on top,
+ * so they go below what is shown, with a link to the page before if any.
+ */
+function addChatHistory(page) {
+	var $chatContent = $( "#chatcontent" );
+	$chatContent.find('.olderchat').remove();
+	for (var i = page.messages.length - 1; i >= 0; i--) {
+		var message = page.messages[i];
+		message.isYou = message.sender == name;
+		if (firstShown(message)) {
+			$chatContent.append(chatLine(message));
+		}
+	}
+	if (page.before != undefined) {
+		var $older = $("<div class='usermessage systemmessage olderchat'><a href='#'>Older messages</a></div>");
+		$older.find('a').click(function(e) {
+			e.preventDefault();
+			sendMessage({
+				id : 'chatHistory',
+				before : page.before
+			});
+		});
+		$chatContent.append($older);
+	}
+}
+
+function chatLine(result) {
 	var isYou = result.isYou;
 	var senderName = result.sender;
 	var text = result.text;
@@ -119,16 +391,14 @@ function addChatMessage(result) {
 	// This one is maybe not provided from the backend (only if it really is a sysmsg)
 	var systemMessage = result.systemMessage;
 	
+	// Sender and text come from other users: set as text, never as markup
+	var $messageLine = $("<div class='usermessage'></div>");
+	$messageLine.append(document.createTextNode(' ' + ((now == undefined || now == null) ? '' : ("[" + now + "]"))));
 	if (senderName != undefined && senderName != null) {
-		senderName = '<b>' + senderName + ': </b> '
-	} else {
-		senderName = '';
+		$messageLine.append($('<b></b>').text(senderName + ': '));
+		$messageLine.append(document.createTextNode(' '));
 	}
-	
-	$chatContent = $( "#chatcontent" );
-	var $messageLine = $("<div class='usermessage'> " + ((now == undefined || now == null) ? '' : ("[" + now + "]")) + senderName + text + "</div>");
-	
-	$chatContent.prepend($messageLine);
+	$messageLine.append($('<span></span>').text(text));
 	
 	$messageLine.addClass('usermessage');
 	if (messageOnOff) {
@@ -145,6 +415,7 @@ function addChatMessage(result) {
 	}
 	
 	messageOnOff = !messageOnOff;
+	return $messageLine;
 }
 
 function updateVisibility(result) {
@@ -163,6 +434,11 @@ function updateVisibility(result) {
 	} else {
 		console.info('User (Someone else) ' + result.user + ' Updated visibility to ' + result.visibility);
 		// Since it is someone else that went visible/not visible, we may want to receive his video stream
+		// (in composite mode it simply shows up in the mix)
+		// (in a last-N room the server tells which videos to receive)
+		if (roomMode != 'mesh' || lastN > 0) {
+			return;
+		}
 		if (participants[result.user].isVisible) {
 			receiveVideoFromExistingUser(participants[result.user]);			
 		} else {
@@ -176,6 +452,19 @@ function updateVisibility(result) {
 
 function onExistingParticipants(msg) {
 	
+	inRoom = true;
+	reconnects = 0;
+	if (resuming) {
+		resuming = false;
+		// The history follows again
+		$( "#chatcontent" ).empty();
+		shownChat = {};
+		if (msg.resumed) {
+			onResumed(msg);
+			return;
+		}
+		disposeAll();
+	}
 	var room = document.getElementById('roomName').value;
 	addChatMessage({systemMessage: true, text: "*** You joined room: " + room + " ***"})
 	
@@ -189,7 +478,62 @@ function onExistingParticipants(msg) {
 		console.log(name + " (you) is not visible and CANNOT send local video");
 	}
 	// Receive OTHER VIDEOS to ME (from the array got via msg)
+	roomMode = msg.mode || 'mesh';
+	lastN = msg.lastN || 0;
+	activeSet = { active : msg.active || [], parked : msg.parked || [] };
 	msg.data.forEach(receiveVideoAndCreateUser);
+	if (roomMode == 'composite') {
+		startReceivingMix();
+	}
+}
+
+/**
+ * Back in the room with our endpoints. The peers of the others are kept,
+ * including those who have not reconnected yet; the server tells if they
+ * do not come back.
+ */
+function onResumed(msg) {
+	addChatMessage({systemMessage: true, text: "*** Reconnected ***"})
+	roomMode = msg.mode || 'mesh';
+	lastN = msg.lastN || 0;
+	activeSet = { active : msg.active || [], parked : msg.parked || [] };
+	msg.data.forEach(function(other) {
+		if (participants[other.name] == undefined) {
+			receiveVideoAndCreateUser(other);
+		}
+	});
+}
+
+function onRoomModeChanged(msg) {
+	roomMode = msg.mode;
+	addChatMessage({systemMessage: true, text: "*** The room switched to " + roomMode + " mode ***"})
+	if (roomMode == 'composite') {
+		// The others' videos now come through the mix
+		for ( var key in participants) {
+			if (!participants[key].isYou && participants[key].rtcPeer != null) {
+				participants[key].stopBroadcasting();
+			}
+		}
+		startReceivingMix();
+	}
+}
+
+function startReceivingMix() {
+	if (mix != null) {
+		return;
+	}
+	mix = new Mix();
+	var options = {
+			remoteVideo : mix.getVideoElement(),
+			onicecandidate : mix.onIceCandidate.bind(mix)
+		};
+	mix.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
+			function(error) {
+				if (error) {
+					return console.error(error);
+				}
+				this.generateOffer(mix.offerToReceiveMix.bind(mix));
+			});
 }
 
 function startBroadCastingLocalVideo(me) {
@@ -205,9 +549,19 @@ function startBroadCastingLocalVideo(me) {
 				}
 			}
 		};
-	me.rtcPeer = kurentoUtils.WebRtcPeer.startSendOnly(localVideo,
-			me.offerToReceiveVideo.bind(me), null,
-			constraints);	
+	var options = {
+			localVideo : localVideo,
+			mediaConstraints : constraints,
+			onicecandidate : me.onIceCandidate.bind(me)
+		};
+	me.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerSendonly(options,
+			function(error) {
+				if (error) {
+					return console.error(error);
+				}
+				this.generateOffer(me.offerToReceiveVideo.bind(me));
+				watchSpeaking(this.getLocalStream());
+			});
 }
 
 function stopBroadCastingLocalVideo(me) {
@@ -220,6 +574,7 @@ function stopBroadCastingLocalVideo(me) {
 // and THEN the WebSocket connection will be closed.
 function leaveRoom() {
 	console.log('*** leaveRoom() called ******');
+	resumeToken = null;
 	sendMessage({
 		id : 'leaveRoom'
 	});
@@ -235,8 +590,17 @@ function receiveVideoFromExistingUser(participant) {
 
 	console.log(participant.name + ' is visible and therefore offering YOU to receive HIS remote video');
 	var remoteVideo = participant.getVideoElement();
-	participant.rtcPeer = kurentoUtils.WebRtcPeer.startRecvOnly(remoteVideo,
-			participant.offerToReceiveVideo.bind(participant));
+	var options = {
+			remoteVideo : remoteVideo,
+			onicecandidate : participant.onIceCandidate.bind(participant)
+		};
+	participant.rtcPeer = new kurentoUtils.WebRtcPeer.WebRtcPeerRecvonly(options,
+			function(error) {
+				if (error) {
+					return console.error(error);
+				}
+				this.generateOffer(participant.offerToReceiveVideo.bind(participant));
+			});
 	
 }
 
@@ -247,20 +611,83 @@ function receiveVideoAndCreateUser(senderNameAndData) {
 	var isVisible = senderNameAndData.isVisible;
 	var participant = new Participant(senderName, isAdmin, isVisible, false);
 	participants[senderName] = participant;
-	if (participant.isVisible) {
+	if (participant.isVisible && roomMode == 'mesh'
+			&& (lastN == 0 || activeSet.active.indexOf(senderName) >= 0)) {
 		receiveVideoFromExistingUser(participant);		
 	}
 }
 
+/**
+ * The server forwards only the active publishers. Parked ones keep their
+ * peer, without media, until they are active again; the others are dropped.
+ */
+function onActiveSetChanged(msg) {
+	activeSet = { active : msg.active, parked : msg.parked };
+	if (roomMode != 'mesh') {
+		return;
+	}
+	for ( var key in participants) {
+		var participant = participants[key];
+		if (participant.isYou) {
+			continue;
+		}
+		if (activeSet.active.indexOf(key) >= 0) {
+			if (participant.rtcPeer == null) {
+				receiveVideoFromExistingUser(participant);
+			}
+		} else if (activeSet.parked.indexOf(key) < 0
+				&& participant.rtcPeer != null) {
+			participant.stopBroadcasting();
+		}
+	}
+}
+
+/**
+ * Tells the server whenever the microphone picks up speech, so that in a
+ * last-N room our video is forwarded while we talk.
+ */
+function watchSpeaking(stream) {
+	var AudioContext = window.AudioContext || window.webkitAudioContext;
+	if (lastN == 0 || stream == null || AudioContext == undefined
+			|| stream.getAudioTracks().length == 0) {
+		return;
+	}
+	var context = new AudioContext();
+	var analyser = context.createAnalyser();
+	context.createMediaStreamSource(stream).connect(analyser);
+	var samples = new Float32Array(analyser.fftSize);
+	var lastHint = 0;
+	var timer = setInterval(function() {
+		if (ws == null || ws.readyState != 1) {
+			clearInterval(timer);
+			context.close();
+			return;
+		}
+		analyser.getFloatTimeDomainData(samples);
+		var sum = 0;
+		for (var i = 0; i < samples.length; i++) {
+			sum += samples[i] * samples[i];
+		}
+		var now = Date.now();
+		if (Math.sqrt(sum / samples.length) > SPEAKING_LEVEL
+				&& now - lastHint > SPEAKING_HINT_MILLIS) {
+			lastHint = now;
+			sendMessage({
+				id : 'speaking'
+			});
+		}
+	}, 200);
+}
+
 function onParticipantLeft(request) {
 	
 	// IF it is YOU leaving
 	if (request.isyou) {
 		console.log('You left');
+		inRoom = false;
 		
-		for ( var key in participants) {
-			participants[key].dispose();
-		}
+		disposeAll();
+		roomMode = 'mesh';
 
 		document.getElementById('join').style.display = 'block';
 		document.getElementById('room').style.display = 'none';
@@ -272,6 +699,9 @@ function onParticipantLeft(request) {
 	} else {
 		console.log('Participant ' + request.name + ' left');
 		var participant = participants[request.name];
+		if (participant == undefined) {
+			return;
+		}
 		participant.dispose();
 		delete participants[request.name];
 		addChatMessage({systemMessage: true, text: "*** " + request.name + " has left this room ***"})
@@ -280,9 +710,27 @@ function onParticipantLeft(request) {
 	}
 }
 
+/**
+ * Asks the server for compact framing, if we use it
+ */
+function withFraming(url) {
+	if (!COMPACT_FRAMING) {
+		return url;
+	}
+	return url + (url.indexOf('?') < 0 ? '?' : '&') + 'framing=compact';
+}
+
 function sendMessage(message) {
+	if (COMPACT_FRAMING && MESSAGE_CODES.hasOwnProperty(message.id)) {
+		// A copy, messages like joinMessage are sent again
+		message = $.extend({}, message, { id : MESSAGE_CODES[message.id] });
+	}
 	var jsonMessage = JSON.stringify(message);
 	console.log('Sending message: ' + jsonMessage);
+	if (ws.readyState != 1 && inRoom) {
+		console.log('Not connected, dropping message until reconnected');
+		return;
+	}
 	if (ws.readyState > 2) {
 		console.log('WARNING!!! Could NOT send message. WebSockets seems to be closed. Leaving!');
 		onParticipantLeft({isyou:"true"});
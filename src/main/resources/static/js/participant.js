@@ -89,7 +89,10 @@ function Participant(name, isAdmin, isVisible, isYou) {
 	}
 
 
-	this.offerToReceiveVideo = function(offerSdp, wp){
+	this.offerToReceiveVideo = function(error, offerSdp, wp){
+		if (error) {
+			return console.error(name + ' could not generate an offer: ' + error);
+		}
 		console.log('Invoking SDP offer callback function');
 		console.log(name + " Sends offer message to receive video");
 		var msg =  { id : "receiveVideoFrom",
@@ -99,6 +102,10 @@ function Participant(name, isAdmin, isVisible, isYou) {
 		sendMessage(msg);
 	}
 
+	this.onIceCandidate = function(candidate, wp) {
+		sendIceCandidate(name, candidate);
+	}
+
 	//Object.defineProperty(this, 'rtcPeer', { writable: true});
 
 	this.dispose = function() {
@@ -118,3 +125,49 @@ function Participant(name, isAdmin, isVisible, isYou) {
 	
 	this.updateInfoSpanText();
 }
+
+/**
+ * The mixed video of a room in composite mode. Replaces the videos of the
+ * other participants, which are then only shown by name.
+ */
+function Mix() {
+	this.rtcPeer = null;
+	var container = document.createElement('div');
+	container.className = PARTICIPANT_MAIN_CLASS;
+	container.id = 'room-mix';
+	var video = document.createElement('video');
+	container.appendChild(video);
+	document.getElementById('participants').appendChild(container);
+
+	video.id = 'video-room-mix';
+	video.autoplay = true;
+	video.controls = true;
+
+	this.getVideoElement = function() {
+		return video;
+	}
+
+	this.offerToReceiveMix = function(error, offerSdp, wp) {
+		if (error) {
+			return console.error('Could not generate an offer for the mix: ' + error);
+		}
+		console.log('Sends offer message to receive the room mix');
+		sendMessage({
+			id : 'receiveMix',
+			sdpOffer : offerSdp
+		});
+	}
+
+	this.onIceCandidate = function(candidate, wp) {
+		// The mix has no name on the wire
+		sendIceCandidate(null, candidate);
+	}
+
+	this.dispose = function() {
+		console.log('Disposing room mix');
+		if (this.rtcPeer != undefined && this.rtcPeer != null) {
+			this.rtcPeer.dispose();
+		}
+		container.parentNode.removeChild(container);
+	};
+}
@@ -0,0 +1,196 @@
+package org.johan.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * Requests wait while their media server or pipeline is full, admins first
+ * and then in order of arrival, and are turned away once the line is full or
+ * they waited too long. The endpoint counts are driven by hand, as the
+ * ledger would.
+ */
+public class AdmissionControlTest {
+
+	/** Long enough for a queued request never to time out in a test */
+	private static final long LONG_WAIT = 60000;
+
+	/** Records what was told to the callbacks, in order */
+	private final BlockingQueue<String> told = new LinkedBlockingQueue<>();
+
+	private AdmissionControl.Callback callback(final String what) {
+		return new AdmissionControl.Callback() {
+			@Override
+			public void admitted() {
+				told.add(what + " admitted");
+			}
+
+			@Override
+			public void rejected(String reason) {
+				told.add(what + " " + reason);
+			}
+		};
+	}
+
+	private String next() throws InterruptedException {
+		return told.poll(5, TimeUnit.SECONDS);
+	}
+
+	/** One worker, so that admitted requests are carried out in order */
+	private static AdmissionControl perServer(int maxEndpoints,
+			long queueMillis, int maxQueued) {
+		return new AdmissionControl(0, maxEndpoints, queueMillis, maxQueued,
+				LONG_WAIT, 10, 1);
+	}
+
+	private static MediaServer server(String name, int endpoints) {
+		final MediaServer server = new MediaServer(name, null, null, 1, false);
+		for (int i = 0; i < endpoints; i++) {
+			server.endpointCreated();
+		}
+		return server;
+	}
+
+	private static AdmissionControl.Demand demand(String what,
+			MediaServer server, int endpoints, boolean priority) {
+		return new AdmissionControl.Demand(what, server, null, endpoints,
+				priority);
+	}
+
+	@Test
+	public void admitsWhatFitsAndReservesIt() throws InterruptedException {
+		final AdmissionControl admission = perServer(4, LONG_WAIT, 10);
+		final MediaServer server = server("kms", 1);
+		admission.admit(demand("a", server, 2, false), callback("a"));
+		assertEquals("a admitted", next());
+		assertEquals(2, server.getReservedCount());
+
+		// Building the endpoints uses up the reservation
+		server.endpointCreated();
+		server.endpointCreated();
+		assertEquals(3, server.getEndpointCount());
+		assertEquals(0, server.getReservedCount());
+	}
+
+	@Test
+	public void admitsAdminsFirstThenInOrder() throws InterruptedException {
+		final AdmissionControl admission = perServer(2, LONG_WAIT, 10);
+		final MediaServer server = server("kms", 2);
+		admission.admit(demand("a", server, 1, false), callback("a"));
+		admission.admit(demand("b", server, 1, false), callback("b"));
+		admission.admit(demand("admin", server, 1, true), callback("admin"));
+		assertEquals(3, admission.getQueueLength());
+
+		server.endpointReleased();
+		server.endpointReleased();
+		assertEquals("admin admitted", next());
+		assertEquals("a admitted", next());
+		assertEquals(1, admission.getQueueLength());
+
+		server.endpointCreated();
+		server.endpointCreated();
+		server.endpointReleased();
+		assertEquals("b admitted", next());
+		assertEquals(0, admission.getQueueLength());
+	}
+
+	@Test
+	public void holdsBackSmallerRequestsBehindTheHeadOfTheLine()
+			throws InterruptedException {
+		final AdmissionControl admission = perServer(4, LONG_WAIT, 10);
+		final MediaServer server = server("kms", 3);
+		admission.admit(demand("large", server, 2, false), callback("large"));
+		// Would fit, but must not starve the large one
+		admission.admit(demand("small", server, 1, false), callback("small"));
+		assertEquals(2, admission.getQueueLength());
+
+		// Another media server is not held back
+		admission.admit(demand("elsewhere", server("kms2", 0), 1, false),
+				callback("elsewhere"));
+		assertEquals("elsewhere admitted", next());
+
+		server.endpointReleased();
+		assertEquals("large admitted", next());
+		assertEquals(1, admission.getQueueLength());
+		assertNull(told.poll(100, TimeUnit.MILLISECONDS));
+	}
+
+	@Test
+	public void holdsBackRequestsForAFullPipeline() throws InterruptedException {
+		final AdmissionControl admission = new AdmissionControl(2, 0,
+				LONG_WAIT, 10, LONG_WAIT, 10, 1);
+		final MediaServer server = server("kms", 0);
+		final RoomLeg full = new RoomLeg(server, null);
+		full.endpointCreated();
+		full.endpointCreated();
+		final RoomLeg other = new RoomLeg(server, null);
+		admission.admit(new AdmissionControl.Demand("a", server, full, 1,
+				false), callback("a"));
+		admission.admit(new AdmissionControl.Demand("b", server, other, 2,
+				false), callback("b"));
+		assertEquals("b admitted", next());
+		assertEquals(2, other.getReservedCount());
+		assertEquals(2, server.getReservedCount());
+		assertEquals(1, admission.getQueueLength());
+
+		full.endpointReleased();
+		assertEquals("a admitted", next());
+	}
+
+	@Test
+	public void rejectsRequestsThatWaitedTooLong() throws InterruptedException {
+		final AdmissionControl admission = perServer(1, 50, 10);
+		final MediaServer server = server("kms", 1);
+		admission.admit(demand("a", server, 1, false), callback("a"));
+		assertEquals("a busy", next());
+		assertEquals(0, admission.getQueueLength());
+		assertEquals(1L, (long) admission.getCounts().get("timedOut"));
+	}
+
+	@Test
+	public void rejectsRightAwayWithoutAQueue() throws InterruptedException {
+		final AdmissionControl admission = perServer(1, 0, 10);
+		final MediaServer server = server("kms", 1);
+		admission.admit(demand("a", server, 1, false), callback("a"));
+		assertEquals("a busy", told.poll());
+		assertEquals(0, admission.getQueueLength());
+	}
+
+	@Test
+	public void rejectsOnceTheLineIsFullExceptAdmins()
+			throws InterruptedException {
+		final AdmissionControl admission = perServer(1, LONG_WAIT, 1);
+		final MediaServer server = server("kms", 1);
+		admission.admit(demand("a", server, 1, false), callback("a"));
+		admission.admit(demand("b", server, 1, false), callback("b"));
+		assertEquals("b queueFull", told.poll());
+		admission.admit(demand("admin", server, 1, true), callback("admin"));
+		assertNull(told.poll());
+		assertEquals(2, admission.getQueueLength());
+	}
+
+	@Test
+	public void rejectsAdmittedRequestsThatFail() throws InterruptedException {
+		final AdmissionControl admission = perServer(4, LONG_WAIT, 10);
+		admission.admit(demand("a", server("kms", 0), 1, false),
+				new AdmissionControl.Callback() {
+					@Override
+					public void admitted() {
+						throw new IllegalStateException("pipeline gone");
+					}
+
+					@Override
+					public void rejected(String reason) {
+						told.add("a " + reason);
+					}
+				});
+		assertEquals("a failed", next());
+		assertEquals(1L, (long) admission.getCounts().get("failed"));
+	}
+
+}
@@ -0,0 +1,99 @@
+package org.johan.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import com.google.gson.JsonObject;
+
+/**
+ * The ring keeps the latest messages within its count and memory budget,
+ * and pages back from a sequence number.
+ */
+public class ChatLogTest {
+
+	private static final String TIME = "12:00:00";
+
+	/** Text of 10 chars makes an entry of 64 + 2 * (1 + 8 + 10) = 102 bytes */
+	private static final String TEXT = "0123456789";
+
+	private static void append(ChatLog log, int messages) {
+		for (int i = 0; i < messages; i++) {
+			log.append("a", TIME, TEXT);
+		}
+	}
+
+	private static void assertSeqs(List<ChatLog.Entry> page, long... seqs) {
+		assertEquals(seqs.length, page.size());
+		for (int i = 0; i < seqs.length; i++) {
+			assertEquals(seqs[i], page.get(i).getSeq());
+		}
+	}
+
+	@Test
+	public void evictsTheOldestBeyondTheCount() {
+		final ChatLog log = new ChatLog(5, 0);
+		append(log, 8);
+		assertEquals(5, log.size());
+		assertSeqs(log.page(0, 10), 4, 5, 6, 7, 8);
+	}
+
+	@Test
+	public void evictsTheOldestBeyondTheBytes() {
+		final ChatLog log = new ChatLog(100, 250);
+		append(log, 2);
+		assertEquals(2, log.size());
+		append(log, 1);
+		assertEquals(2, log.size());
+		assertSeqs(log.page(0, 10), 2, 3);
+	}
+
+	@Test
+	public void keepsTheLatestMessageOverTheBytes() {
+		final ChatLog log = new ChatLog(100, 50);
+		append(log, 3);
+		assertSeqs(log.page(0, 10), 3);
+	}
+
+	@Test
+	public void keepsNoneWithoutCapacity() {
+		final ChatLog log = new ChatLog(0, 0);
+		assertEquals(1, log.append("a", TIME, TEXT).getSeq());
+		assertEquals(2, log.append("a", TIME, TEXT).getSeq());
+		assertEquals(0, log.size());
+		assertTrue(log.page(0, 10).isEmpty());
+	}
+
+	@Test
+	public void pagesBackFromTheCursor() {
+		final ChatLog log = new ChatLog(5, 0);
+		append(log, 8);
+		assertSeqs(log.page(0, 2), 7, 8);
+		assertSeqs(log.page(7, 2), 5, 6);
+		assertSeqs(log.page(5, 2), 4);
+		assertTrue(log.page(4, 2).isEmpty());
+		// A cursor past the latest message pages from the latest
+		assertSeqs(log.page(100, 2), 7, 8);
+	}
+
+	@Test
+	public void tellsTheCursorOfThePageBefore() {
+		final ChatLog log = new ChatLog(5, 0);
+		append(log, 8);
+		final JsonObject latest = log.pageMessage(0, 3);
+		assertEquals("chatHistory", latest.get("id").getAsString());
+		assertEquals(3, latest.getAsJsonArray("messages").size());
+		assertEquals(6, latest.get("before").getAsLong());
+
+		final JsonObject oldest = log.pageMessage(6, 3);
+		assertEquals(2, oldest.getAsJsonArray("messages").size());
+		assertEquals(4, oldest.getAsJsonArray("messages").get(0)
+				.getAsJsonObject().get("seq").getAsLong());
+		assertFalse(oldest.has("before"));
+	}
+
+}
@@ -0,0 +1,104 @@
+package org.johan.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URI;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+import org.springframework.http.server.ServerHttpRequest;
+import org.springframework.web.socket.WebSocketExtension;
+
+/**
+ * The extension accepted is what the handshake response carries, so it must
+ * be a valid RFC 7692 answer whatever the browser offered.
+ */
+public class DeflateHandshakeHandlerTest {
+
+	private static final ServerHttpRequest REQUEST = (ServerHttpRequest) Proxy
+			.newProxyInstance(ServerHttpRequest.class.getClassLoader(),
+					new Class<?>[] { ServerHttpRequest.class },
+					new InvocationHandler() {
+						@Override
+						public Object invoke(Object proxy, Method method,
+								Object[] args) {
+							return "getURI".equals(method.getName()) ? URI
+									.create("ws://localhost/groupcall") : null;
+						}
+					});
+
+	private static final List<WebSocketExtension> SUPPORTED = Collections
+			.singletonList(new WebSocketExtension(
+					DeflateHandshakeHandler.PERMESSAGE_DEFLATE));
+
+	private final DeflateHandshakeHandler handler = new DeflateHandshakeHandler();
+
+	private static WebSocketExtension offer(String... parameters) {
+		final Map<String, String> map = new LinkedHashMap<>();
+		for (int i = 0; i < parameters.length; i += 2) {
+			map.put(parameters[i], parameters[i + 1]);
+		}
+		return new WebSocketExtension(DeflateHandshakeHandler.PERMESSAGE_DEFLATE,
+				map);
+	}
+
+	private List<WebSocketExtension> negotiate(WebSocketExtension... offers) {
+		return handler.filterRequestedExtensions(REQUEST,
+				Arrays.asList(offers), SUPPORTED);
+	}
+
+	@Test
+	public void leavesOutAValuelessClientWindow() {
+		final List<WebSocketExtension> accepted = negotiate(offer(
+				"client_max_window_bits", ""));
+		assertEquals(1, accepted.size());
+		assertEquals(DeflateHandshakeHandler.PERMESSAGE_DEFLATE,
+				accepted.get(0).getName());
+		assertTrue(accepted.get(0).getParameters().isEmpty());
+	}
+
+	@Test
+	public void answersWithTheContextTakeoverAskedFor() {
+		final List<WebSocketExtension> accepted = negotiate(offer(
+				"client_no_context_takeover", "", "client_max_window_bits",
+				"10"));
+		assertEquals(
+				Collections.singleton("client_no_context_takeover"),
+				accepted.get(0).getParameters().keySet());
+	}
+
+	@Test
+	public void prefersAnOfferKeepingTheServerContext() {
+		final List<WebSocketExtension> accepted = negotiate(
+				offer("server_no_context_takeover", ""),
+				offer("client_max_window_bits", ""));
+		assertTrue(accepted.get(0).getParameters().isEmpty());
+	}
+
+	@Test
+	public void declinesALimitedServerWindow() {
+		assertTrue(negotiate(offer("server_max_window_bits", "10")).isEmpty());
+		final List<WebSocketExtension> accepted = negotiate(
+				offer("server_max_window_bits", "10"),
+				offer("server_no_context_takeover", ""));
+		assertEquals(
+				Collections.singleton("server_no_context_takeover"),
+				accepted.get(0).getParameters().keySet());
+	}
+
+	@Test
+	public void acceptsNothingTheContainerCannotDo() {
+		assertTrue(handler.filterRequestedExtensions(REQUEST,
+				Collections.singletonList(offer()),
+				Collections.<WebSocketExtension> emptyList()).isEmpty());
+	}
+
+}
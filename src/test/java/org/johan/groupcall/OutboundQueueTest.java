@@ -0,0 +1,192 @@
+package org.johan.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+
+import org.johan.groupcall.OutboundWriter.OverflowPolicy;
+import org.junit.Test;
+import org.springframework.web.socket.TextMessage;
+import org.springframework.web.socket.WebSocketSession;
+
+/**
+ * Frames must survive a connection that dies under them, so that a resumed
+ * client gets every message sent while it was away.
+ */
+public class OutboundQueueTest {
+
+	/** Drains on the enqueuing thread, so that the tests need no waiting */
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+
+	/**
+	 * A session recording what is written to it. Once closed, or set to
+	 * fail, writes are refused like on a dead socket. Set to block, writes
+	 * wait until the session is closed, like on a client that stopped
+	 * reading.
+	 */
+	private static final class FakeSession implements InvocationHandler {
+		private final List<String> written = new CopyOnWriteArrayList<>();
+		private volatile boolean open = true;
+		private volatile boolean failing = false;
+		private volatile boolean blocking = false;
+		private final WebSocketSession session = (WebSocketSession) Proxy
+				.newProxyInstance(WebSocketSession.class.getClassLoader(),
+						new Class<?>[] { WebSocketSession.class }, this);
+
+		@Override
+		public Object invoke(Object proxy, Method method, Object[] args)
+				throws Throwable {
+			switch (method.getName()) {
+			case "isOpen":
+				return open;
+			case "sendMessage":
+				synchronized (this) {
+					while (blocking && open) {
+						wait();
+					}
+				}
+				if (failing || !open) {
+					throw new IOException("Broken pipe");
+				}
+				written.add(((TextMessage) args[0]).getPayload());
+				return null;
+			case "close":
+				synchronized (this) {
+					open = false;
+					notifyAll();
+				}
+				return null;
+			case "getId":
+				return "fake";
+			case "hashCode":
+				return System.identityHashCode(proxy);
+			case "equals":
+				return proxy == args[0];
+			default:
+				return null;
+			}
+		}
+	}
+
+	private static OutboundQueue newQueue(FakeSession session, int capacity) {
+		return new OutboundQueue("USER test", session.session, DIRECT,
+				capacity, 16, OverflowPolicy.DROP_STALE_CHAT,
+				new MessageCounters(), null, 0);
+	}
+
+	private static OutboundFrame frame(String id, int n) {
+		return new OutboundFrame(id, null, "{\"id\":\"" + id + "\",\"n\":" + n
+				+ "}");
+	}
+
+	@Test
+	public void keepsFramesWrittenToAClosedSocket() {
+		final FakeSession first = new FakeSession();
+		final OutboundQueue queue = newQueue(first, 8);
+		first.open = false;
+		queue.enqueue(frame("receiveVideoAnswer", 1));
+		queue.enqueue(frame("iceCandidate", 2));
+		queue.hold();
+		assertEquals(2, queue.getDepth());
+
+		final FakeSession second = new FakeSession();
+		assertTrue(queue.resume(second.session));
+		assertEquals(0, queue.getDepth());
+		assertEquals(1, second.written.size());
+		assertEquals("[{\"id\":\"receiveVideoAnswer\",\"n\":1},"
+				+ "{\"id\":\"iceCandidate\",\"n\":2}]", second.written.get(0));
+	}
+
+	@Test
+	public void keepsFramesWhoseWriteFailed() {
+		final FakeSession first = new FakeSession();
+		final OutboundQueue queue = newQueue(first, 8);
+		first.failing = true;
+		queue.enqueue(frame("receiveVideoAnswer", 1));
+		assertFalse("the failed session is closed", first.open);
+		queue.enqueue(frame("iceCandidate", 2));
+		assertEquals(2, queue.getDepth());
+
+		final FakeSession second = new FakeSession();
+		assertTrue(queue.resume(second.session));
+		assertEquals("[{\"id\":\"receiveVideoAnswer\",\"n\":1},"
+				+ "{\"id\":\"iceCandidate\",\"n\":2}]", second.written.get(0));
+	}
+
+	@Test
+	public void refusesToResumeAfterDroppingFramesWhileHeld() {
+		final FakeSession first = new FakeSession();
+		final OutboundQueue queue = newQueue(first, 2);
+		queue.hold();
+		queue.enqueue(frame("chatMessageReceived", 1));
+		queue.enqueue(frame("iceCandidate", 2));
+		// Makes room by dropping the chat message
+		queue.enqueue(frame("iceCandidate", 3));
+		assertEquals(1, queue.getDropped());
+
+		assertFalse(queue.resume(new FakeSession().session));
+	}
+
+	@Test
+	public void closesAnOverflowingSessionOnTheWriter() {
+		final FakeSession first = new FakeSession();
+		final List<Runnable> tasks = new CopyOnWriteArrayList<>();
+		final OutboundQueue queue = new OutboundQueue("USER test",
+				first.session, new Executor() {
+					@Override
+					public void execute(Runnable command) {
+						tasks.add(command);
+					}
+				}, 2, 16, OverflowPolicy.DISCONNECT, new MessageCounters(),
+				null, 0);
+		queue.enqueue(frame("iceCandidate", 1));
+		queue.enqueue(frame("iceCandidate", 2));
+		queue.enqueue(frame("iceCandidate", 3));
+		assertTrue("not closed by the sender", first.open);
+		assertEquals(0, queue.getDepth());
+
+		for (final Runnable task : tasks) {
+			task.run();
+		}
+		assertFalse(first.open);
+		assertTrue(first.written.isEmpty());
+	}
+
+	@Test(timeout = 5000)
+	public void disconnectsAClientThatStoppedReading() {
+		final ScheduledExecutorService watchdog = Executors
+				.newSingleThreadScheduledExecutor();
+		try {
+			final FakeSession first = new FakeSession();
+			final OutboundQueue queue = new OutboundQueue("USER test",
+					first.session, DIRECT, 8, 16,
+					OverflowPolicy.DROP_STALE_CHAT, new MessageCounters(),
+					watchdog, 50);
+			first.blocking = true;
+			// Returns once the send timeout has closed the session
+			queue.enqueue(frame("receiveVideoAnswer", 1));
+			assertFalse(first.open);
+			assertEquals(0, queue.getDepth());
+
+			assertFalse(queue.resume(new FakeSession().session));
+		} finally {
+			watchdog.shutdownNow();
+		}
+	}
+
+}
@@ -0,0 +1,68 @@
+package org.johan.groupcall;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * The token bucket, on a clock the tests move by hand.
+ */
+public class RateLimiterTest {
+
+	private static final long START = 1000000000L;
+
+	private static long after(long millis) {
+		return START + TimeUnit.MILLISECONDS.toNanos(millis);
+	}
+
+	@Test
+	public void allowsABurstThenRefuses() {
+		final RateLimiter limiter = new RateLimiter(1, 3, START);
+		assertTrue(limiter.tryAcquire(START));
+		assertTrue(limiter.tryAcquire(START));
+		assertTrue(limiter.tryAcquire(START));
+		assertFalse(limiter.tryAcquire(START));
+		assertFalse(limiter.tryAcquire(after(999)));
+	}
+
+	@Test
+	public void refillsAtTheRate() {
+		final RateLimiter limiter = new RateLimiter(2, 1, START);
+		assertTrue(limiter.tryAcquire(START));
+		assertFalse(limiter.tryAcquire(after(400)));
+		assertTrue(limiter.tryAcquire(after(500)));
+		assertFalse(limiter.tryAcquire(after(500)));
+		assertTrue(limiter.tryAcquire(after(1000)));
+	}
+
+	@Test
+	public void refillsNoMoreThanTheBurst() {
+		final RateLimiter limiter = new RateLimiter(10, 2, START);
+		assertTrue(limiter.tryAcquire(START));
+		assertTrue(limiter.tryAcquire(START));
+		// A minute idle is worth 600 events, but only the burst is kept
+		final long later = after(60000);
+		assertTrue(limiter.tryAcquire(later));
+		assertTrue(limiter.tryAcquire(later));
+		assertFalse(limiter.tryAcquire(later));
+	}
+
+	@Test
+	public void allowsEverythingWithoutARate() {
+		final RateLimiter limiter = new RateLimiter(0, 1, START);
+		for (int i = 0; i < 1000; i++) {
+			assertTrue(limiter.tryAcquire(START));
+		}
+	}
+
+	@Test
+	public void allowsAtLeastOneAtOnce() {
+		final RateLimiter limiter = new RateLimiter(1, 0, START);
+		assertTrue(limiter.tryAcquire(START));
+		assertFalse(limiter.tryAcquire(START));
+	}
+
+}
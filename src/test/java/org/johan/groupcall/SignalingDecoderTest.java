@@ -0,0 +1,136 @@
+package org.johan.groupcall;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Whatever a client sends, the decoder either returns a complete command or
+ * null; it never throws.
+ */
+public class SignalingDecoderTest {
+
+	@Test
+	public void decodesAJoin() {
+		final SignalingCommand.JoinRoom join = (SignalingCommand.JoinRoom) SignalingDecoder
+				.decode("{\"id\":\"joinRoom\",\"name\":\"alice\",\"room\":\"r1\","
+						+ "\"mode\":\"composite\",\"resume\":true,\"extra\":[1,{}]}");
+		assertEquals(SignalingCommand.Type.JOIN_ROOM, join.getType());
+		assertEquals("alice", join.getName());
+		assertEquals("r1", join.getRoom());
+		assertEquals(RoomMode.fromProtocolName("composite"), join.getMode());
+		assertTrue(join.isResume());
+	}
+
+	@Test
+	public void decodesCompactCodes() {
+		for (final SignalingCommand.Type type : SignalingCommand.Type.values()) {
+			assertEquals(type, SignalingCommand.Type.fromId(type.getCode()));
+		}
+		final SignalingCommand.Chat chat = (SignalingCommand.Chat) SignalingDecoder
+				.decode("{\"id\":\"c\",\"text\":\"hi\"}");
+		assertEquals(SignalingCommand.Type.CHAT, chat.getType());
+		assertEquals("hi", chat.getText());
+		assertEquals(SignalingCommand.Type.LEAVE_ROOM, SignalingDecoder
+				.decode("{\"id\":\"l\"}").getType());
+	}
+
+	@Test
+	public void rejectsUnknownIds() {
+		assertNull(SignalingDecoder.decode("{\"id\":\"shutdown\"}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"x\",\"name\":\"alice\"}"));
+		// Rejected before the broken rest is read
+		assertNull(SignalingDecoder.decode("{\"id\":\"shutdown\",\"name\":"));
+	}
+
+	@Test
+	public void rejectsMessagesWithoutIdOrFields() {
+		assertNull(SignalingDecoder.decode("{}"));
+		assertNull(SignalingDecoder.decode("{\"id\":null}"));
+		assertNull(SignalingDecoder.decode("{\"name\":\"alice\",\"room\":\"r1\"}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"joinRoom\",\"name\":\"alice\"}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chat\",\"text\":null}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"receiveVideoFrom\",\"sender\":\"bob\"}"));
+	}
+
+	@Test
+	public void rejectsTruncatedMessages() {
+		assertNull(SignalingDecoder.decode(""));
+		assertNull(SignalingDecoder.decode("{"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chat\",\"text\":\"hi\""));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chat\",\"text\":\"hi"));
+		assertNull(SignalingDecoder
+				.decode("{\"id\":\"onIceCandidate\",\"candidates\":[{\"candidate\":\"c\""));
+	}
+
+	@Test
+	public void rejectsMalformedMessages() {
+		assertNull(SignalingDecoder.decode("not json"));
+		assertNull(SignalingDecoder.decode("[\"joinRoom\"]"));
+		assertNull(SignalingDecoder.decode("null"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chat\" \"text\":\"hi\"}"));
+		assertNull(SignalingDecoder.decode("{id:chat,text:hi}"));
+	}
+
+	@Test
+	public void rejectsWrongFieldTypes() {
+		assertNull(SignalingDecoder.decode("{\"id\":{\"x\":1}}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chat\",\"text\":[\"hi\"]}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chatHistory\",\"before\":\"soon\"}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"chatHistory\",\"before\":true}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"onIceCandidate\",\"candidates\":{}}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"onIceCandidate\",\"candidates\":[\"c\"]}"));
+		assertNull(SignalingDecoder.decode("{\"id\":\"onIceCandidate\",\"candidates\":"
+				+ "[{\"candidate\":\"c\",\"sdpMLineIndex\":\"first\"}]}"));
+		// Not a flag, so left at its default
+		final SignalingCommand.JoinRoom join = (SignalingCommand.JoinRoom) SignalingDecoder
+				.decode("{\"id\":\"joinRoom\",\"name\":\"a\",\"room\":\"r\",\"resume\":\"yes\"}");
+		assertFalse(join.isResume());
+	}
+
+	@Test
+	public void decodesCandidates() {
+		final SignalingCommand.IceCandidates command = (SignalingCommand.IceCandidates) SignalingDecoder
+				.decode("{\"id\":\"i\",\"candidates\":["
+						+ "{\"name\":\"bob\",\"candidate\":\"candidate:1\",\"sdpMid\":\"0\",\"sdpMLineIndex\":1},"
+						+ "{\"name\":\"bob\",\"candidate\":\"\"},"
+						+ "{\"name\":\"bob\",\"candidate\":null}]}");
+		final List<SignalingCommand.Candidate> candidates = command
+				.getCandidates();
+		assertEquals(1, candidates.size());
+		assertEquals("bob", candidates.get(0).getName());
+		assertEquals("candidate:1", candidates.get(0).getCandidate()
+				.getCandidate());
+		assertEquals("0", candidates.get(0).getCandidate().getSdpMid());
+		assertEquals(1, candidates.get(0).getCandidate().getSdpMLineIndex());
+	}
+
+	@Test
+	public void rejectsOversizedCandidateLists() {
+		assertEquals(SignalingDecoder.MAX_CANDIDATES,
+				((SignalingCommand.IceCandidates) SignalingDecoder
+						.decode(candidates(SignalingDecoder.MAX_CANDIDATES)))
+						.getCandidates().size());
+		assertNull(SignalingDecoder
+				.decode(candidates(SignalingDecoder.MAX_CANDIDATES + 1)));
+	}
+
+	private static String candidates(int count) {
+		final StringBuilder sb = new StringBuilder(
+				"{\"id\":\"onIceCandidate\",\"candidates\":[");
+		for (int i = 0; i < count; i++) {
+			if (i > 0) {
+				sb.append(',');
+			}
+			sb.append("{\"name\":\"bob\",\"candidate\":\"candidate:").append(i)
+					.append("\",\"sdpMid\":\"0\",\"sdpMLineIndex\":0}");
+		}
+		return sb.append("]}").toString();
+	}
+
+}